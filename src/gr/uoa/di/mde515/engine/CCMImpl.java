@@ -1,285 +1,315 @@
-package gr.uoa.di.mde515.engine;
-
-import gr.uoa.di.mde515.engine.Engine.TransactionFailedException;
-import gr.uoa.di.mde515.files.DataFile;
-import gr.uoa.di.mde515.index.Index;
-import gr.uoa.di.mde515.index.KeyDoesntExistException;
-import gr.uoa.di.mde515.index.KeyExistsException;
-import gr.uoa.di.mde515.index.Record;
-import gr.uoa.di.mde515.locks.DBLock;
-
-import java.io.IOException;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-
-/**
- * All methods that require a Transaction will throw a
- * {@code NullPointerException} if the supplied transaction is {@code null} and
- * a {@link TransactionRequiredException} if the transaction supplied is not
- * valid. All exceptions from lower levels are wrapped in a
- * {@link TransactionFailedException}, including the
- * {@link InterruptedException}.
- */
-enum CCMImpl implements CCM {
-	INSTANCE;
-
-	final List<Transaction> transactions = Collections
-		.synchronizedList(new ArrayList<Transaction>()); // ...
-	// THREADS //
-	private final int NUM_OF_THREADS = 1/*
-										 * Runtime.getRuntime()
-										 * .availableProcessors()
-										 */;
-	private final ExecutorService exec = Executors
-		.newFixedThreadPool(NUM_OF_THREADS);
-
-	public static CCM instance() {
-		return INSTANCE;
-	}
-
-	// =========================================================================
-	// TransactionalOperation submit API
-	// =========================================================================
-	@Override
-	public <K extends Comparable<K>, V, L> Future<L> submit(
-			final Engine<K, V>.TransactionalOperation to) {
-		return exec.submit(new Callable<L>() {
-
-			@Override
-			public L call() throws TransactionFailedException {
-				Exception ex = null;
-				to.init(); // the transaction is thread confined
-				try {
-					return to.execute();
-				} catch (/* any old */Exception e) {
-					try {
-						to.abort();
-					} catch (Exception e1) {
-						e1.printStackTrace(); // TODO logger
-					}
-					ex = e;
-					throw e;
-				} finally {
-					if (ex == null) try {
-						to.commit();
-					} catch (/* any old */Exception e) {
-						try {
-							to.abort();
-						} catch (Exception e1) {
-							e1.printStackTrace();// TODO logger
-						}
-						throw e;
-					} finally {
-						to.endTransaction();
-					}
-				}
-			}
-		}); // I need to call submit.get() to have the ExecutionException thrown
-	}
-
-	@Override
-	public <K extends Comparable<K>, V, L> List<Future<L>> submitAll(
-			final Collection<Engine<K, V>.TransactionalOperation> tos)
-			throws InterruptedException {
-		Collection<Callable<L>> callables = new ArrayList<>();
-		for (final Engine<K, V>.TransactionalOperation to : tos) {
-			Callable<L> call = new Callable<L>() {
-
-				@Override
-				public L call() throws TransactionFailedException {
-					Exception ex = null;
-					to.init(); // the transaction is thread confined
-					try {
-						return to.execute();
-					} catch (/* any old */Exception e) {
-						try {
-							to.abort();
-						} catch (Exception e1) {
-							e1.printStackTrace(); // TODO logger
-						}
-						ex = e;
-						throw e;
-					} finally {
-						if (ex != null) try {
-							to.commit();
-						} catch (/* any old */Exception e) {
-							try {
-								to.abort();
-							} catch (Exception e1) {
-								e1.printStackTrace(); // TODO logger
-							}
-							throw e;
-						} finally {
-							to.endTransaction();
-						}
-					}
-				}
-			};
-			callables.add(call);
-		}
-		return exec.invokeAll(callables);
-	}
-
-	// =========================================================================
-	// API
-	// =========================================================================
-	@Override
-	public void shutdown() throws InterruptedException {
-		INSTANCE.exec.shutdown();
-		@SuppressWarnings("unused")
-		boolean terminated = INSTANCE.exec.awaitTermination(13,
-			TimeUnit.SECONDS); // if timed out terminated will be false
-		// if (!terminated) {
-		// List<Runnable> notExecuted = INSTANCE.exec.shutdownNow();
-		// }
-	}
-
-	// =========================================================================
-	// Active transaction - should be Package Private
-	// =========================================================================
-	@Override
-	public Transaction beginTransaction() {
-		final Transaction tr = new Transaction();
-		transactions.add(tr);
-		return tr;
-	}
-
-	@Override
-	public <K extends Comparable<K>, V> Record<K, V> insert(
-			final Transaction tr, final Record<K, V> record,
-			final DataFile<K, V> dataFile, final Index<K, Integer> index)
-			throws TransactionFailedException {
-		if (record == null) throw new NullPointerException();
-		_validate(tr);
-		try {
-			Integer lookupLocked = index.lookupLocked(tr, record.getKey(),
-				DBLock.E);
-			if (lookupLocked != null)
-				throw new KeyExistsException("" + record.getKey());
-			dataFile.lockHeader(tr, DBLock.E);
-			int pageID = dataFile.insert(tr, record);
-			index.insert(tr, new Record<>(record.getKey(), pageID));
-			return record; // NOOP
-		} catch (IOException | InterruptedException | KeyExistsException e) {
-			throw new TransactionFailedException(e);
-		}
-	}
-
-	@Override
-	public <K extends Comparable<K>, V> Record<K, V> lookup(
-			final Transaction tr, final K key, final DBLock el,
-			DataFile<K, V> dataFile, Index<K, Integer> index)
-			throws TransactionFailedException {
-		if (key == null) throw new NullPointerException();
-		_validate(tr);
-		try {
-			Integer id = index.lookupLocked(tr, key, el);
-			if (id == null) return null;
-			return new Record<>(key, dataFile.get(tr, id, key));
-		} catch (IOException | InterruptedException e) {
-			throw new TransactionFailedException(e);
-		}
-	}
-
-	@Override
-	public <K extends Comparable<K>, V> void delete(final Transaction tr,
-			final K key, DBLock el, final DataFile<K, V> file,
-			final Index<K, Integer> index) throws TransactionFailedException {
-		if (key == null) throw new NullPointerException();
-		_validate(tr);
-		try {
-			Integer lookupLocked = index.lookupLocked(tr, key, DBLock.E);
-			if (lookupLocked == null)
-				throw new KeyDoesntExistException("" + key);
-			file.lockHeader(tr, DBLock.E);
-			file.delete(tr, lookupLocked, key);
-			index.delete(tr, key);
-		} catch (IOException | InterruptedException | KeyDoesntExistException e) {
-			throw new TransactionFailedException(e);
-		}
-	}
-
-	// =========================================================================
-	// Committing
-	// =========================================================================
-	@Override
-	public <K extends Comparable<K>, V> void commit(Transaction tr,
-			DataFile<K, V> dataFile, Index<K, ?> index)
-			throws TransactionFailedException {
-		_validate(tr);
-		try {
-			tr.commit(dataFile, index);
-		} catch (IOException e) {
-			throw new TransactionFailedException(e);
-		}
-	}
-
-	/** May throw IO when trying to reread a dirty permanent page - BAD */
-	@Override
-	public <K extends Comparable<K>, V> void abort(Transaction tr,
-			DataFile<K, V> dataFile, Index<K, ?> index)
-			throws TransactionFailedException {
-		_validate(tr);
-		try {
-			tr.abort(dataFile, index);
-		} catch (IOException e) {
-			throw new TransactionFailedException(e);
-		}
-	}
-
-	// =========================================================================
-	// Ended
-	// =========================================================================
-	@Override
-	public void endTransaction(Transaction tr) {
-		tr.end();
-		transactions.remove(tr);
-	}
-
-	// =========================================================================
-	// TODO Not implemented
-	// =========================================================================
-	@Override
-	public <K extends Comparable<K>, V> Record<K, V> update(Transaction tr,
-			K key, DataFile<K, V> file) {
-		throw new UnsupportedOperationException("Not supported yet.");
-	}
-
-	@Override
-	public <K extends Comparable<K>, V> List<Record<K, V>> range(
-			Transaction tr, K key1, K key2, DataFile<K, V> file) {
-		throw new UnsupportedOperationException("Not supported yet.");
-	}
-
-	@Override
-	public boolean waitTransaction(Transaction tr, long t) {
-		throw new UnsupportedOperationException("Not supported yet.");
-	}
-
-	@Override
-	public void bulkLoad(Transaction tr, Path fileOfRecords) {
-		throw new UnsupportedOperationException("Not implemented");
-	}
-
-	@Override
-	public void bulkDelete(Transaction tr, Path fileOfKeys, Object newParam) {
-		throw new UnsupportedOperationException("Not implemented");
-	}
-
-	// =========================================================================
-	// Helpers
-	// =========================================================================
-	private void _validate(Transaction tr) {
-		if (!transactions.contains(tr))
-			throw new RuntimeException(new TransactionRequiredException());
-		tr.validateThread();
-	}
-}
+package gr.uoa.di.mde515.engine;
+
+import gr.uoa.di.mde515.engine.Engine.TransactionFailedException;
+import gr.uoa.di.mde515.files.DataFile;
+import gr.uoa.di.mde515.index.Index;
+import gr.uoa.di.mde515.index.KeyDoesntExistException;
+import gr.uoa.di.mde515.index.KeyExistsException;
+import gr.uoa.di.mde515.index.Record;
+import gr.uoa.di.mde515.locks.DBLock;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All methods that require a Transaction will throw a
+ * {@code NullPointerException} if the supplied transaction is {@code null} and
+ * a {@link TransactionRequiredException} if the transaction supplied is not
+ * valid. All exceptions from lower levels are wrapped in a
+ * {@link TransactionFailedException}, including the
+ * {@link InterruptedException} - and the {@link TransactionTimeoutException}
+ * thrown by the lock and frame waits running past the deadline of the
+ * transaction. Operations that need not block, as the commit, run to their
+ * end past it.
+ */
+enum CCMImpl implements CCM {
+	INSTANCE;
+
+	final List<Transaction> transactions = Collections
+		.synchronizedList(new ArrayList<Transaction>()); // ...
+	// THREADS //
+	private volatile ExecutorService exec = Executors
+		.newFixedThreadPool(Engine.Config.DEFAULT_THREADS);
+
+	public static CCM instance() {
+		return INSTANCE;
+	}
+
+	/** Called by the Engine before any transaction is submitted */
+	void setThreads(int threads) {
+		final ExecutorService old = exec;
+		exec = Executors.newFixedThreadPool(threads);
+		old.shutdown(); // never used
+	}
+
+	// =========================================================================
+	// TransactionalOperation submit API
+	// =========================================================================
+	@Override
+	public <K extends Comparable<K>, V, L> Future<L> submit(
+			final Engine<K, V>.TransactionalOperation to) {
+		return exec.submit(new Callable<L>() {
+
+			@Override
+			public L call() throws TransactionFailedException {
+				Exception ex = null;
+				to.init(); // the transaction is thread confined
+				try {
+					return to.execute();
+				} catch (/* any old */Exception e) {
+					try {
+						to.abort();
+					} catch (Exception e1) {
+						e1.printStackTrace(); // TODO logger
+					}
+					ex = e;
+					throw e;
+				} finally {
+					if (ex == null) try {
+						to.commit();
+					} catch (/* any old */Exception e) {
+						try {
+							to.abort();
+						} catch (Exception e1) {
+							e1.printStackTrace();// TODO logger
+						}
+						throw e;
+					} finally {
+						to.endTransaction();
+					}
+					else to.endTransaction(); // aborted - release the locks
+				}
+			}
+		}); // I need to call submit.get() to have the ExecutionException thrown
+	}
+
+	@Override
+	public <K extends Comparable<K>, V, L> List<Future<L>> submitAll(
+			final Collection<Engine<K, V>.TransactionalOperation> tos)
+			throws InterruptedException {
+		Collection<Callable<L>> callables = new ArrayList<>();
+		for (final Engine<K, V>.TransactionalOperation to : tos) {
+			Callable<L> call = new Callable<L>() {
+
+				@Override
+				public L call() throws TransactionFailedException {
+					Exception ex = null;
+					to.init(); // the transaction is thread confined
+					try {
+						return to.execute();
+					} catch (/* any old */Exception e) {
+						try {
+							to.abort();
+						} catch (Exception e1) {
+							e1.printStackTrace(); // TODO logger
+						}
+						ex = e;
+						throw e;
+					} finally {
+						if (ex == null) try {
+							to.commit();
+						} catch (/* any old */Exception e) {
+							try {
+								to.abort();
+							} catch (Exception e1) {
+								e1.printStackTrace(); // TODO logger
+							}
+							throw e;
+						} finally {
+							to.endTransaction();
+						}
+						else to.endTransaction(); // aborted
+					}
+				}
+			};
+			callables.add(call);
+		}
+		return exec.invokeAll(callables);
+	}
+
+	// =========================================================================
+	// API
+	// =========================================================================
+	@Override
+	public void shutdown() throws InterruptedException {
+		INSTANCE.exec.shutdown();
+		@SuppressWarnings("unused")
+		boolean terminated = INSTANCE.exec.awaitTermination(13,
+			TimeUnit.SECONDS); // if timed out terminated will be false
+		// if (!terminated) {
+		// List<Runnable> notExecuted = INSTANCE.exec.shutdownNow();
+		// }
+	}
+
+	// =========================================================================
+	// Active transaction - should be Package Private
+	// =========================================================================
+	@Override
+	public Transaction beginTransaction() {
+		final Transaction tr = new Transaction();
+		transactions.add(tr);
+		return tr;
+	}
+
+	@Override
+	public <K extends Comparable<K>, V> Record<K, V> insert(
+			final Transaction tr, final Record<K, V> record,
+			final DataFile<K, V> dataFile, final Index<K, Integer> index)
+			throws TransactionFailedException {
+		if (record == null) throw new NullPointerException();
+		_validate(tr);
+		try {
+			Integer lookupLocked = index.lookupLocked(tr, record.getKey(),
+				DBLock.E);
+			if (lookupLocked != null)
+				throw new KeyExistsException("" + record.getKey());
+			int pageID = dataFile.insert(tr, record);
+			index.insert(tr, new Record<>(record.getKey(), pageID));
+			return record; // NOOP
+		} catch (IOException | InterruptedException | KeyExistsException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	@Override
+	public <K extends Comparable<K>, V> Record<K, V> lookup(
+			final Transaction tr, final K key, final DBLock el,
+			DataFile<K, V> dataFile, Index<K, Integer> index)
+			throws TransactionFailedException {
+		if (key == null) throw new NullPointerException();
+		_validate(tr);
+		try {
+			Integer id = index.lookupLocked(tr, key, el);
+			if (id == null) return null;
+			return new Record<>(key, dataFile.get(tr, id, key));
+		} catch (IOException | InterruptedException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	@Override
+	public <K extends Comparable<K>, V> List<Record<K, V>> range(
+			final Transaction tr, final K key1, final K key2,
+			DataFile<K, V> dataFile, Index<K, Integer> index)
+			throws TransactionFailedException {
+		if (key1 == null || key2 == null) throw new NullPointerException();
+		_validate(tr);
+		try {
+			final List<Record<K, V>> records = new ArrayList<>();
+			for (Record<K, Integer> rec : index.range(tr, key1, key2))
+				records.add(new Record<>(rec.getKey(), dataFile.get(tr,
+					rec.getValue(), rec.getKey())));
+			return records;
+		} catch (IOException | InterruptedException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	@Override
+	public <K extends Comparable<K>, V> List<Record<K, V>> scan(
+			final Transaction tr, DataFile<K, V> dataFile)
+			throws TransactionFailedException {
+		_validate(tr);
+		try {
+			return dataFile.scan(tr);
+		} catch (IOException | InterruptedException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	@Override
+	public <K extends Comparable<K>, V> void delete(final Transaction tr,
+			final K key, DBLock el, final DataFile<K, V> file,
+			final Index<K, Integer> index) throws TransactionFailedException {
+		if (key == null) throw new NullPointerException();
+		_validate(tr);
+		try {
+			Integer lookupLocked = index.lookupLocked(tr, key, DBLock.E);
+			if (lookupLocked == null)
+				throw new KeyDoesntExistException("" + key);
+			file.delete(tr, lookupLocked, key); // locks the header if needed
+			index.delete(tr, key);
+		} catch (IOException | InterruptedException | KeyDoesntExistException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	// =========================================================================
+	// Committing
+	// =========================================================================
+	@Override
+	public <K extends Comparable<K>, V> void commit(Transaction tr,
+			DataFile<K, V> dataFile, Index<K, ?> index)
+			throws TransactionFailedException {
+		_validate(tr);
+		try {
+			tr.commit(dataFile, index);
+		} catch (IOException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	/** May throw IO when trying to reread a dirty permanent page - BAD */
+	@Override
+	public <K extends Comparable<K>, V> void abort(Transaction tr,
+			DataFile<K, V> dataFile, Index<K, ?> index)
+			throws TransactionFailedException {
+		_validate(tr);
+		try {
+			tr.abort(dataFile, index);
+		} catch (IOException e) {
+			throw new TransactionFailedException(e);
+		}
+	}
+
+	// =========================================================================
+	// Ended
+	// =========================================================================
+	@Override
+	public void endTransaction(Transaction tr) {
+		tr.end();
+		transactions.remove(tr);
+	}
+
+	// =========================================================================
+	// TODO Not implemented
+	// =========================================================================
+	@Override
+	public <K extends Comparable<K>, V> Record<K, V> update(Transaction tr,
+			K key, DataFile<K, V> file) {
+		throw new UnsupportedOperationException("Not supported yet.");
+	}
+
+	@Override
+	public boolean waitTransaction(Transaction tr, long t) {
+		throw new UnsupportedOperationException("Not supported yet.");
+	}
+
+	@Override
+	public void bulkLoad(Transaction tr, Path fileOfRecords) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	@Override
+	public void bulkDelete(Transaction tr, Path fileOfKeys, Object newParam) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void _validate(Transaction tr) {
+		if (!transactions.contains(tr))
+			throw new RuntimeException(new TransactionRequiredException());
+		tr.validateThread();
+	}
+}
@@ -0,0 +1,134 @@
+package gr.uoa.di.mde515.engine;
+
+import gr.uoa.di.mde515.engine.buffer.BufferManager;
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes fuzzy checkpoints in the background - every interval or once enough
+ * log was written since the last one. Transactions are not stopped: the dirty
+ * page table of the {@link BufferManager} and the active transactions of the
+ * {@link CCMImpl} are snapshots, taken after the end of the log is read, and
+ * the {@link LogManager} works out the redo point from them. Before each
+ * checkpoint the pages dirtied before the previous one are written back, so
+ * the log does not grow past about two checkpoints. The files are forced
+ * after the dirty page table is taken and before the log is cut at the redo
+ * point - the pages not in the table were written back, but maybe not yet on
+ * the disk.
+ */
+final class Checkpointer implements Runnable {
+
+	private static final long POLL_MILLIS = 100;
+	private final LogManager log = LogManager.getInstance();
+	private final BufferManager buf = BufferManager.getInstance();
+	/** the files the log records changes to - forced by each checkpoint */
+	private final Collection<DiskFile> files;
+	private final long intervalNanos; // 0 if not by time
+	private final long logBytes; // 0 if not by volume
+	private Thread thread; // null if not started
+	private volatile boolean running = true;
+	// accessed by the checkpointer thread
+	private long last = System.nanoTime();
+	/** the end of the log when the last checkpoint started */
+	private long lastLsn = log.getEnd();
+	// metrics - written by the checkpointer thread
+	private volatile long checkpoints;
+	private volatile long checkpointNanos;
+	private volatile long lastCheckpointNanos;
+	private volatile long redoLsn = -1;
+
+	Checkpointer(long intervalMillis, long logBytes,
+			Collection<DiskFile> files) {
+		this.files = files;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.logBytes = logBytes;
+	}
+
+	/** NOOP if both the interval and the log bytes are 0 */
+	void start() {
+		if (intervalNanos == 0 && logBytes == 0) return;
+		thread = new Thread(this, "Checkpointer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stops the checkpointer thread, if started - waits for a checkpoint */
+	void shutdown() throws InterruptedException {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		// do not interrupt - an interrupted write closes the FileChannel
+		if (thread != null) thread.join();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				synchronized (this) {
+					if (running) wait(POLL_MILLIS);
+				}
+				if (running && due()) checkpoint();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace(); // TODO logger - retry
+			}
+		}
+	}
+
+	long getCheckpoints() {
+		return checkpoints;
+	}
+
+	/** The time spent in all the checkpoints taken */
+	long getCheckpointNanos() {
+		return checkpointNanos;
+	}
+
+	long getLastCheckpointNanos() {
+		return lastCheckpointNanos;
+	}
+
+	/** The redo point of the last checkpoint - -1 if none */
+	long getRedoLsn() {
+		return redoLsn;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private boolean due() {
+		return (intervalNanos != 0 && System.nanoTime() - last >= intervalNanos)
+			|| (logBytes != 0 && log.getEnd() - lastLsn >= logBytes);
+	}
+
+	private void checkpoint() throws IOException {
+		final long start = System.nanoTime();
+		buf.writeBack(lastLsn);
+		final long begin = log.getEnd(); // before the tables
+		final List<Long> active = new ArrayList<>();
+		synchronized (CCMImpl.INSTANCE.transactions) {
+			for (Transaction tr : CCMImpl.INSTANCE.transactions)
+				active.add(tr.getId());
+		}
+		final Map<Long, Long> dirty = buf.dirtyPages();
+		for (DiskFile file : files)
+			file.force(); // the pages written back before the table
+		final long redo = log.checkpoint(begin, dirty, active);
+		last = System.nanoTime();
+		lastLsn = begin;
+		redoLsn = redo;
+		lastCheckpointNanos = last - start;
+		checkpointNanos += lastCheckpointNanos;
+		++checkpoints;
+	}
+}
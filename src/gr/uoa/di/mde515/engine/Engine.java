@@ -1,328 +1,894 @@
-package gr.uoa.di.mde515.engine;
-
-import gr.uoa.di.mde515.engine.buffer.IntegerSerializer;
-import gr.uoa.di.mde515.engine.buffer.Serializer;
-import gr.uoa.di.mde515.files.DataFile;
-import gr.uoa.di.mde515.files.IndexDiskFile;
-import gr.uoa.di.mde515.index.DiskIndex;
-import gr.uoa.di.mde515.index.Index;
-import gr.uoa.di.mde515.index.IndexJava;
-import gr.uoa.di.mde515.index.Record;
-import gr.uoa.di.mde515.locks.DBLock;
-
-import java.io.IOException;
-import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-
-/**
- * Represents the DB external interface. It is a monofilestic engine but can be
- * extended to handle more files, by making the methods instead of the class
- * generic (for added complexity). The single file has a single (dense) index.
- * The pages of the files are stamped with an integer id, which is negative for
- * the pages of the index file. Should be an interface implemented by enums (for
- * singleton property) but with the addition of a static factory (TODO: java 8
- * ?). <br/>
- * preAlpha<br/>
- * FIXME: The current Heap file implementation expects Integers (there are casts
- * that will blow if not) - generify
- *
- * @param <K>
- *            the key type of the records in the one and only one file. Must
- *            extend {@link Comparable}
- * @param <V>
- *            the type of the records value - that is all the attributes except
- *            the key. No restrictions here.
- */
-public abstract class Engine<K extends Comparable<K>, V> {
-
-	public static final short PAGE_SIZE = 48;
-	// TODO fix this mess - proper factory - java 8 ?
-	private static volatile Engine<?, ?> instance;
-	private final static Object HACK = new Object();
-
-	// =========================================================================
-	// Engine API
-	// =========================================================================
-	/**
-	 * Execute a TransactionalOperation in its own thread - the
-	 * TransactionalOperation instance is not to be reused afterwards. Takes
-	 * care of unlocking the locks held by the transaction.
-	 *
-	 * Implementation: calls submit on an {@link ExecutorService}
-	 *
-	 * @param to
-	 *            the TransactionalOperation to be executed
-	 * @return a Future with the {@link TransactionalOperation#execute()} result
-	 */
-	public abstract <L> Future<L> submit(TransactionalOperation to);
-
-	/**
-	 * Execute a collection TransactionalOperation
-	 * <em> each in its own thread</em>, as a separate transaction - the
-	 * TransactionalOperation instances are not to be reused afterwards. Takes
-	 * care of unlocking the locks held by the transaction.
-	 *
-	 * Implementation: calls {@link ExecutorService#invokeAll(Collection)} on an
-	 * ExecutorService. TODO - call invokeAll(tasks, timeout, unit)
-	 *
-	 * @param tos
-	 *            the Collection of the TransactionalOperation to be executed
-	 * @throws InterruptedException
-	 *             thrown by {@link ExecutorService#invokeAll(Collection)}
-	 */
-	public abstract <L> List<Future<L>> submitAll(
-			Collection<TransactionalOperation> tos) throws InterruptedException;
-
-	public static <K extends Comparable<K>, V> Engine<K, V> newInstance(
-			Serializer<K> serKey, Serializer<V> serVal) {
-		if (instance == null)
-			synchronized (HACK) {
-				if (instance == null) {
-					final EngineImpl<K, V> engineImpl = new EngineImpl<>(
-						serKey, serVal);
-					instance = engineImpl;
-					return engineImpl;
-				}
-			}
-		throw new IllegalStateException("Engine already initialized");
-	}
-
-	public abstract void shutdown() throws InterruptedException, IOException;
-
-	/**
-	 * The clients must override the execute method of this class then submit
-	 * the TransactionalOperation instance(s). Each TransactionalOperation will
-	 * be executed inside a transaction. FIXME: make TO a functional iface ?
-	 */
-	public abstract class TransactionalOperation {
-
-		Transaction trans; // should be final ! make sure it's thread confined
-
-		// =====================================================================
-		// TransactionalOperation API
-		// =====================================================================
-		public abstract <L> L execute() throws TransactionFailedException;
-
-		public final Record<K, V> lookup(K key, DBLock e)
-				throws TransactionFailedException {
-			return Engine.this.lookup(trans, key, e);
-		}
-
-		public final Record<K, V> insert(Record<K, V> record)
-				throws TransactionFailedException {
-			return Engine.this.insert(trans, record);
-		}
-
-		public final void delete(K in, DBLock e)
-				throws TransactionFailedException {
-			Engine.this.delete(trans, in, e);
-		}
-
-		/** ONLY FOR DEBUG */
-		protected final void print(DBLock el) throws TransactionFailedException {
-			try {
-				Engine.this.print(trans, el);
-			} catch (IOException | InterruptedException e) {
-				throw new TransactionFailedException(e);
-			}
-		}
-
-		/** ONLY FOR DEBUG */
-		protected final void insertIndex(Record<K, Integer> rec)
-				throws TransactionFailedException {
-			try {
-				Engine.this.insertIndex(trans, rec);
-			} catch (IOException | InterruptedException e) {
-				throw new TransactionFailedException(e);
-			}
-		}
-
-		// =====================================================================
-		// Package private - Transaction management
-		// =====================================================================
-		final void init() {
-			trans = beginTransaction();
-		}
-
-		final void endTransaction() {
-			Engine.this.endTransaction(trans);
-		}
-
-		final void abort() throws TransactionFailedException {
-			Engine.this.abort(trans);
-		}
-
-		final void commit() throws TransactionFailedException {
-			Engine.this.commit(trans);
-		}
-	}
-
-	public static final class TransactionFailedException extends Exception {
-
-		private static final long serialVersionUID = -4298165326203675694L;
-
-		public TransactionFailedException(Exception e) {
-			super("Transaction operation failed", e);
-		}
-	}
-
-	// =========================================================================
-	// Abstract Package private methods - Delegate to Engine implementation
-	// =========================================================================
-	abstract Transaction beginTransaction();
-
-	abstract Record<K, V> lookup(Transaction tr, K key, DBLock el)
-			throws TransactionFailedException; // TODO boolean lookup
-
-	abstract Record<K, V> insert(Transaction tr, Record<K, V> record)
-			throws TransactionFailedException;
-
-	abstract void delete(Transaction tr, K key, DBLock el)
-			throws TransactionFailedException;
-
-	abstract void waitTransaction(Transaction tr, long time)
-			throws InterruptedException;
-
-	abstract void commit(Transaction tr) throws TransactionFailedException;
-
-	abstract void abort(Transaction tr) throws TransactionFailedException;
-
-	abstract void endTransaction(Transaction tr);
-
-	// Record<K,V> update(T key);
-	// List<Record<K,V>> range(T key1, T key2);
-	// File bulk_load(File fileOfRecords);
-	// File bulk_delete(File fileOfKeys);
-	// =========================================================================
-	// Abstract debug methods
-	// =========================================================================
-	/** ONLY FOR DEBUG */
-	public abstract void deleteIndex(Transaction tr, K rec) throws IOException,
-			InterruptedException;
-
-	/** ONLY FOR DEBUG */
-	public abstract void print();
-
-	/** ONLY FOR DEBUG */
-	public abstract void insertIndex(Transaction tr, Record<K, Integer> rec)
-			throws IOException, InterruptedException;
-
-	/** ONLY FOR DEBUG _ WILL LOCK THE WHOLE TREE */
-	public abstract void print(Transaction tr, DBLock e) throws IOException,
-			InterruptedException;
-}
-
-final class EngineImpl<K extends Comparable<K>, V> extends Engine<K, V> {
-
-	private static final String DB_FILE = "db.db";
-	private static final String INDEX_FILE = "index.db";
-	private final CCM ccm;
-	private final DataFile<K, V> dataFile;
-	private final Index<K, Integer> index;
-
-	EngineImpl(Serializer<K> serKey, Serializer<V> serVal/* TODO in heap */) {
-		this.ccm = CCMImpl.instance();
-		String opening = DB_FILE;
-		try {
-			dataFile = DataFile.init(opening, serKey, serVal);
-			opening = INDEX_FILE;
-			index = new DiskIndex<>(new IndexDiskFile(opening), serKey,
-				IntegerSerializer.INSTANCE);
-			System.out.println("ENGINE INITIALIZED");
-		} catch (IOException | InterruptedException e) {
-			throw new RuntimeException("Can't open " + opening + " file", e);
-		}
-	}
-
-	@Override
-	public <L> Future<L> submit(Engine<K, V>.TransactionalOperation to) {
-		return ccm.submit(to);
-	}
-
-	@Override
-	public <L> List<Future<L>> submitAll(
-			Collection<Engine<K, V>.TransactionalOperation> to)
-			throws InterruptedException {
-		return ccm.submitAll(to);
-	}
-
-	@Override
-	public void shutdown() throws InterruptedException, IOException {
-		ccm.shutdown();
-		dataFile.close();
-	}
-
-	// =========================================================================
-	// Package private - Delegates to CCM
-	// =========================================================================
-	@Override
-	Transaction beginTransaction() {
-		return ccm.beginTransaction();
-	}
-
-	@Override
-	Record<K, V> lookup(Transaction tr, K key, DBLock el)
-			throws TransactionFailedException {
-		return ccm.lookup(tr, key, el, dataFile, index);
-	}
-
-	@Override
-	Record<K, V> insert(Transaction tr, Record<K, V> record)
-			throws TransactionFailedException {
-		return ccm.insert(tr, record, dataFile, index);
-	}
-
-	@Override
-	void delete(Transaction tr, K key, DBLock el)
-			throws TransactionFailedException {
-		ccm.delete(tr, key, el, dataFile, index);
-	}
-
-	@Override
-	void waitTransaction(Transaction tr, long time) throws InterruptedException {
-		Thread.sleep(time); // FIXME disallow waits after commit/abort
-	}
-
-	@Override
-	void commit(Transaction tr) throws TransactionFailedException {
-		ccm.commit(tr, dataFile, index);
-	}
-
-	@Override
-	void abort(Transaction tr) throws TransactionFailedException {
-		ccm.abort(tr, dataFile, index);
-	}
-
-	@Override
-	void endTransaction(Transaction tr) {
-		ccm.endTransaction(tr);
-	}
-
-	// =========================================================================
-	// Debug
-	// =========================================================================
-	@Override
-	public void print(Transaction tr, DBLock e) throws IOException,
-			InterruptedException {
-		((DiskIndex<K, Integer>) index).print(tr, e);
-	}
-
-	@Override
-	public void print() {
-		((IndexJava<K, Integer>) index).print();
-	}
-
-	@Override
-	public void insertIndex(Transaction tr, Record<K, Integer> rec)
-			throws IOException, InterruptedException {
-		index.insert(tr, rec);
-	}
-
-	@Override
-	public void deleteIndex(Transaction tr, K key) throws IOException,
-			InterruptedException {
-		index.delete(tr, key);
-	}
-}
+package gr.uoa.di.mde515.engine;
+
+import gr.uoa.di.mde515.engine.buffer.BufferManager;
+import gr.uoa.di.mde515.engine.buffer.BufferManager.ReplacementAlgorithm;
+import gr.uoa.di.mde515.engine.buffer.IntegerSerializer;
+import gr.uoa.di.mde515.engine.buffer.Serializer;
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.files.DataFile;
+import gr.uoa.di.mde515.files.DiskFile;
+import gr.uoa.di.mde515.files.IndexDiskFile;
+import gr.uoa.di.mde515.index.DiskIndex;
+import gr.uoa.di.mde515.index.Index;
+import gr.uoa.di.mde515.index.IndexJava;
+import gr.uoa.di.mde515.index.Record;
+import gr.uoa.di.mde515.locks.DBLock;
+import gr.uoa.di.mde515.locks.LockManager;
+import gr.uoa.di.mde515.locks.LockManager.DeadlockPolicy;
+import gr.uoa.di.mde515.locks.LockManager.VictimPolicy;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents the DB external interface. It is a monofilestic engine but can be
+ * extended to handle more files, by making the methods instead of the class
+ * generic (for added complexity). The single file has a single (dense) index.
+ * The pages of the files are stamped with an integer id, unique in their file,
+ * and told apart across files by their address (see
+ * {@link DiskFile#address(int)}). Should be an interface implemented by enums (for
+ * singleton property) but with the addition of a static factory (TODO: java 8
+ * ?). <br/>
+ * preAlpha<br/>
+ * FIXME: The current Heap file implementation expects Integers (there are casts
+ * that will blow if not) - generify
+ *
+ * @param <K>
+ *            the key type of the records in the one and only one file. Must
+ *            extend {@link Comparable}
+ * @param <V>
+ *            the type of the records value - that is all the attributes except
+ *            the key. No restrictions here.
+ */
+public abstract class Engine<K extends Comparable<K>, V> {
+
+	// TODO fix this mess - proper factory - java 8 ?
+	private static volatile Engine<?, ?> instance;
+	private final static Object HACK = new Object();
+
+	// =========================================================================
+	// Engine API
+	// =========================================================================
+	/**
+	 * Execute a TransactionalOperation in its own thread - the
+	 * TransactionalOperation instance is not to be reused afterwards. Takes
+	 * care of unlocking the locks held by the transaction.
+	 *
+	 * Implementation: calls submit on an {@link ExecutorService}
+	 *
+	 * @param to
+	 *            the TransactionalOperation to be executed
+	 * @return a Future with the {@link TransactionalOperation#execute()} result
+	 */
+	public abstract <L> Future<L> submit(TransactionalOperation to);
+
+	/**
+	 * Execute a collection TransactionalOperation
+	 * <em> each in its own thread</em>, as a separate transaction - the
+	 * TransactionalOperation instances are not to be reused afterwards. Takes
+	 * care of unlocking the locks held by the transaction.
+	 *
+	 * Implementation: calls {@link ExecutorService#invokeAll(Collection)} on an
+	 * ExecutorService.
+	 *
+	 * @param tos
+	 *            the Collection of the TransactionalOperation to be executed
+	 * @throws InterruptedException
+	 *             thrown by {@link ExecutorService#invokeAll(Collection)}
+	 */
+	public abstract <L> List<Future<L>> submitAll(
+			Collection<TransactionalOperation> tos) throws InterruptedException;
+
+	/**
+	 * As {@link #submitAll(Collection)} but the transactions not done within
+	 * {@code timeout} fail - see {@link TransactionalOperation#deadline}. Not
+	 * invokeAll(tasks, timeout, unit), which would interrupt the threads of
+	 * the transactions running late, maybe doing I/O - and an interrupted
+	 * FileChannel is closed.
+	 */
+	public abstract <L> List<Future<L>> submitAll(
+			Collection<TransactionalOperation> tos, long timeout, TimeUnit unit)
+			throws InterruptedException;
+
+	/** Returns an Engine with the default {@link Config} */
+	public static <K extends Comparable<K>, V> Engine<K, V> newInstance(
+			Serializer<K> serKey, Serializer<V> serVal) {
+		return newInstance(serKey, serVal, new Config());
+	}
+
+	public static <K extends Comparable<K>, V> Engine<K, V> newInstance(
+			Serializer<K> serKey, Serializer<V> serVal, Config conf) {
+		if (instance == null)
+			synchronized (HACK) {
+				if (instance == null) {
+					final EngineImpl<K, V> engineImpl = new EngineImpl<>(
+						serKey, serVal, conf);
+					instance = engineImpl;
+					return engineImpl;
+				}
+			}
+		throw new IllegalStateException("Engine already initialized");
+	}
+
+	public abstract void shutdown() throws InterruptedException, IOException;
+
+	/** The statistics of the engine since it started - a snapshot */
+	public abstract Stats getStats();
+
+	/**
+	 * The parameters of the Engine - all have defaults, so pass in a
+	 * {@code new Config()} and set only the ones of interest. The page size is
+	 * recorded in the header of the files and must match on reopening them.
+	 */
+	public static final class Config {
+
+		public static final int MIN_PAGE_SIZE = 48;
+		public static final int MAX_PAGE_SIZE = 32 * 1024;
+		public static final int DEFAULT_PAGE_SIZE = 4 * 1024;
+		public static final int DEFAULT_POOL_SIZE = 200;
+		public static final int DEFAULT_LOW_WATERMARK = 10;
+		public static final int DEFAULT_HIGH_WATERMARK = 30;
+		public static final int DEFAULT_THREADS = 1;
+		public static final long DEFAULT_CHECKPOINT_INTERVAL = 10000; // millis
+		public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 16 * 1024 * 1024;
+		public static final long DEFAULT_ASYNC_COMMIT_DELAY = 10; // millis
+		public static final long DEFAULT_DEADLOCK_INTERVAL = 100; // millis
+		public static final int DEFAULT_LOCK_ESCALATION = 1000; // pages
+		private int pageSize = DEFAULT_PAGE_SIZE;
+		private int poolSize = DEFAULT_POOL_SIZE;
+		private ReplacementAlgorithm replacement = ReplacementAlgorithm.CLOCK;
+		private boolean offHeap;
+		private DiskFile.Access access = DiskFile.Access.CHANNEL;
+		private long segmentSize; // 0 for unsegmented files
+		private int threads = DEFAULT_THREADS;
+		private long groupCommitWait; // micros
+		private int groupCommitBatch = LogManager.DEFAULT_MAX_BATCH;
+		private int lowWatermark = DEFAULT_LOW_WATERMARK;
+		private int highWatermark = DEFAULT_HIGH_WATERMARK;
+		private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		private long checkpointLogBytes = DEFAULT_CHECKPOINT_LOG_BYTES;
+		private boolean asyncCommit;
+		private long asyncCommitDelay = DEFAULT_ASYNC_COMMIT_DELAY;
+		private long deadlockInterval = DEFAULT_DEADLOCK_INTERVAL;
+		private VictimPolicy deadlockVictim = VictimPolicy.YOUNGEST;
+		private DeadlockPolicy deadlocks = DeadlockPolicy.DETECT;
+		private int lockEscalation = DEFAULT_LOCK_ESCALATION;
+
+		/**
+		 * The size of the pages of the files, in bytes - a multiple of 4 in
+		 * [{@value #MIN_PAGE_SIZE}, {@value #MAX_PAGE_SIZE}]. Use 4, 8, 16 or
+		 * 32K unless testing - small pages give trees of small fanout.
+		 */
+		public Config pageSize(int bytes) {
+			if (bytes < MIN_PAGE_SIZE || bytes > MAX_PAGE_SIZE || bytes % 4 != 0)
+				throw new IllegalArgumentException("Illegal page size " + bytes);
+			pageSize = bytes;
+			return this;
+		}
+
+		/** The number of frames in the buffer pool */
+		public Config poolSize(int frames) {
+			if (frames < 1)
+				throw new IllegalArgumentException("Illegal pool size " + frames);
+			poolSize = frames;
+			return this;
+		}
+
+		public Config replacement(ReplacementAlgorithm algorithm) {
+			if (algorithm == null) throw new NullPointerException();
+			replacement = algorithm;
+			return this;
+		}
+
+		/**
+		 * If true the frames of the pool are allocated off the java heap, in
+		 * direct memory - so a big pool does not burden the garbage collector.
+		 * The JVM must be allowed enough direct memory (see
+		 * -XX:MaxDirectMemorySize).
+		 */
+		public Config offHeap(boolean direct) {
+			offHeap = direct;
+			return this;
+		}
+
+		/**
+		 * How the database and index files are accessed - through their
+		 * FileChannel or memory mapped. Mapping the files makes the OS page
+		 * cache a second level of the buffer pool and lets scans read pages in
+		 * place - for databases that are mostly read.
+		 */
+		public Config access(DiskFile.Access how) {
+			if (how == null) throw new NullPointerException();
+			access = how;
+			return this;
+		}
+
+		/**
+		 * Splits the database and index files in segment files of
+		 * {@code bytes} (rounded down to whole pages) - {@code db.db},
+		 * {@code db.db.1} and so on - so they grow past the limits of the file
+		 * system and their I/O is spread over many files. 0 (the default) for
+		 * single files. Recorded in the file headers - must match on reopening
+		 * them.
+		 */
+		public Config segmentSize(long bytes) {
+			if (bytes < 0)
+				throw new IllegalArgumentException("Illegal segment size "
+					+ bytes);
+			segmentSize = bytes;
+			return this;
+		}
+
+		/**
+		 * The number of threads executing the submitted transactions - and so
+		 * of the transactions that may run, and commit, concurrently.
+		 */
+		public Config threads(int n) {
+			if (n < 1)
+				throw new IllegalArgumentException("Illegal threads " + n);
+			threads = n;
+			return this;
+		}
+
+		/**
+		 * Concurrent commits share the forces of the log (see
+		 * {@link LogManager}) - the first to commit waits up to
+		 * {@code maxWaitMicros} for up to {@code maxBatch} commits to join
+		 * it. No wait by default - commits arriving while the log is forced
+		 * still form groups.
+		 */
+		public Config groupCommit(long maxWaitMicros, int maxBatch) {
+			if (maxWaitMicros < 0 || maxBatch < 1)
+				throw new IllegalArgumentException("Illegal group commit "
+					+ maxWaitMicros + "us, " + maxBatch);
+			groupCommitWait = maxWaitMicros;
+			groupCommitBatch = maxBatch;
+			return this;
+		}
+
+		/**
+		 * The dirty pages are written back by a background cleaner - it starts
+		 * writing when more than {@code high} percent of the frames are dirty
+		 * and stops when no more than {@code low} percent are.
+		 */
+		public Config cleanerWatermarks(int low, int high) {
+			if (low < 0 || low > high || high > 100)
+				throw new IllegalArgumentException("Illegal watermarks " + low
+					+ ", " + high);
+			lowWatermark = low;
+			highWatermark = high;
+			return this;
+		}
+
+		/**
+		 * A fuzzy checkpoint is taken every {@code intervalMillis} or once
+		 * {@code logBytes} were logged since the last one, whichever comes
+		 * first - 0 to turn either off. The log is truncated to about the
+		 * last two checkpoints, which bounds the log replayed on restart. See
+		 * {@link LogManager#checkpoint}.
+		 */
+		public Config checkpoint(long intervalMillis, long logBytes) {
+			if (intervalMillis < 0 || logBytes < 0)
+				throw new IllegalArgumentException("Illegal checkpoint "
+					+ intervalMillis + "ms, " + logBytes + " bytes");
+			checkpointInterval = intervalMillis;
+			checkpointLogBytes = logBytes;
+			return this;
+		}
+
+		/**
+		 * Transactions committing asynchronously (see
+		 * {@link TransactionalOperation#durable(boolean)}) return once their
+		 * commit record is appended to the log - it is forced in the
+		 * background within {@code maxDelayMillis}. If {@code byDefault} all
+		 * transactions commit asynchronously unless they ask otherwise.
+		 */
+		public Config asyncCommit(boolean byDefault, long maxDelayMillis) {
+			if (maxDelayMillis < 0)
+				throw new IllegalArgumentException("Illegal async commit delay "
+					+ maxDelayMillis + "ms");
+			asyncCommit = byDefault;
+			asyncCommitDelay = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * The transactions waiting for locks are checked for deadlocks every
+		 * {@code intervalMillis} - 0 to turn detection off. One transaction
+		 * per deadlock cycle, chosen by {@code victim}, fails and is aborted.
+		 */
+		public Config deadlockDetection(long intervalMillis,
+				VictimPolicy victim) {
+			if (victim == null) throw new NullPointerException();
+			if (intervalMillis < 0)
+				throw new IllegalArgumentException("Illegal deadlock interval "
+					+ intervalMillis + "ms");
+			deadlockInterval = intervalMillis;
+			deadlockVictim = victim;
+			return this;
+		}
+
+		/**
+		 * Deadlocks are detected by default (see {@link #deadlockDetection})
+		 * - or prevented, by wait-die or wound-wait on the ids of the
+		 * transactions, aborting some transactions that would not deadlock
+		 * but keeping no wait-for graph. See {@link DeadlockPolicy}.
+		 */
+		public Config deadlocks(DeadlockPolicy policy) {
+			if (policy == null) throw new NullPointerException();
+			deadlocks = policy;
+			return this;
+		}
+
+		/**
+		 * A transaction locking more than {@code pages} pages of a file locks
+		 * the whole file instead, S or E, and releases the page locks - 0
+		 * never. See {@link Transaction#lock}.
+		 */
+		public Config lockEscalation(int pages) {
+			if (pages < 0)
+				throw new IllegalArgumentException("Illegal lock escalation "
+					+ pages + " pages");
+			lockEscalation = pages;
+			return this;
+		}
+
+		public int getPageSize() {
+			return pageSize;
+		}
+
+		public int getPoolSize() {
+			return poolSize;
+		}
+
+		public ReplacementAlgorithm getReplacement() {
+			return replacement;
+		}
+
+		public boolean isOffHeap() {
+			return offHeap;
+		}
+
+		public DiskFile.Access getAccess() {
+			return access;
+		}
+
+		public long getSegmentSize() {
+			return segmentSize;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public long getGroupCommitWait() {
+			return groupCommitWait;
+		}
+
+		public int getGroupCommitBatch() {
+			return groupCommitBatch;
+		}
+
+		/**
+		 * The number of blocks in a segment - {@link DiskFile#UNSEGMENTED}
+		 * if not segmented
+		 */
+		public int getSegmentBlocks() {
+			if (segmentSize == 0) return DiskFile.UNSEGMENTED;
+			final long blocks = segmentSize / pageSize;
+			if (blocks < 2)
+				throw new IllegalArgumentException("Segments of "
+					+ segmentSize + " bytes are too small for pages of "
+					+ pageSize);
+			return (int) Math.min(blocks, DiskFile.UNSEGMENTED);
+		}
+
+		public int getLowWatermark() {
+			return lowWatermark;
+		}
+
+		public int getHighWatermark() {
+			return highWatermark;
+		}
+
+		public long getCheckpointInterval() {
+			return checkpointInterval;
+		}
+
+		public long getCheckpointLogBytes() {
+			return checkpointLogBytes;
+		}
+
+		public boolean isAsyncCommit() {
+			return asyncCommit;
+		}
+
+		public long getAsyncCommitDelay() {
+			return asyncCommitDelay;
+		}
+
+		public long getDeadlockInterval() {
+			return deadlockInterval;
+		}
+
+		public VictimPolicy getDeadlockVictim() {
+			return deadlockVictim;
+		}
+
+		public DeadlockPolicy getDeadlocks() {
+			return deadlocks;
+		}
+
+		public int getLockEscalation() {
+			return lockEscalation;
+		}
+	}
+
+	/**
+	 * What the engine did since it started - the recovery, the checkpoints and
+	 * the log. A snapshot, taken by {@link Engine#getStats()}. Durations in
+	 * nanoseconds.
+	 */
+	public static final class Stats {
+
+		private final long recoveryNanos;
+		private final int recovered;
+		private final long checkpoints;
+		private final long checkpointNanos;
+		private final long lastCheckpointNanos;
+		private final long redoLsn;
+		private final long commits;
+		private final double averageGroupSize;
+		private final long asyncCommits;
+		private final long steals;
+		private final long systemChanges;
+		private final long logSize;
+
+		Stats(LogManager log, Checkpointer checkpointer) {
+			recoveryNanos = log.getRecoveryNanos();
+			recovered = log.getRecovered();
+			checkpoints = checkpointer.getCheckpoints();
+			checkpointNanos = checkpointer.getCheckpointNanos();
+			lastCheckpointNanos = checkpointer.getLastCheckpointNanos();
+			redoLsn = checkpointer.getRedoLsn();
+			commits = log.getCommits();
+			averageGroupSize = log.getAverageGroupSize();
+			asyncCommits = log.getAsyncCommits();
+			steals = log.getSteals();
+			systemChanges = log.getSystemChanges();
+			logSize = log.getSize();
+		}
+
+		/** The time it took to recover from the log on opening */
+		public long getRecoveryNanos() {
+			return recoveryNanos;
+		}
+
+		/** The transactions redone by the recovery */
+		public int getRecovered() {
+			return recovered;
+		}
+
+		public long getCheckpoints() {
+			return checkpoints;
+		}
+
+		/** The time spent in all the checkpoints */
+		public long getCheckpointNanos() {
+			return checkpointNanos;
+		}
+
+		/** The time the last checkpoint took - 0 if none */
+		public long getLastCheckpointNanos() {
+			return lastCheckpointNanos;
+		}
+
+		/** The redo point of the last checkpoint - -1 if none */
+		public long getRedoLsn() {
+			return redoLsn;
+		}
+
+		public long getCommits() {
+			return commits;
+		}
+
+		/** The average number of commits sharing a force of the log */
+		public double getAverageGroupSize() {
+			return averageGroupSize;
+		}
+
+		public long getAsyncCommits() {
+			return asyncCommits;
+		}
+
+		/** The pages stolen by the transactions in progress */
+		public long getSteals() {
+			return steals;
+		}
+
+		/** The changes to pages logged outside of the transactions */
+		public long getSystemChanges() {
+			return systemChanges;
+		}
+
+		public long getLogSize() {
+			return logSize;
+		}
+
+		@Override
+		public String toString() {
+			return "Recovery: " + recovered + " transactions redone in "
+				+ TimeUnit.NANOSECONDS.toMillis(recoveryNanos)
+				+ " ms, checkpoints: " + checkpoints + " in "
+				+ TimeUnit.NANOSECONDS.toMillis(checkpointNanos)
+				+ " ms (last redo LSN " + redoLsn + "), log: " + commits
+				+ " commits, " + averageGroupSize + " per group on average, "
+				+ asyncCommits + " asynchronous, " + steals
+				+ " pages stolen, " + systemChanges + " system changes, "
+				+ logSize + " bytes";
+		}
+	}
+
+	/**
+	 * The clients must override the execute method of this class then submit
+	 * the TransactionalOperation instance(s). Each TransactionalOperation will
+	 * be executed inside a transaction. FIXME: make TO a functional iface ?
+	 */
+	public abstract class TransactionalOperation {
+
+		Transaction trans; // should be final ! make sure it's thread confined
+		private Boolean durable; // null for the default of the Engine
+		private Long deadline; // System.nanoTime() - null if none
+
+		// =====================================================================
+		// TransactionalOperation API
+		// =====================================================================
+		public abstract <L> L execute() throws TransactionFailedException;
+
+		public final Record<K, V> lookup(K key, DBLock e)
+				throws TransactionFailedException {
+			return Engine.this.lookup(trans, key, e);
+		}
+
+		public final Record<K, V> insert(Record<K, V> record)
+				throws TransactionFailedException {
+			return Engine.this.insert(trans, record);
+		}
+
+		public final void delete(K in, DBLock e)
+				throws TransactionFailedException {
+			Engine.this.delete(trans, in, e);
+		}
+
+		/** The records with keys in [key1, key2] in key order */
+		public final List<Record<K, V>> range(K key1, K key2)
+				throws TransactionFailedException {
+			return Engine.this.range(trans, key1, key2);
+		}
+
+		/**
+		 * All the records, in file order - does not wipe the buffer pool, but
+		 * keeps writers out till the transaction ends
+		 */
+		public final List<Record<K, V>> scan()
+				throws TransactionFailedException {
+			return Engine.this.scan(trans);
+		}
+
+		/**
+		 * If false the transaction commits asynchronously - the Future of
+		 * submit completes once its commit record is appended to the log,
+		 * which is forced in the background (see {@link Config#asyncCommit}).
+		 * A crash may then lose it, along with the transactions committed
+		 * after it - but it is never partly applied. Call before submitting.
+		 * Defaults to the Config.
+		 */
+		public final TransactionalOperation durable(boolean durable) {
+			this.durable = durable;
+			return this;
+		}
+
+		/**
+		 * The transaction fails unless done within {@code timeout} from now -
+		 * time spent queued for a thread included. Waits for locks and for
+		 * frames of the buffer pool are timed, and each operation checks the
+		 * deadline before it starts - past it the transaction is aborted and
+		 * the {@link TransactionFailedException} has a
+		 * {@link TransactionTimeoutException} as its cause. I/O in progress
+		 * is not interrupted. Call before submitting.
+		 */
+		public final TransactionalOperation deadline(long timeout,
+				TimeUnit unit) {
+			if (timeout < 0)
+				throw new IllegalArgumentException("Illegal timeout "
+					+ timeout);
+			deadline = System.nanoTime() + unit.toNanos(timeout);
+			return this;
+		}
+
+		/** ONLY FOR DEBUG */
+		protected final void print(DBLock el) throws TransactionFailedException {
+			try {
+				Engine.this.print(trans, el);
+			} catch (IOException | InterruptedException e) {
+				throw new TransactionFailedException(e);
+			}
+		}
+
+		/** ONLY FOR DEBUG */
+		protected final void insertIndex(Record<K, Integer> rec)
+				throws TransactionFailedException {
+			try {
+				Engine.this.insertIndex(trans, rec);
+			} catch (IOException | InterruptedException e) {
+				throw new TransactionFailedException(e);
+			}
+		}
+
+		// =====================================================================
+		// Package private - Transaction management
+		// =====================================================================
+		final void init() {
+			trans = beginTransaction();
+			if (durable != null) trans.setDurable(durable);
+			if (deadline != null) trans.setDeadline(deadline);
+		}
+
+		final void endTransaction() {
+			Engine.this.endTransaction(trans);
+		}
+
+		final void abort() throws TransactionFailedException {
+			Engine.this.abort(trans);
+		}
+
+		final void commit() throws TransactionFailedException {
+			Engine.this.commit(trans);
+		}
+	}
+
+	public static final class TransactionFailedException extends Exception {
+
+		private static final long serialVersionUID = -4298165326203675694L;
+
+		public TransactionFailedException(Exception e) {
+			super("Transaction operation failed", e);
+		}
+	}
+
+	// =========================================================================
+	// Abstract Package private methods - Delegate to Engine implementation
+	// =========================================================================
+	abstract Transaction beginTransaction();
+
+	abstract Record<K, V> lookup(Transaction tr, K key, DBLock el)
+			throws TransactionFailedException; // TODO boolean lookup
+
+	abstract Record<K, V> insert(Transaction tr, Record<K, V> record)
+			throws TransactionFailedException;
+
+	abstract void delete(Transaction tr, K key, DBLock el)
+			throws TransactionFailedException;
+
+	abstract List<Record<K, V>> range(Transaction tr, K key1, K key2)
+			throws TransactionFailedException;
+
+	abstract List<Record<K, V>> scan(Transaction tr)
+			throws TransactionFailedException;
+
+	abstract void waitTransaction(Transaction tr, long time)
+			throws InterruptedException;
+
+	abstract void commit(Transaction tr) throws TransactionFailedException;
+
+	abstract void abort(Transaction tr) throws TransactionFailedException;
+
+	abstract void endTransaction(Transaction tr);
+
+	// Record<K,V> update(T key);
+	// File bulk_load(File fileOfRecords);
+	// File bulk_delete(File fileOfKeys);
+	// =========================================================================
+	// Abstract debug methods
+	// =========================================================================
+	/** ONLY FOR DEBUG */
+	public abstract void deleteIndex(Transaction tr, K rec) throws IOException,
+			InterruptedException;
+
+	/** ONLY FOR DEBUG */
+	public abstract void print();
+
+	/** ONLY FOR DEBUG */
+	public abstract void insertIndex(Transaction tr, Record<K, Integer> rec)
+			throws IOException, InterruptedException;
+
+	/** ONLY FOR DEBUG _ WILL LOCK THE WHOLE TREE */
+	public abstract void print(Transaction tr, DBLock e) throws IOException,
+			InterruptedException;
+}
+
+final class EngineImpl<K extends Comparable<K>, V> extends Engine<K, V> {
+
+	private static final String DB_FILE = "db.db";
+	private static final String INDEX_FILE = "index.db";
+	private static final String LOG_FILE = "db.log";
+	private final CCM ccm;
+	private final DataFile<K, V> dataFile;
+	private final Index<K, Integer> index;
+	private final LogManager log = LogManager.getInstance();
+	private final Checkpointer checkpointer;
+	private final boolean asyncCommit;
+
+	EngineImpl(Serializer<K> serKey, Serializer<V> serVal/* TODO in heap */,
+			Config conf) {
+		this.ccm = CCMImpl.instance();
+		CCMImpl.INSTANCE.setThreads(conf.getThreads());
+		asyncCommit = conf.isAsyncCommit();
+		final int pageSize = conf.getPageSize();
+		final BufferManager buf = BufferManager.getInstance();
+		buf.init(pageSize, conf.getPoolSize(), conf.getReplacement(),
+			conf.isOffHeap());
+		buf.startCleaner(conf.getLowWatermark(), conf.getHighWatermark());
+		String opening = DB_FILE;
+		try {
+			final DiskFile db = new DiskFile(opening, pageSize,
+				conf.getAccess(), conf.getSegmentBlocks());
+			opening = INDEX_FILE;
+			final IndexDiskFile indexFile = new IndexDiskFile(opening,
+				pageSize, conf.getAccess(), conf.getSegmentBlocks());
+			opening = LOG_FILE;
+			final Map<String, DiskFile> files = new HashMap<>();
+			files.put(db.getPath(), db);
+			files.put(indexFile.getPath(), indexFile);
+			log.groupCommit(conf.getGroupCommitWait(),
+				conf.getGroupCommitBatch());
+			log.asyncCommit(conf.getAsyncCommitDelay());
+			log.open(opening);
+			log.recover(files); // before any page is read
+			dataFile = DataFile.init(db, serKey, serVal);
+			index = new DiskIndex<>(indexFile, serKey,
+				IntegerSerializer.INSTANCE);
+			checkpointer = new Checkpointer(conf.getCheckpointInterval(),
+				conf.getCheckpointLogBytes(), files.values());
+			checkpointer.start();
+			final LockManager lm = LockManager.getInstance();
+			lm.setDeadlockPolicy(conf.getDeadlocks());
+			lm.setEscalation(conf.getLockEscalation());
+			if (conf.getDeadlocks() == DeadlockPolicy.DETECT)
+				lm.startDetector(conf.getDeadlockInterval(),
+					conf.getDeadlockVictim());
+			System.out.println("ENGINE INITIALIZED");
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException("Can't open " + opening + " file", e);
+		}
+	}
+
+	@Override
+	public <L> Future<L> submit(Engine<K, V>.TransactionalOperation to) {
+		return ccm.submit(to);
+	}
+
+	@Override
+	public <L> List<Future<L>> submitAll(
+			Collection<Engine<K, V>.TransactionalOperation> to)
+			throws InterruptedException {
+		return ccm.submitAll(to);
+	}
+
+	@Override
+	public <L> List<Future<L>> submitAll(
+			Collection<Engine<K, V>.TransactionalOperation> to, long timeout,
+			TimeUnit unit) throws InterruptedException {
+		for (Engine<K, V>.TransactionalOperation op : to)
+			op.deadline(timeout, unit);
+		return ccm.submitAll(to);
+	}
+
+	@Override
+	public void shutdown() throws InterruptedException, IOException {
+		ccm.shutdown();
+		LockManager.getInstance().stopDetector();
+		checkpointer.shutdown();
+		BufferManager.getInstance().shutdown(); // write back the dirty pages
+		dataFile.close();
+		index.close();
+		log.truncate(); // the files are forced on close
+		log.close();
+	}
+
+	@Override
+	public Stats getStats() {
+		return new Stats(log, checkpointer);
+	}
+
+	// =========================================================================
+	// Package private - Delegates to CCM
+	// =========================================================================
+	@Override
+	Transaction beginTransaction() {
+		final Transaction tr = ccm.beginTransaction();
+		tr.setDurable(!asyncCommit);
+		return tr;
+	}
+
+	@Override
+	Record<K, V> lookup(Transaction tr, K key, DBLock el)
+			throws TransactionFailedException {
+		return ccm.lookup(tr, key, el, dataFile, index);
+	}
+
+	@Override
+	Record<K, V> insert(Transaction tr, Record<K, V> record)
+			throws TransactionFailedException {
+		return ccm.insert(tr, record, dataFile, index);
+	}
+
+	@Override
+	void delete(Transaction tr, K key, DBLock el)
+			throws TransactionFailedException {
+		ccm.delete(tr, key, el, dataFile, index);
+	}
+
+	@Override
+	List<Record<K, V>> range(Transaction tr, K key1, K key2)
+			throws TransactionFailedException {
+		return ccm.range(tr, key1, key2, dataFile, index);
+	}
+
+	@Override
+	List<Record<K, V>> scan(Transaction tr) throws TransactionFailedException {
+		return ccm.scan(tr, dataFile);
+	}
+
+	@Override
+	void waitTransaction(Transaction tr, long time) throws InterruptedException {
+		Thread.sleep(time); // FIXME disallow waits after commit/abort
+	}
+
+	@Override
+	void commit(Transaction tr) throws TransactionFailedException {
+		ccm.commit(tr, dataFile, index);
+	}
+
+	@Override
+	void abort(Transaction tr) throws TransactionFailedException {
+		ccm.abort(tr, dataFile, index);
+	}
+
+	@Override
+	void endTransaction(Transaction tr) {
+		ccm.endTransaction(tr);
+	}
+
+	// =========================================================================
+	// Debug
+	// =========================================================================
+	@Override
+	public void print(Transaction tr, DBLock e) throws IOException,
+			InterruptedException {
+		((DiskIndex<K, Integer>) index).print(tr, e);
+	}
+
+	@Override
+	public void print() {
+		((IndexJava<K, Integer>) index).print();
+	}
+
+	@Override
+	public void insertIndex(Transaction tr, Record<K, Integer> rec)
+			throws IOException, InterruptedException {
+		index.insert(tr, rec);
+	}
+
+	@Override
+	public void deleteIndex(Transaction tr, K key) throws IOException,
+			InterruptedException {
+		index.delete(tr, key);
+	}
+}
@@ -1,220 +1,467 @@
-package gr.uoa.di.mde515.engine;
-
-import gr.uoa.di.mde515.files.DataFile;
-import gr.uoa.di.mde515.index.Index;
-import gr.uoa.di.mde515.locks.DBLock;
-import gr.uoa.di.mde515.locks.LockManager;
-
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.EnumMap;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicLong;
-
-public final class Transaction {
-
-	private static final AtomicLong transactionId;
-	private static final LockManager lm = LockManager.getInstance();
-	private final long threadId; // not really needed FIXME
-	private final String threadName;
-	// TODO merge below two maps
-	private final EnumMap<DBLock, List<Integer>> lockedDataPages = new EnumMap<>(
-		DBLock.class);
-	private final EnumMap<DBLock, List<Integer>> lockedIndexPages = new EnumMap<>(
-		DBLock.class);
-	private final long transId; // TODO Random unique trans identifier? see:
-	// http://www.javapractices.com/topic/TopicAction.do?Id=56
-	// http://bugs.java.com/view_bug.do?bug_id=6611830
-	// http://stackoverflow.com/questions/7212635/is-java-util-uuid-thread-safe
-	private volatile State state;
-	static {
-		transactionId = new AtomicLong();
-	}
-
-	/* package private */Transaction() {
-		transId = transactionId.incrementAndGet();
-		threadId = Thread.currentThread().getId();
-		threadName = "Thread [" + threadId + "] for transaction " + transId;
-		Thread.currentThread().setName(threadName);
-		lockedDataPages.put(DBLock.E, new ArrayList<Integer>());
-		lockedDataPages.put(DBLock.S, new ArrayList<Integer>());
-		lockedIndexPages.put(DBLock.E, new ArrayList<Integer>());
-		lockedIndexPages.put(DBLock.S, new ArrayList<Integer>());
-		state = State.ACTIVE;
-		System.out.println(this + " INITIALIZED");
-	}
-
-	// =========================================================================
-	// API
-	// =========================================================================
-	/**
-	 * Tries to lock a page if not already locked. May block. Returns true if
-	 * the page was locked for the first time by this transaction or false if
-	 * the page was already locked. Used to update the pin count on the page
-	 * (one pin per transaction).
-	 *
-	 * @param pageID
-	 *            the pageId to be locked
-	 * @param lock
-	 *            the type of lock
-	 * @return true if the page was locked for the first time by this
-	 *         transaction, false otherwise
-	 * @throws InterruptedException
-	 *             if the thread is interrupted while blocked waiting for the
-	 *             lock
-	 */
-	public boolean lock(int pageID, DBLock lock) throws InterruptedException {
-		state = state.transition(State.ACTIVE);
-		for (Entry<DBLock, List<Integer>> entries : lockedDataPages.entrySet()) {
-			if (entries.getKey() != lock && entries.getValue().contains(pageID))
-				throw new IllegalStateException("You already hold a "
-					+ entries.getKey() + " lock for page " + pageID
-					+ ". You can't acquire a " + lock + " lock.");
-		}
-		for (Entry<DBLock, List<Integer>> entries : lockedIndexPages.entrySet()) {
-			if (entries.getKey() != lock && entries.getValue().contains(pageID))
-				throw new IllegalStateException("You already hold a "
-					+ entries.getKey() + " lock for page " + pageID
-					+ ". You can't acquire a " + lock + " lock.");
-		}
-		if (!lockedDataPages.get(lock).contains(pageID)
-			&& !lockedIndexPages.get(lock).contains(pageID)) {
-			lm.requestLock(new LockManager.Request(pageID, this, lock));
-			addLockedDataPage(pageID, lock);
-			return true;
-		}
-		return false;
-	}
-
-	// =========================================================================
-	// Package private
-	// =========================================================================
-	void validateThread() {
-		final long id = Thread.currentThread().getId();
-		final String name = Thread.currentThread().getName();
-		if (id != threadId || !name.equals(threadName)) {
-			throw new IllegalStateException("Calling thread (" + id + ": "
-				+ name + ") is not owner of transaction with id " + transId);
-		}
-	}
-
-	<K extends Comparable<K>, V> void commit(final DataFile<K, V> dataFile,
-			final Index<K, ?> index) throws IOException {
-		System.out.println(this + " flushing " + lockedDataPages
-			+ lockedIndexPages);
-		state = state.transition(State.COMMITING);
-		for (List<Integer> list : lockedDataPages.values())
-			dataFile.flush(list);
-		for (List<Integer> list : lockedIndexPages.values())
-			index.flush(list);
-	}
-
-	<K extends Comparable<K>, V> void abort(final DataFile<K, V> dataFile,
-			final Index<K, ?> index) throws IOException {
-		System.out.println(this + " aborting " + lockedDataPages
-			+ lockedIndexPages);
-		state = state.transition(State.ABORTING);
-		for (List<Integer> list : lockedDataPages.values())
-			dataFile.abort(list);
-		for (List<Integer> list : lockedIndexPages.values())
-			index.abort(list);
-	}
-
-	void end() {
-		state = state.transition(State.ENDING);
-		for (Entry<DBLock, List<Integer>> entries : lockedDataPages.entrySet()) {
-			for (int pid : entries.getValue()) {
-				lm.unlock(this, pid);
-			}
-		}
-		for (Entry<DBLock, List<Integer>> entries : lockedIndexPages.entrySet()) {
-			for (int pid : entries.getValue()) {
-				lm.unlock(this, pid);
-			}
-		}
-	}
-
-	// =========================================================================
-	// Helpers
-	// =========================================================================
-	private void addLockedDataPage(int pageId, DBLock lock) {
-		// if (!(pageId.getId() instanceof Integer)) return; // FIXME horrible
-		// hack - actually the pageId may wrap a node at this stage
-		// System.out.println("ADDED " + id);
-		if (pageId >= 0) lockedDataPages.get(lock).add(pageId); // FIXME hack2
-		// I should have one map for each file and pass it as param to add
-		else lockedIndexPages.get(lock).add(pageId);
-	}
-
-	private enum State {
-		ACTIVE, COMMITING, ABORTING, ENDING;
-
-		/**
-		 * Meant to allow ACTIVE > COMMIT (once) or ABORT (many) > ENDING.
-		 *
-		 * @param next
-		 *            the next state
-		 * @throws IllegalTransitionException
-		 *             if above does not hold
-		 */
-		State transition(State next) throws IllegalTransitionException {
-			switch (this) {
-			case ACTIVE:
-				if (next == ENDING)
-					throw new IllegalTransitionException(this + " to " + next);
-				return next;
-			case COMMITING:
-				if (next == ACTIVE || next == this) // call commit once
-					throw new IllegalTransitionException(this + " to " + next);
-				return next; // can call abort from commit (commit failed)
-			case ABORTING:
-				if (next == ACTIVE || next == COMMITING)
-					throw new IllegalTransitionException(this + " to " + next);
-				return next;
-			default:
-				throw new IllegalTransitionException(this + " to " + next);
-			}
-		}
-
-		/** TODO make into checked exception */
-		final class IllegalTransitionException extends RuntimeException {
-
-			private static final long serialVersionUID = -2944616043222631837L;
-
-			public IllegalTransitionException(String string) {
-				super(string);
-			}
-		}
-	}
-
-	// =========================================================================
-	// Object methods
-	// =========================================================================
-	@Override
-	public String toString() {
-		StringBuilder builder = new StringBuilder();
-		builder.append("Transaction [id=");
-		builder.append(transId);
-		builder.append("]");
-		return builder.toString();
-	}
-
-	@Override
-	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + (int) (transId ^ (transId >>> 32));
-		return result;
-	}
-
-	@Override
-	public boolean equals(Object obj) {
-		if (this == obj) return true;
-		if (obj == null) return false;
-		if (getClass() != obj.getClass()) return false;
-		Transaction other = (Transaction) obj;
-		if (transId != other.transId) return false;
-		return true;
-	}
-}
+package gr.uoa.di.mde515.engine;
+
+import gr.uoa.di.mde515.engine.buffer.BufferManager;
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.engine.log.PageUpdate;
+import gr.uoa.di.mde515.files.DataFile;
+import gr.uoa.di.mde515.files.DiskFile;
+import gr.uoa.di.mde515.index.Index;
+import gr.uoa.di.mde515.locks.DBLock;
+import gr.uoa.di.mde515.locks.LockManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class Transaction {
+
+	private static final AtomicLong transactionId;
+	private static final LockManager lm = LockManager.getInstance();
+	private static final BufferManager buf = BufferManager.getInstance();
+	private static final LogManager log = LogManager.getInstance();
+	private final long threadId; // not really needed FIXME
+	private final String threadName;
+	/**
+	 * the addresses of the pages locked and pinned - of all files. E: the
+	 * pages written (locked E, SIX or IX), S: the pages read.
+	 */
+	private final EnumMap<DBLock, List<Long>> lockedPages = new EnumMap<>(
+		DBLock.class);
+	/** the modes the files are locked in, by {@link DiskFile#fileAddress} */
+	private final Map<Long, DBLock> lockedFiles = new HashMap<>();
+	/**
+	 * the modes the pages are locked in, in the lock table - not the pages
+	 * the lock of their file covers
+	 */
+	private final Map<Long, DBLock> pageModes = new HashMap<>();
+	/** the records locked in the lock table - see DiskFile#recordAddress */
+	private final Map<Long, DBLock> lockedRecords = new HashMap<>();
+	/**
+	 * the pages and records locked in the lock table per file - counted for
+	 * escalation
+	 */
+	private final Map<Long, Integer> entries = new HashMap<>();
+	private final long transId; // TODO Random unique trans identifier? see:
+	// http://www.javapractices.com/topic/TopicAction.do?Id=56
+	// http://bugs.java.com/view_bug.do?bug_id=6611830
+	// http://stackoverflow.com/questions/7212635/is-java-util-uuid-thread-safe
+	private volatile State state;
+	/** false to commit asynchronously - see LogManager */
+	private boolean durable = true;
+	/** the System.nanoTime() the transaction times out at, if timed */
+	private long deadline;
+	private boolean timed;
+	static {
+		transactionId = new AtomicLong();
+	}
+
+	/* package private */Transaction() {
+		transId = transactionId.incrementAndGet();
+		threadId = Thread.currentThread().getId();
+		threadName = "Thread [" + threadId + "] for transaction " + transId;
+		Thread.currentThread().setName(threadName);
+		lockedPages.put(DBLock.E, new ArrayList<Long>());
+		lockedPages.put(DBLock.S, new ArrayList<Long>());
+		state = State.ACTIVE;
+		buf.attach(transId); // its pages may be stolen by its thread
+		System.out.println(this + " INITIALIZED");
+	}
+
+	// =========================================================================
+	// API
+	// =========================================================================
+	/**
+	 * Tries to lock a page if not already locked. May block. Returns true if
+	 * the page was locked for the first time by this transaction or false if
+	 * the page was already locked. Used to update the pin count on the page
+	 * (one pin per transaction). A page locked for reading is upgraded when
+	 * locked for writing - a page locked for writing is locked for reading
+	 * too. A page locked SIX is written, but its records not written (locked
+	 * E, see {@link #lockRecord}) may be read by other transactions. A page
+	 * locked IX is written record by record - other transactions may write
+	 * its other records too, and only the bytes the transaction wrote are
+	 * logged (see {@link BufferManager#update}).
+	 *
+	 * The file of the page is locked in the intention mode first (see
+	 * {@link #lockFile}). The page is not locked in the lock table if the
+	 * lock of its file covers it - nor once the transaction holds
+	 * {@link LockManager#getEscalation} locks below the file: the file lock
+	 * is escalated to S, or E if any of its pages is written, and the locks
+	 * below it are released.
+	 *
+	 * @param address
+	 *            the address of the page to be locked - see
+	 *            {@link gr.uoa.di.mde515.files.DiskFile#address(int)}
+	 * @param lock
+	 *            the type of lock - S, E, SIX or IX
+	 * @return true if the page was locked for the first time by this
+	 *         transaction, false otherwise
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while blocked waiting for the
+	 *             lock
+	 */
+	public boolean lock(long address, DBLock lock) throws InterruptedException {
+		state = state.transition(State.ACTIVE);
+		if (lock != DBLock.S && lock != DBLock.E && lock != DBLock.SIX
+			&& lock != DBLock.IX) throw new IllegalArgumentException("Illegal page lock " + lock);
+		final List<Long> read = lockedPages.get(DBLock.S);
+		final List<Long> written = lockedPages.get(DBLock.E);
+		final boolean isWritten = written.contains(address);
+		final boolean isRead = !isWritten && read.contains(address);
+		// upgrade if held - still holding the S lock if this throws
+		_lockPage(address, lock);
+		if (lock != DBLock.S && !isWritten) {
+			if (isRead) read.remove(address);
+			written.add(address);
+		} else if (lock == DBLock.S && !isWritten && !isRead) {
+			read.add(address);
+		}
+		if (isWritten || isRead) return false;
+		buf.hold(address); // pinned by the caller - see BufferManager#hold
+		return true;
+	}
+
+	/**
+	 * Locks a record - under an intention lock on its page, and on its file
+	 * (see {@link #lock}). The record is not locked in the lock table if the
+	 * lock of its page, or file, covers it. Locking a record does not pin its
+	 * page - records are read and written under the latch of the page (see
+	 * {@link gr.uoa.di.mde515.engine.buffer.Page#latch(boolean)}).
+	 *
+	 * @param address
+	 *            the address of the record - see
+	 *            {@link DiskFile#recordAddress(int, int)}
+	 * @param lock
+	 *            the type of lock - S or E
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while blocked waiting for the
+	 *             lock
+	 */
+	public void lockRecord(long address, DBLock lock)
+			throws InterruptedException {
+		state = state.transition(State.ACTIVE);
+		if (lock != DBLock.S && lock != DBLock.E)
+			throw new IllegalArgumentException("Illegal record lock " + lock);
+		final DBLock held = lockedRecords.get(address);
+		if (held != null && held.covers(lock)) return;
+		final long page = DiskFile.pageAddress(address);
+		if (_coversChildren(page, lock)) return;
+		_lockPage(page, lock.intention());
+		final long file = DiskFile.fileAddress(page);
+		if (_coversChildren(page, lock) || _escalate(file)) return;
+		final DBLock mode = held == null ? lock : held.sup(lock);
+		lm.requestLock(new LockManager.Request(address, this, mode));
+		lockedRecords.put(address, mode);
+		if (held == null) _count(file, 1);
+	}
+
+	/**
+	 * Locks a record if the lock can be granted right away - returns false
+	 * else. Never waits and never escalates, so it may be called holding the
+	 * latch of the page, as when looking for a free slot to insert into. The
+	 * page must be locked in the intention mode already (see {@link #lock}).
+	 *
+	 * @param address
+	 *            the address of the record - see
+	 *            {@link DiskFile#recordAddress(int, int)}
+	 * @param lock
+	 *            the type of lock - S or E
+	 * @return true if the record is locked
+	 */
+	public boolean tryLockRecord(long address, DBLock lock) {
+		state = state.transition(State.ACTIVE);
+		if (lock != DBLock.S && lock != DBLock.E)
+			throw new IllegalArgumentException("Illegal record lock " + lock);
+		final DBLock held = lockedRecords.get(address);
+		if (held != null && held.covers(lock)) return true;
+		final long page = DiskFile.pageAddress(address);
+		if (_coversChildren(page, lock)) return true;
+		final DBLock mode = held == null ? lock : held.sup(lock);
+		if (!lm.tryLock(new LockManager.Request(address, this, mode)))
+			return false;
+		lockedRecords.put(address, mode);
+		if (held == null) _count(DiskFile.fileAddress(page), 1);
+		return true;
+	}
+
+	/**
+	 * Locks the whole file of the page at {@code address} - in an intention
+	 * mode before locking its pages (see {@link #lock}), or S or E to lock
+	 * all its pages at once, as a scan does. A file locked in another mode is
+	 * converted to the weakest mode covering both (see {@link DBLock#sup}).
+	 *
+	 * @param address
+	 *            the address of any page of the file, or of the file - see
+	 *            {@link DiskFile#fileAddress(long)}
+	 * @param lock
+	 *            the type of lock
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while blocked waiting for the
+	 *             lock
+	 */
+	public void lockFile(long address, DBLock lock) throws InterruptedException {
+		state = state.transition(State.ACTIVE);
+		final long file = DiskFile.fileAddress(address);
+		final DBLock held = lockedFiles.get(file);
+		if (held != null && held.covers(lock)) return;
+		final DBLock mode = held == null ? lock : held.sup(lock);
+		lm.requestLock(new LockManager.Request(file, this, mode));
+		lockedFiles.put(file, mode);
+	}
+
+	/**
+	 * Releases the lock of a page just locked, that could not be pinned - the
+	 * transaction never read it, so releasing it early is safe. Else the
+	 * abort would unpin a page the transaction did not pin.
+	 *
+	 * @param address
+	 *            the address of the page, locked by {@link #lock} which
+	 *            returned true
+	 */
+	public void unlock(long address) {
+		buf.drop(address);
+		for (List<Long> addresses : lockedPages.values())
+			if (addresses.remove(address)) {
+				if (pageModes.remove(address) == null) return; // the file's
+				lm.unlock(this, address);
+				_count(DiskFile.fileAddress(address), -1);
+				return;
+			}
+	}
+
+	public long getId() {
+		return transId;
+	}
+
+	/**
+	 * The number of pages locked - read by other threads it is a hint, as
+	 * the locks are not counted under a lock
+	 */
+	public int getLockCount() {
+		return lockedPages.get(DBLock.E).size()
+			+ lockedPages.get(DBLock.S).size();
+	}
+
+	/**
+	 * The nanos left till the deadline of the transaction - Long.MAX_VALUE if
+	 * none. Negative if past it.
+	 */
+	public long nanosLeft() {
+		return timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	// =========================================================================
+	// Package private
+	// =========================================================================
+	void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	/** The transaction fails blocking once System.nanoTime() passes nanos */
+	void setDeadline(long nanos) {
+		deadline = nanos;
+		timed = true;
+		buf.setDeadline(nanos); // for the frame waits of the thread
+	}
+
+	void validateThread() {
+		final long id = Thread.currentThread().getId();
+		final String name = Thread.currentThread().getName();
+		if (id != threadId || !name.equals(threadName)) {
+			throw new IllegalStateException("Calling thread (" + id + ": "
+				+ name + ") is not owner of transaction with id " + transId);
+		}
+	}
+
+	/**
+	 * Logs the changes to the pages locked exclusively - the transaction is
+	 * durable once the log is forced, right away unless not durable - then
+	 * releases the pages, to be written back in the background once the log
+	 * is forced.
+	 */
+	<K extends Comparable<K>, V> void commit(final DataFile<K, V> dataFile,
+			final Index<K, ?> index) throws IOException {
+		System.out.println(this + " flushing " + lockedPages);
+		state = state.transition(State.COMMITING);
+		final List<PageUpdate> updates = new ArrayList<>();
+		for (long address : lockedPages.get(DBLock.E)) {
+			final PageUpdate update = buf.update(address);
+			if (update != null) updates.add(update);
+		}
+		final long lsn = log.commit(transId, updates, durable);
+		if (lsn != 0) for (long address : lockedPages.get(DBLock.E))
+			buf.committed(address, lsn);
+		// each file picks its own pages
+		for (List<Long> list : lockedPages.values())
+			dataFile.flush(list);
+		for (List<Long> list : lockedPages.values())
+			index.flush(list);
+	}
+
+	<K extends Comparable<K>, V> void abort(final DataFile<K, V> dataFile,
+			final Index<K, ?> index) throws IOException {
+		System.out.println(this + " aborting " + lockedPages);
+		state = state.transition(State.ABORTING);
+		for (List<Long> list : lockedPages.values())
+			dataFile.abort(list);
+		for (List<Long> list : lockedPages.values())
+			index.abort(list);
+		log.abort(transId); // the stolen pages are restored
+	}
+
+	void end() {
+		state = state.transition(State.ENDING);
+		buf.detach();
+		for (long record : lockedRecords.keySet())
+			lm.unlock(this, record);
+		for (long address : pageModes.keySet())
+			lm.unlock(this, address);
+		for (long file : lockedFiles.keySet())
+			lm.unlock(this, file);
+		lm.ended(this);
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * Locks the page in the lock table under an intention lock on its file -
+	 * unless the lock of the file covers it, or escalated to. A page locked in
+	 * another mode is converted to the weakest mode covering both.
+	 */
+	private void _lockPage(long address, DBLock lock)
+			throws InterruptedException {
+		final DBLock held = pageModes.get(address);
+		if (held != null && held.covers(lock)) return;
+		final long file = DiskFile.fileAddress(address);
+		final DBLock fileMode = lockedFiles.get(file);
+		if (fileMode != null && fileMode.coversChildren(lock)) return;
+		lockFile(file, lock.intention());
+		if (_escalate(file)) return;
+		final DBLock mode = held == null ? lock : held.sup(lock);
+		lm.requestLock(new LockManager.Request(address, this, mode));
+		pageModes.put(address, mode);
+		if (held == null) _count(file, 1);
+	}
+
+	/** True if the lock of the page, or of its file, covers its records */
+	private boolean _coversChildren(long page, DBLock lock) {
+		final DBLock pageMode = pageModes.get(page);
+		if (pageMode != null && pageMode.coversChildren(lock)) return true;
+		final DBLock fileMode = lockedFiles.get(DiskFile.fileAddress(page));
+		return fileMode != null && fileMode.coversChildren(lock);
+	}
+
+	private void _count(long file, int delta) {
+		final Integer count = entries.get(file);
+		entries.put(file, count == null ? delta : count + delta);
+	}
+
+	/**
+	 * If the transaction holds {@link LockManager#getEscalation} locks below
+	 * the file, locks the file S - or E if it is locked in an intention mode
+	 * for writing - and releases the locks below it, covered by it. Returns
+	 * false if not escalated.
+	 */
+	private boolean _escalate(long file) throws InterruptedException {
+		final Integer count = entries.get(file);
+		final int max = lm.getEscalation();
+		if (max == 0 || count == null || count < max) return false;
+		final DBLock mode = lockedFiles.get(file) == DBLock.IS ? DBLock.S
+			: DBLock.E;
+		lockFile(file, mode);
+		for (Iterator<Long> it = lockedRecords.keySet().iterator(); it
+			.hasNext();) {
+			final long record = it.next();
+			if (DiskFile.fileAddress(DiskFile.pageAddress(record)) != file)
+				continue;
+			lm.unlock(this, record);
+			it.remove();
+		}
+		for (Iterator<Long> it = pageModes.keySet().iterator(); it
+			.hasNext();) {
+			final long address = it.next();
+			if (DiskFile.fileAddress(address) != file) continue;
+			lm.unlock(this, address);
+			it.remove();
+		}
+		entries.remove(file);
+		return true;
+	}
+
+	private enum State {
+		ACTIVE, COMMITING, ABORTING, ENDING;
+
+		/**
+		 * Meant to allow ACTIVE > COMMIT (once) or ABORT (many) > ENDING.
+		 *
+		 * @param next
+		 *            the next state
+		 * @throws IllegalTransitionException
+		 *             if above does not hold
+		 */
+		State transition(State next) throws IllegalTransitionException {
+			switch (this) {
+			case ACTIVE:
+				if (next == ENDING)
+					throw new IllegalTransitionException(this + " to " + next);
+				return next;
+			case COMMITING:
+				if (next == ACTIVE || next == this) // call commit once
+					throw new IllegalTransitionException(this + " to " + next);
+				return next; // can call abort from commit (commit failed)
+			case ABORTING:
+				if (next == ACTIVE || next == COMMITING)
+					throw new IllegalTransitionException(this + " to " + next);
+				return next;
+			default:
+				throw new IllegalTransitionException(this + " to " + next);
+			}
+		}
+
+		/** TODO make into checked exception */
+		final class IllegalTransitionException extends RuntimeException {
+
+			private static final long serialVersionUID = -2944616043222631837L;
+
+			public IllegalTransitionException(String string) {
+				super(string);
+			}
+		}
+	}
+
+	// =========================================================================
+	// Object methods
+	// =========================================================================
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Transaction [id=");
+		builder.append(transId);
+		builder.append("]");
+		return builder.toString();
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (transId ^ (transId >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		Transaction other = (Transaction) obj;
+		if (transId != other.transId) return false;
+		return true;
+	}
+}
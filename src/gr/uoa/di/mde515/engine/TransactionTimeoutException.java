@@ -0,0 +1,15 @@
+package gr.uoa.di.mde515.engine;
+
+/**
+ * Thrown to a transaction blocked past its deadline - waiting for a lock or a
+ * frame of the buffer pool, or starting an operation. See
+ * {@link Engine.TransactionalOperation#deadline}. The transaction is aborted.
+ */
+public final class TransactionTimeoutException extends InterruptedException {
+
+	private static final long serialVersionUID = 5129637735702357012L;
+
+	public TransactionTimeoutException(String string) {
+		super(string);
+	}
+}
@@ -1,278 +1,580 @@
-package gr.uoa.di.mde515.engine.buffer;
-
-import gr.uoa.di.mde515.files.DiskFile;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-public enum BufferManager {
-	INSTANCE(200);
-
-	/** the pool of frames - unmodifiable list */
-	private final List<Frame> pool;
-	/**
-	 * the structure that maintains information about pageIDs and their
-	 * corresponding frame numbers TODO bin - make pool to a map
-	 */
-	private final Map<Integer, Integer> pageIdToFrameNumber = new HashMap<>();
-	/** contains the remaining available frames */
-	private final List<Integer> freeList = new ArrayList<>();
-	/** Contains the frames that need to remain pinned in memory */
-	private final Set<Integer> pinPerm = new HashSet<>();
-	/**
-	 * All actions on the state fields must be performed holding this lock. Also
-	 * all writes to byte buffers must be performed holding this lock (TODO
-	 * enough for readers ?)
-	 */
-	private static final Object POOL_LOCK = new Object();
-
-	private BufferManager(int numBufs) {
-		List<Frame> pool1 = new ArrayList<>();
-		for (int i = 0; i < numBufs; i++) {
-			pool1.add(new Frame(i));
-			freeList.add(i);
-		}
-		// no additions ore deletions on the list of frames
-		pool = Collections.unmodifiableList(pool1);
-	}
-
-	@SuppressWarnings("unused")
-	private static enum ReplacementAlgorithm {
-		LRU; // TODO
-	}
-
-	/**
-	 * The BufferManager follows the singleton pattern. So one BufferManager is
-	 * created.
-	 */
-	public static BufferManager getInstance() {
-		return INSTANCE;
-	}
-
-	// =========================================================================
-	// API - TODO - make pin/unpin private
-	// =========================================================================
-	void setPageDirty(int pageID) {
-		synchronized (POOL_LOCK) {
-			getFrame(pageIdToFrameNumber.get(pageID)).setDirty(true);
-		}
-	}
-
-	/**
-	 * Increases the pin count of the frame that corresponds to the
-	 * {@code pageID} given. Clients are responsible for unpinning their pages
-	 * FIXME - what happens on abort commit transaction
-	 *
-	 * @param pageID
-	 *            the id of the page to pin - MUST be an INT TODO
-	 */
-	public void pinPage(int pageID) {
-		synchronized (POOL_LOCK) {
-			final Integer i = pageIdToFrameNumber.get(pageID);
-			final Frame frame = getFrame(i);
-			frame.increasePincount();
-			// System.out.println("pinPage::Frame num " + i + " pin count "
-			// + frame.getPinCount());
-			// Frame.increasePincount is an operation on an AtomicInteger - TODO
-			// do I really need to synch on POOL_LOCK ?
-		}
-	}
-
-	/**
-	 * Decreases the pin count of the frame that corresponds to the
-	 * {@code pageID} given. When the pin count reaches zero the page is added
-	 * back to the free list.
-	 *
-	 * @param pageID
-	 *            the id of the page to unpin - MUST be an INT TODO
-	 */
-	public void unpinPage(int pageID) {
-		synchronized (POOL_LOCK) {
-			final Integer frameNumber = getFrameNum(pageID);
-			decreasePinCount(frameNumber, pageID);
-		}
-	}
-
-	/**
-	 * Used when a transaction calls abort to unpin the page if dirty bypassing
-	 * the {@link #pinPerm} in {@link #decreasePinCount(int, Object)}.
-	 *
-	 * @throws IOException
-	 *             thrown in the case a permanent generation page must be
-	 *             cleaned, which can only be done by rereading it from disk
-	 */
-	public void killPage(int pageID, DiskFile file) throws IOException {
-		synchronized (POOL_LOCK) {
-			final Integer frameNum = getFrameNum(pageID);
-			final Frame frame = getFrame(frameNum);
-			if (frame.isDirty()) {
-				if (pinPerm.contains(pageID)) {
-					file.readPage(pageID, frame.getBuffer());
-				} else {
-					frame.resetPinCount();
-					frame.setDirty(false);
-					// pinPerm.remove(frameNum); // FIXME
-					_free(pageID, frameNum);
-				}
-			} else decreasePinCount(frameNum, pageID);
-		}
-	}
-
-	/**
-	 * It flushes the content of the frame associated with the given pageID to
-	 * the disk at correct block.
-	 *
-	 * @param pageID
-	 * @param disk
-	 * @throws IOException
-	 */
-	public void flushPage(int pageID, DiskFile disk) throws IOException {
-		synchronized (POOL_LOCK) {
-			int frameNumber = pageIdToFrameNumber.get(pageID);
-			final Frame frame = getFrame(frameNumber);
-			if (frame.isDirty()) disk.writePage(pageID, frame.getBuffer());
-			frame.setDirty(false);
-		}
-	}
-
-	/**
-	 * Returns a Page corresponding to an existing block of {@code file}, backed
-	 * up by a frame in the main memory. It first checks if there is a Frame
-	 * already allocated and if not it waits for an empty Frame
-	 *
-	 * FIXME FIXME FIXME - let Lock manager know
-	 *
-	 * @param pageID
-	 * @param file
-	 * @throws IOException
-	 * @throws InterruptedException
-	 */
-	public Page allocFrame(int pageID, DiskFile file) throws IOException,
-			InterruptedException {
-		synchronized (POOL_LOCK) {
-			final Integer frameNum = getFrameNum(pageID);
-			if (frameNum != null) { // if the page already in the buffer return
-				// a page wrapping the buffer
-				// System.out.println("re-alloc FRAME NUM " + frameNum
-				// + " for page " + pageID);
-				return new Page(pageID, getFrame(frameNum).getBuffer());
-			}
-			while (freeList.isEmpty()) {
-				System.out.println("No available buffer");
-				POOL_LOCK.wait();
-			}
-			int numFrame = freeList.remove(0);
-			// System.out.println("alloc FRAME NUM " + numFrame + " for page "
-			// + pageID);
-			pageIdToFrameNumber.put(pageID, numFrame);
-			final ByteBuffer buffer = getFrame(numFrame).getBuffer();
-			file.readPage(pageID, buffer);
-			return new Page(pageID, buffer);
-		}
-	}
-
-	/**
-	 * Returns a Page backed up by a frame in the main memory that does not
-	 * correspond to block on the disk. May block waiting for a Frame to become
-	 * available. FIXME FIXME FIXME - let Lock manager know
-	 *
-	 * @param pageID
-	 * @throws InterruptedException
-	 */
-	public Page allocFrameForNewPage(int pageID) throws InterruptedException {
-		synchronized (POOL_LOCK) {
-			while (freeList.isEmpty()) {
-				System.out.println("No available buffer");
-				POOL_LOCK.wait();
-			}
-			int numFrame = freeList.remove(0);
-			// System.out.println("ALLOC new page FRAME NUM " + numFrame
-			// + " for page " + pageID);
-			pageIdToFrameNumber.put(pageID, numFrame);
-			return new Page(pageID, getFrame(numFrame).getBuffer());
-		}
-	}
-
-	/** Better testing TODO */
-	public Page allocPermanentPage(int pageID, DiskFile disk)
-			throws IOException, InterruptedException {
-		synchronized (POOL_LOCK) {
-			final Integer frameNum = getFrameNum(pageID);
-			if (frameNum != null) {
-				final Frame frame = getFrame(frameNum);
-				if (!pinPerm.contains(frameNum)) {
-					// make it permanent
-					frame.resetPinCount();
-					frame.increasePincount(); // make pinCount 1
-				}
-				return new Page(pageID, frame.getBuffer());
-			}
-			while (freeList.isEmpty()) {
-				System.out.println("No available buffer");
-				POOL_LOCK.wait();
-			}
-			Integer numFrame = freeList.remove(0);
-			System.out
-				.println("alloc perm " + numFrame + " for page " + pageID);
-			pageIdToFrameNumber.put(pageID, numFrame);
-			pinPerm.add(numFrame);
-			System.out.println("pinPerm " + pinPerm);
-			// pinPage(pageID);
-			final ByteBuffer buffer = getFrame(numFrame).getBuffer();
-			disk.readPage(pageID, buffer);
-			return new Page(pageID, buffer);
-		}
-	}
-
-	// =========================================================================
-	// Private helpers - all must be called holding the POOL_LOCK
-	// =========================================================================
-	/**
-	 * MUST BE USED FROM SYNCHONIZED BLOCK. Move to {@link ReplacementAlgorithm}
-	 *
-	 * @param pageID
-	 * @param frameNum
-	 */
-	private void _free(int pageID, final Integer frameNum) {
-		pageIdToFrameNumber.remove(pageID);
-		if (freeList.isEmpty()) {
-			freeList.add(frameNum);
-			POOL_LOCK.notifyAll();
-		} else freeList.add(frameNum);
-	}
-
-	/**
-	 * @param pageID
-	 * @return the Frame for this pid or null if none
-	 */
-	private Integer getFrameNum(int pageID) {
-		final Integer frameNum = pageIdToFrameNumber.get(pageID);
-		return frameNum;
-	}
-
-	private Frame getFrame(int i) {
-		return pool.get(i);
-	}
-
-	/**
-	 * Decrease the pinCount of the frame. If the pin count of the frame reaches
-	 * zero it adds it to the free list and notifiesAll(). TODO throw on
-	 * negative pinCount
-	 *
-	 * @param frameNumber
-	 * @return the current pin count of the page
-	 */
-	private int decreasePinCount(int frameNumber, int pageID) {
-		final Frame frame = getFrame(frameNumber);
-		if ((!pinPerm.contains(frame)) // TODO move to replacement algorithm
-			&& (frame.decreasePincount()) == 0) _free(pageID, frameNumber);
-		return frame.getPinCount().intValue();
-	}
-}
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.engine.TransactionTimeoutException;
+import gr.uoa.di.mde515.engine.log.PageUpdate;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The buffer pool - of the pages of all the files, told apart by their
+ * {@link DiskFile#address(int)}. The frames are split in partitions and each
+ * page address is hashed to one of them - see {@link Partition}. There is no lock global to
+ * the pool, so threads working on pages of different partitions do not
+ * contend, while pinning and unpinning a page already in the pool take no
+ * lock at all. The pool is created by {@link #init} - when the Engine is
+ * configured.
+ */
+public enum BufferManager {
+	INSTANCE;
+
+	/** partitions smaller than that would evict too eagerly */
+	private static final int MIN_FRAMES_PER_PARTITION = 32;
+	/** off heap frames are sliced out of direct buffers of up to that size */
+	private static final int MAX_CHUNK_SIZE = 1 << 30;
+	/** the frames of the private ring of a {@link BulkRead} */
+	private static final int BULK_READ_RING_SIZE = 32;
+	private static final int READER_THREADS = 2;
+	/** performs the asynchronous reads - prefetching and reading ahead */
+	private final ExecutorService reader = Executors.newFixedThreadPool(
+		READER_THREADS, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "Page reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	/** the id of the transaction of the thread - see {@link #attach(long)} */
+	private static final ThreadLocal<Long> transaction = new ThreadLocal<>();
+	/** when the transaction of the thread times out - see setDeadline */
+	private static final ThreadLocal<Long> deadline = new ThreadLocal<>();
+	/** the pages the transaction of the thread keeps pinned - see hold */
+	private static final ThreadLocal<Set<Long>> held = new ThreadLocal<>();
+	/** null till {@link #init} is called */
+	private volatile Pool pool;
+	/** null unless started */
+	private Cleaner cleaner;
+
+	/** The partitions of the pool - their number is a power of two */
+	private static final class Pool {
+
+		final List<Partition> partitions;
+		final int mask;
+		final int pageSize;
+		final int numBufs;
+
+		Pool(int pageSize, int numBufs, ReplacementAlgorithm algorithm,
+				boolean offHeap, int concurrency) {
+			int numPartitions = 1;
+			while (numPartitions < concurrency
+				&& 2 * numPartitions * MIN_FRAMES_PER_PARTITION <= numBufs)
+				numPartitions <<= 1;
+			final List<ByteBuffer> buffers = offHeap ? slices(numBufs,
+				pageSize) : heapBuffers(numBufs, pageSize);
+			List<Partition> partitions1 = new ArrayList<>();
+			for (int i = 0, from = 0; i < numPartitions; i++) {
+				// spread the remainder over the first partitions
+				final int frames = numBufs / numPartitions
+					+ (i < numBufs % numPartitions ? 1 : 0);
+				partitions1.add(new Partition(buffers.subList(from, from
+					+ frames), algorithm));
+				from += frames;
+			}
+			// no additions ore deletions on the list of partitions
+			partitions = Collections.unmodifiableList(partitions1);
+			mask = numPartitions - 1;
+			this.pageSize = pageSize;
+			this.numBufs = numBufs;
+		}
+
+		private static List<ByteBuffer> heapBuffers(int numBufs, int pageSize) {
+			final List<ByteBuffer> buffers = new ArrayList<>(numBufs);
+			for (int i = 0; i < numBufs; ++i)
+				buffers.add(ByteBuffer.allocate(pageSize));
+			return buffers;
+		}
+
+		/**
+		 * Allocates the frames in as few direct buffers as possible and slices
+		 * them - direct buffers are limited to 2GB and costly to allocate, so
+		 * not one per frame.
+		 */
+		private static List<ByteBuffer> slices(int numBufs, int pageSize) {
+			final List<ByteBuffer> buffers = new ArrayList<>(numBufs);
+			final int framesPerChunk = MAX_CHUNK_SIZE / pageSize;
+			for (int left = numBufs; left > 0; left -= framesPerChunk) {
+				final int frames = Math.min(left, framesPerChunk);
+				final ByteBuffer chunk = ByteBuffer.allocateDirect(frames
+					* pageSize);
+				for (int i = 0; i < frames; ++i) {
+					chunk.limit((i + 1) * pageSize).position(i * pageSize);
+					buffers.add(chunk.slice());
+				}
+			}
+			return buffers;
+		}
+	}
+
+	/**
+	 * The policies available for choosing the unpinned frame to reuse when no
+	 * free frame exists. Unpinned frames keep their pages till then.
+	 */
+	public static enum ReplacementAlgorithm {
+		/** Second chance - cheap, approximates LRU */
+		CLOCK {
+
+			@Override
+			ReplacementPolicy newPolicy(int numBufs) {
+				return new ReplacementPolicy.Clock(numBufs);
+			}
+		},
+		/** LRU-2 - not fooled by pages referenced only once */
+		LRU_K {
+
+			@Override
+			ReplacementPolicy newPolicy(int numBufs) {
+				return new ReplacementPolicy.LruK(numBufs, 2);
+			}
+		};
+
+		abstract ReplacementPolicy newPolicy(int numBufs);
+	}
+
+	/**
+	 * The BufferManager follows the singleton pattern. So one BufferManager is
+	 * created.
+	 */
+	public static BufferManager getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Allocates the frames of the pool - must be called once, before any other
+	 * method.
+	 *
+	 * @param pageSize
+	 *            the size of the frames in bytes
+	 * @param numBufs
+	 *            the number of frames
+	 * @param algorithm
+	 *            the replacement algorithm of the partitions
+	 * @param offHeap
+	 *            if true the frames are allocated in direct memory
+	 * @throws IllegalStateException
+	 *             if already initialized
+	 */
+	public synchronized void init(int pageSize, int numBufs,
+			ReplacementAlgorithm algorithm, boolean offHeap) {
+		if (pool != null)
+			throw new IllegalStateException("Buffer pool already initialized");
+		pool = new Pool(pageSize, numBufs, algorithm, offHeap, Runtime
+			.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts the background writer of dirty pages - see {@link Cleaner}.
+	 *
+	 * @param lowWatermark
+	 *            the percentage of the frames the cleaner leaves dirty
+	 * @param highWatermark
+	 *            the percentage of dirty frames that triggers cleaning
+	 */
+	public synchronized void startCleaner(int lowWatermark, int highWatermark) {
+		if (cleaner != null)
+			throw new IllegalStateException("Cleaner already started");
+		cleaner = new Cleaner(pool().partitions, pool().numBufs, lowWatermark,
+			highWatermark);
+		cleaner.start();
+	}
+
+	/**
+	 * Stops the cleaner and writes back the dirty pages of committed
+	 * transactions. Call after all transactions have ended.
+	 */
+	public synchronized void shutdown() throws InterruptedException,
+			IOException {
+		if (cleaner == null) // never started - just write back the pages
+			cleaner = new Cleaner(pool().partitions, pool().numBufs, 0, 0);
+		cleaner.shutdown();
+		cleaner = null;
+	}
+
+	/**
+	 * Writes back the unpinned dirty pages that hold changes logged before
+	 * {@code lsn} - so a checkpoint can move the start of the log past it.
+	 * Returns the number of pages written.
+	 */
+	public synchronized int writeBack(long lsn) throws IOException {
+		final Cleaner c = cleaner != null ? cleaner : new Cleaner(
+			pool().partitions, pool().numBufs, 0, 0);
+		return c.writeOlder(lsn);
+	}
+
+	/**
+	 * The dirty page table - the pages of the pool not written back since
+	 * they were modified, with the end of the log at their first modification
+	 * (their recovery LSN), by address. Pages being written back are in till
+	 * the write ends - the pages not in were handed to their files, so are on
+	 * disk once the files are forced. A snapshot, not locking - pages
+	 * dirtied meanwhile may be missing, but their recovery LSNs are later
+	 * than the end of the log before the call.
+	 */
+	public Map<Long, Long> dirtyPages() {
+		final Map<Long, Long> dirty = new HashMap<>();
+		for (Partition p : pool().partitions)
+			for (Frame frame : p.getFrames()) {
+				final DiskFile file = frame.getFile();
+				final long since = frame.dirtySince();
+				if (file != null && since != -1)
+					dirty.put(file.address(frame.getPageId()), since);
+			}
+		return dirty;
+	}
+
+	public int getPageSize() {
+		return pool().pageSize;
+	}
+
+	/**
+	 * Binds the thread to transaction {@code transId} - the pages it modifies
+	 * may be stolen when the thread needs a frame and all are pinned. See
+	 * {@link Partition}.
+	 */
+	public void attach(long transId) {
+		transaction.set(transId);
+		held.set(new HashSet<Long>());
+	}
+
+	/**
+	 * The transaction of the thread keeps the page at {@code address} pinned
+	 * till it ends - it may steal it, if not modified by others, even if it
+	 * only read it. Call once it locked the page for the first time, before
+	 * pinning it: the page is not stolen while pinned for it.
+	 */
+	public void hold(long address) {
+		final Set<Long> pages = held.get();
+		if (pages != null) pages.add(address);
+	}
+
+	/** The page at {@code address} was not pinned after all - see hold */
+	public void drop(long address) {
+		final Set<Long> pages = held.get();
+		if (pages != null) pages.remove(address);
+	}
+
+	/**
+	 * The transaction of the thread waits for a frame till
+	 * {@code System.nanoTime()} reaches {@code nanos} - then it fails with a
+	 * {@link TransactionTimeoutException}.
+	 */
+	public void setDeadline(long nanos) {
+		deadline.set(nanos);
+	}
+
+	/**
+	 * Starts a change to pages outside the transaction of the thread - logged
+	 * on its own when it ends, whether the transaction commits or not. See
+	 * {@link SystemChange}.
+	 */
+	public SystemChange systemChange() {
+		return new SystemChange();
+	}
+
+	/** The transaction of the thread ended */
+	public void detach() {
+		transaction.remove();
+		deadline.remove();
+		held.remove();
+	}
+
+	// =========================================================================
+	// API - TODO - make pin/unpin private
+	// =========================================================================
+	/**
+	 * Increases the pin count of the frame that corresponds to the
+	 * {@code pageID} given. Clients are responsible for unpinning their pages
+	 * FIXME - what happens on abort commit transaction
+	 *
+	 * @param pageID
+	 *            the id of the page to pin
+	 * @param file
+	 *            the file of the page
+	 */
+	public void pinPage(int pageID, DiskFile file) {
+		final long address = file.address(pageID);
+		final Partition p = partition(address);
+		if (p.lookupPinned(address) == null) p.pin(address);
+	}
+
+	/**
+	 * Decreases the pin count of the frame that corresponds to the
+	 * {@code pageID} given. When the pin count reaches zero the page stays in
+	 * its frame - but the frame may now be chosen as a victim.
+	 *
+	 * @param pageID
+	 *            the id of the page to unpin
+	 * @param file
+	 *            the file of the page
+	 */
+	public void unpinPage(int pageID, DiskFile file) {
+		final long address = file.address(pageID);
+		final Partition p = partition(address);
+		p.unpin(p.lookup(address)); // pinned - so it is there
+	}
+
+	/**
+	 * Used when a transaction commits - unpins the page but leaves it dirty,
+	 * to be written back by the {@link Cleaner} or when evicted. Permanent
+	 * pages too - the cleaner writes a copy of them (see Frame#snapshot).
+	 */
+	public void releasePage(int pageID, DiskFile file) throws IOException {
+		final long address = file.address(pageID);
+		final Partition p = partition(address);
+		drop(address);
+		final Frame frame = p.lookup(address); // pinned - unless stolen
+		final long transaction = transaction();
+		p.forget(address, transaction);
+		if (frame == null) return; // on disk
+		frame.clearImage(transaction); // logged
+		p.unpin(frame);
+	}
+
+	/**
+	 * The changes to the page at {@code address} were logged in a commit record
+	 * ending at {@code lsn} - the page is not written back before the log is
+	 * forced up to it, so an asynchronous commit lost in a crash leaves no
+	 * trace on disk. Called on commit, before the page is released.
+	 */
+	public void committed(long address, long lsn) {
+		final Partition p = partition(address);
+		final Frame frame = p.lookup(address); // pinned - unless stolen
+		if (frame != null) frame.setPageLsn(lsn);
+	}
+
+	/**
+	 * The changes made to the page at {@code address} by the transaction of
+	 * the thread - of the bytes it wrote only, the other records of the page
+	 * may be written by other transactions meanwhile. Null if none. Called on
+	 * commit, to log them.
+	 */
+	public PageUpdate update(long address) {
+		final Partition p = partition(address);
+		final Frame frame = p.lookup(address);
+		return frame == null ? p.stolenUpdate(address) : frame
+			.update(transaction());
+	}
+
+	/**
+	 * Used when a transaction calls abort to unpin the page - the changes of
+	 * the transaction are undone in memory, from the bytes kept on its writes
+	 * (see {@link Page}), and the page stays in the pool. The changes of other
+	 * transactions to other records of the page are left alone. No I/O -
+	 * unless the page was stolen and is not in the pool any more, when it is
+	 * read in again to be undone. Pages created by the transaction are
+	 * discarded.
+	 *
+	 * @throws IOException
+	 *             if a stolen page can't be read back
+	 */
+	public void killPage(int pageID, DiskFile file) throws IOException {
+		drop(file.address(pageID));
+		partition(file.address(pageID)).kill(pageID, file);
+	}
+
+	/**
+	 * It flushes the content of the frame associated with the given pageID to
+	 * the disk at correct block. Writes to the page concurrent with the flush
+	 * leave it dirty.
+	 *
+	 * @param pageID
+	 * @param disk
+	 * @throws IOException
+	 */
+	public void flushPage(int pageID, DiskFile disk) throws IOException {
+		partition(disk.address(pageID)).flush(pageID, disk);
+	}
+
+	/**
+	 * Returns a Page corresponding to an existing block of {@code file}, backed
+	 * up by a frame in the main memory. It first checks if there is a Frame
+	 * already allocated and if not it takes a free Frame or evicts the victim
+	 * of the {@link ReplacementPolicy} - if all the frames of the partition
+	 * are pinned it steals a page of the transaction of the thread (see
+	 * {@link Partition}) or waits, till the deadline of the transaction if
+	 * any (see {@link #setDeadline(long)}).
+	 *
+	 * FIXME FIXME FIXME - let Lock manager know
+	 *
+	 * @param pageID
+	 * @param file
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Page allocFrame(int pageID, DiskFile file) throws IOException,
+			InterruptedException {
+		final long address = file.address(pageID);
+		final Partition p = partition(address);
+		Frame frame = p.lookup(address);
+		// the frame may be reassigned right after the lookup if not pinned -
+		// callers must hold it pinned (or use the overload below)
+		if (frame == null) frame = p.load(pageID, file, false);
+		return new Page(pageID, frame);
+	}
+
+	/**
+	 * As {@link #allocFrame(int, DiskFile)} but pins the page if {@code pin}
+	 * is true - atomically, so the frame can't be handed over to another page
+	 * between the lookup and the pin. Transactions pin a page once, when they
+	 * lock it - if the {@link Cleaner} is writing it back at this point we
+	 * wait, so it is not modified under its feet. If dirty it stays dirty -
+	 * an abort undoes just the bytes written (see {@link Frame#undo(long)}).
+	 */
+	public Page allocFrame(int pageID, DiskFile file, boolean pin)
+			throws IOException, InterruptedException {
+		if (!pin) return allocFrame(pageID, file);
+		final long address = file.address(pageID);
+		final Partition p = partition(address);
+		Frame frame = p.lookupPinned(address);
+		if (frame == null) frame = p.load(pageID, file, true);
+		frame.io.lock(); // wait for a write in progress
+		frame.io.unlock();
+		return new Page(pageID, frame);
+	}
+
+	/**
+	 * Returns a Page backed up by a frame in the main memory that does not
+	 * correspond to block on the disk yet - the page is zeroed. May block
+	 * waiting for a Frame to become available. FIXME FIXME FIXME - let Lock
+	 * manager know
+	 *
+	 * @param pageID
+	 * @param file
+	 *            the file the page belongs to
+	 * @param pin
+	 *            if true the page is returned pinned
+	 * @throws IOException
+	 *             if the victim evicted to make space must be written back
+	 * @throws InterruptedException
+	 */
+	public Page allocFrameForNewPage(int pageID, DiskFile file, boolean pin)
+			throws IOException, InterruptedException {
+		final Frame frame = partition(file.address(pageID)).loadNew(pageID,
+			file, pin);
+		return new Page(pageID, frame);
+	}
+
+	/**
+	 * Reads asynchronously the {@code count} pages of {@code file} starting at
+	 * page {@code pageID} (in block order) into the pool - unless already
+	 * there. The pages are not pinned. Pages past the end of the file are
+	 * ignored.
+	 */
+	public void prefetch(final DiskFile file, final int pageID, final int count) {
+		reader.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException, InterruptedException {
+				final int first = file.blockOf(pageID);
+				final int last = Math.min(first + count, file.blocks());
+				for (int block = first; block < last; ++block) {
+					final int pid = file.pageOf(block);
+					final Partition p = partition(file.address(pid));
+					if (p.lookup(file.address(pid)) == null)
+						p.load(pid, file, false);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns a {@link BulkRead} for scanning {@code file} without wiping the
+	 * pool
+	 */
+	public BulkRead bulkRead(DiskFile file) {
+		return new BulkRead(file, BULK_READ_RING_SIZE, getPageSize());
+	}
+
+	/** Better testing TODO */
+	public Page allocPermanentPage(int pageID, DiskFile disk)
+			throws IOException, InterruptedException {
+		final Frame frame = partition(disk.address(pageID)).loadPermanent(
+			pageID, disk);
+		return new Page(pageID, frame);
+	}
+
+	// =========================================================================
+	// Package private
+	// =========================================================================
+	/** The transaction of the thread - 0 if none */
+	static long transaction() {
+		final Long id = transaction.get();
+		return id == null ? 0 : id;
+	}
+
+	/** Binds the thread to {@code transId} - unbinds it if 0 */
+	static void bind(long transId) {
+		if (transId == 0) transaction.remove();
+		else transaction.set(transId);
+	}
+
+	/** The pages the transaction of the thread keeps pinned - see hold */
+	static Set<Long> held() {
+		final Set<Long> pages = held.get();
+		return pages == null ? Collections.<Long> emptySet() : pages;
+	}
+
+	/**
+	 * The nanos left till the deadline of the transaction of the thread -
+	 * Long.MAX_VALUE if none
+	 */
+	static long nanosLeft() {
+		final Long nanos = deadline.get();
+		return nanos == null ? Long.MAX_VALUE : nanos - System.nanoTime();
+	}
+
+	/** The frame holding {@code pageID} pinned, or null if not in the pool */
+	Frame lookupPinned(int pageID, DiskFile file) {
+		final long address = file.address(pageID);
+		return partition(address).lookupPinned(address);
+	}
+
+	/** Reads asynchronously consecutive blocks of file into buffers */
+	Future<Void> submitRead(final DiskFile file, final int firstBlock,
+			final ByteBuffer[] buffers) {
+		return reader.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				file.readBlocks(firstBlock, buffers);
+				return null;
+			}
+		});
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * Fibonacci hashing - page ids are sequential (and the file id is in the
+	 * high bits of the address) so the low bits alone would not spread them
+	 * evenly.
+	 */
+	private Partition partition(long address) {
+		final Pool p = pool();
+		return p.partitions.get((int) ((address * 0x9E3779B97F4A7C15L) >>> 40)
+			& p.mask);
+	}
+
+	private Pool pool() {
+		final Pool p = pool;
+		if (p == null)
+			throw new IllegalStateException("Buffer pool not initialized");
+		return p;
+	}
+}
@@ -0,0 +1,149 @@
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The bulk read access strategy - used by scans so they do not wipe the buffer
+ * pool. Pages found in the pool are used as is (pinned till the next read),
+ * the rest are read into a small private ring of frames, never entering the
+ * pool. Once pages are read in block order, blocks are read in batches of half
+ * the ring and the next batch is read ahead asynchronously into the other
+ * half. Memory mapped files need no ring - their pages are read in place (see
+ * {@link DiskFile#mappedPage(int)}).
+ *
+ * The pages returned are READ ONLY and valid till the next call to
+ * {@link #read(int)} - the caller must hold locks that keep writers off the
+ * pages scanned. Not thread safe - a BulkRead is confined to its transaction.
+ * Call {@link #close()} when done.
+ */
+public final class BulkRead {
+
+	private static final BufferManager buf = BufferManager.getInstance();
+	private final DiskFile file;
+	/** two halves - one consumed while the other is read ahead */
+	private final Frame[] ring;
+	private final int half;
+	// the batch being consumed and the one read ahead - may be null
+	private Batch current;
+	private Batch next;
+	/** the pool frame of the page returned last - null if in the ring */
+	private Frame pinned;
+	private int pinnedPageID;
+	/** the block read last - to detect sequential reads */
+	private int lastBlock = -2;
+
+	BulkRead(DiskFile file, int ringSize, int pageSize) {
+		this.file = file;
+		half = Math.max(1, ringSize / 2);
+		ring = new Frame[2 * half];
+		for (int i = 0; i < ring.length; ++i)
+			ring[i] = new Frame(i, ByteBuffer.allocate(pageSize));
+	}
+
+	/** A run of blocks read into a half of the ring */
+	private final class Batch {
+
+		final int firstBlock;
+		final int count;
+		final int offset; // in the ring
+		final Future<Void> done;
+
+		Batch(int firstBlock, int count, int offset) {
+			this.firstBlock = firstBlock;
+			this.count = count;
+			this.offset = offset;
+			final ByteBuffer[] buffers = new ByteBuffer[count];
+			for (int i = 0; i < count; ++i)
+				buffers[i] = ring[offset + i].getBuffer();
+			done = buf.submitRead(file, firstBlock, buffers);
+		}
+
+		boolean covers(int block) {
+			return block >= firstBlock && block < firstBlock + count;
+		}
+
+		void await() throws IOException, InterruptedException {
+			try {
+				done.get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+
+		void awaitQuietly() throws InterruptedException {
+			try {
+				done.get();
+			} catch (ExecutionException e) {
+				// we don't need it
+			}
+		}
+	}
+
+	/**
+	 * Returns page {@code pageID} - from the pool if there, else from the ring.
+	 * The page is valid till the next call.
+	 */
+	public Page read(int pageID) throws IOException, InterruptedException {
+		release();
+		final int block = file.blockOf(pageID);
+		final boolean sequential = block == lastBlock + 1;
+		lastBlock = block;
+		final Frame frame = buf.lookupPinned(pageID, file);
+		if (frame != null) {
+			pinned = frame;
+			pinnedPageID = pageID;
+			return new Page(pageID, frame);
+		}
+		final ByteBuffer mapped = file.mappedPage(pageID);
+		if (mapped != null) return new Page(pageID, new Frame(-1, mapped));
+		if (current == null || !current.covers(block)) {
+			if (next != null && next.covers(block)) {
+				current = next;
+				next = null;
+			} else { // forget the read ahead
+				if (next != null) next.awaitQuietly(); // it may be writing
+				next = null; // to the frames we are about to reuse
+				current = new Batch(block, sequential ? batchSize(block) : 1,
+					0);
+			}
+		}
+		current.await();
+		// sequential - read the batch after the current one ahead
+		if (sequential && next == null) {
+			final int nextBlock = current.firstBlock + current.count;
+			if (nextBlock < file.blocks())
+				next = new Batch(nextBlock, batchSize(nextBlock),
+					half - current.offset);
+		}
+		return new Page(pageID, ring[current.offset + block
+			- current.firstBlock]);
+	}
+
+	/** Unpins the pool page returned last, if any - call when done */
+	public void close() {
+		release();
+		if (next != null) next.done.cancel(false);
+		next = current = null;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void release() {
+		if (pinned == null) return;
+		buf.unpinPage(pinnedPageID, file);
+		pinned = null;
+	}
+
+	/** The blocks to read starting at {@code block} - at least one */
+	private int batchSize(int block) throws IOException {
+		return Math.max(1, Math.min(half, file.blocks() - block));
+	}
+}
@@ -0,0 +1,246 @@
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes dirty pages back in the background, so commits do not have to and
+ * eviction finds clean victims. Wakes up every {@link #INTERVAL_MILLIS} and,
+ * if more than the high watermark of the frames are dirty, writes unpinned
+ * dirty pages - that is pages of committed transactions - till no more than
+ * the low watermark are. Pages are written in block order - the dirty pages
+ * of adjacent blocks of a file in one gathering write.
+ *
+ * A frame is written holding its {@link Frame#io} lock and pinned, so it is
+ * not evicted under our feet. Transactions take the io lock before modifying a
+ * page they just pinned (see {@link BufferManager#allocFrame}) - we only write
+ * frames no one else has pinned, so no one modifies them while we write.
+ * Permanent pages are not pinned by their transactions - a copy of them is
+ * written instead, without the changes of the transactions modifying them
+ * (see {@link Frame#snapshot()}). The log is forced before the pages of
+ * asynchronous commits are written.
+ */
+final class Cleaner implements Runnable {
+
+	private static final long INTERVAL_MILLIS = 100;
+	/** max number of pages in a write */
+	private static final int MAX_RUN = 64;
+	private final List<Partition> partitions;
+	// watermarks in frames
+	private final int low;
+	private final int high;
+	private Thread thread; // null if not started
+	private volatile boolean running = true;
+
+	Cleaner(List<Partition> partitions, int numBufs, int lowPercent,
+			int highPercent) {
+		this.partitions = partitions;
+		low = numBufs * lowPercent / 100;
+		high = numBufs * highPercent / 100;
+	}
+
+	void start() {
+		thread = new Thread(this, "Page cleaner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the cleaner thread, if started, and writes back all the unpinned
+	 * dirty pages
+	 */
+	void shutdown() throws InterruptedException, IOException {
+		synchronized (this) {
+			running = false;
+			notifyAll();
+		}
+		// do not interrupt - an interrupted write closes the FileChannel
+		if (thread != null) thread.join();
+		clean(0);
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				synchronized (this) {
+					if (running) wait(INTERVAL_MILLIS);
+				}
+				if (running) clean(high, low);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace(); // TODO logger - pages stay dirty, retry
+			}
+		}
+	}
+
+	/**
+	 * Writes the unpinned dirty pages first written while clean before
+	 * {@code lsn} - see {@link Frame#getRecLsn()}. Returns their number.
+	 */
+	int writeOlder(long lsn) throws IOException {
+		final List<Dirty> old = new ArrayList<>();
+		for (Dirty d : collect())
+			if (d.frame.getRecLsn() < lsn) old.add(d);
+		return write(old, old.size());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** If more than {@code threshold} frames are dirty clean down to target */
+	private void clean(int threshold, int target) throws IOException {
+		final List<Dirty> dirty = collect();
+		if (dirty.size() > threshold) write(dirty, dirty.size() - target);
+	}
+
+	private void clean(int target) throws IOException {
+		clean(target, target);
+	}
+
+	/**
+	 * Writes (at least) {@code count} of the {@code dirty} pages, in block
+	 * order. Returns the number of pages written.
+	 */
+	private int write(List<Dirty> dirty, int count) throws IOException {
+		Collections.sort(dirty);
+		int written = 0;
+		for (int i = 0, j; i < dirty.size() && written < count; i = j) {
+			// the run of adjacent blocks of the same file starting at i
+			for (j = i + 1; j < dirty.size() && j - i < MAX_RUN
+				&& dirty.get(j).follows(dirty.get(j - 1)); ++j) {}
+			written += writeRun(dirty.subList(i, j));
+		}
+		return written;
+	}
+
+	/** Some pages of the run may be pinned meanwhile - write the rest */
+	private static int writeRun(List<Dirty> run) throws IOException {
+		final List<Dirty> held = new ArrayList<>();
+		int written = 0;
+		try {
+			for (Dirty d : run) {
+				if (d.acquire()) held.add(d);
+				else written += writeHeld(held); // the run is broken
+			}
+			written += writeHeld(held);
+		} finally {
+			for (Dirty d : held)
+				d.release(); // if the write failed
+		}
+		return written;
+	}
+
+	/** Writes the frames held - adjacent blocks - and releases them */
+	private static int writeHeld(List<Dirty> held) throws IOException {
+		if (held.isEmpty()) return 0;
+		final ByteBuffer[] buffers = new ByteBuffer[held.size()];
+		long lsn = 0;
+		for (int i = 0; i < buffers.length; ++i) {
+			final Dirty d = held.get(i);
+			if (!d.frame.isPermanent()) d.frame.startWrite(); // no one
+			// else has it pinned - a permanent one is started by its copy
+			buffers[i] = d.image;
+			lsn = Math.max(lsn, d.frame.getPageLsn());
+		}
+		final Dirty first = held.get(0);
+		try {
+			LogManager.getInstance().flush(lsn);
+			first.file.writeBlocks(first.block, buffers);
+		} catch (IOException e) {
+			for (Dirty d : held)
+				d.frame.failWrite();
+			throw e;
+		}
+		for (Dirty d : held) {
+			d.frame.endWrite(); // out of the dirty page table
+			d.release();
+		}
+		final int written = held.size();
+		held.clear();
+		return written;
+	}
+
+	/**
+	 * The dirty frames that are not pinned, or permanent - a snapshot, not
+	 * locking
+	 */
+	private List<Dirty> collect() {
+		final List<Dirty> dirty = new ArrayList<>();
+		for (Partition p : partitions)
+			for (Frame frame : p.getFrames()) {
+				final DiskFile file = frame.getFile();
+				if (file != null && frame.isDirty()
+					&& (frame.isEvictable() || frame.isPermanent()))
+					dirty.add(new Dirty(p, frame, file, frame.getPageId()));
+			}
+		return dirty;
+	}
+
+	/** A dirty frame and the page it held when we looked at it */
+	private static final class Dirty implements Comparable<Dirty> {
+
+		final Partition partition;
+		final Frame frame;
+		final DiskFile file;
+		final long address;
+		final int block;
+		/** what is written - the buffer of the frame or a copy if permanent */
+		ByteBuffer image;
+
+		Dirty(Partition partition, Frame frame, DiskFile file, int pageID) {
+			this.partition = partition;
+			this.frame = frame;
+			this.file = file;
+			this.address = file.address(pageID);
+			this.block = file.blockOf(pageID);
+		}
+
+		/**
+		 * Locks and pins the frame, if it still holds our page dirty and no
+		 * one else has it pinned - otherwise returns false.
+		 */
+		boolean acquire() {
+			if (!frame.io.tryLock()) return false;
+			if (frame.isPermanent()) { // never evicted
+				image = frame.snapshot();
+				if (image != null) return true;
+			} else if (frame.tryPin()) {
+				if (frame.getPinCount().get() == 1 && frame.holds(address)
+					&& frame.isDirty()) {
+					image = frame.getBuffer();
+					return true;
+				}
+				partition.unpin(frame);
+			}
+			frame.io.unlock();
+			return false;
+		}
+
+		void release() {
+			if (!frame.isPermanent()) partition.unpin(frame);
+			frame.io.unlock();
+		}
+
+		boolean follows(Dirty previous) {
+			return file == previous.file && block == previous.block + 1;
+		}
+
+		@Override
+		public int compareTo(Dirty o) {
+			if (file != o.file) {
+				final int h1 = System.identityHashCode(file);
+				final int h2 = System.identityHashCode(o.file);
+				return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+			}
+			return block < o.block ? -1 : (block == o.block ? 0 : 1);
+		}
+	}
+}
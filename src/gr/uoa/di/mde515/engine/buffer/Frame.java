@@ -1,54 +1,510 @@
-package gr.uoa.di.mde515.engine.buffer;
-
-import gr.uoa.di.mde515.engine.Engine;
-
-import java.nio.ByteBuffer;
-import java.util.concurrent.atomic.AtomicInteger;
-
-/** A wrapper around a ByteBuffer representing a frame in the main memory */
-final class Frame {
-
-	private static final int PAGE_SIZE = Engine.PAGE_SIZE;
-	private final int framenumber;
-	private final AtomicInteger pincount = new AtomicInteger();
-	private volatile boolean dirty;
-	private final ByteBuffer data;
-
-	public Frame(int i) {
-		framenumber = i;
-		dirty = false;
-		data = ByteBuffer.allocate(PAGE_SIZE);
-	}
-
-	public int getFrameNumber() {
-		return framenumber;
-	}
-
-	public ByteBuffer getBuffer() {
-		return data;
-	}
-
-	public boolean isDirty() {
-		return dirty;
-	}
-
-	public int increasePincount() {
-		return pincount.incrementAndGet();
-	}
-
-	public int decreasePincount() {
-		return pincount.decrementAndGet();
-	}
-
-	public void setDirty(boolean dirty) {
-		this.dirty = dirty;
-	}
-
-	public AtomicInteger getPinCount() {
-		return pincount;
-	}
-
-	public void resetPinCount() {
-		pincount.set(0);
-	}
-}
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.engine.log.PageUpdate;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A wrapper around a ByteBuffer representing a frame in the main memory - a
+ * heap buffer or a slice of a direct one (see {@link BufferManager}). The
+ * pin count is -1 while the frame holds no page (or is being evicted) so that
+ * the lock free pinning in {@link Partition} can not pin a frame under the
+ * feet of the thread that reassigns it.
+ */
+final class Frame {
+
+	private static final int UNMAPPED = -1;
+	private final int framenumber; // in its partition
+	private final AtomicInteger pincount = new AtomicInteger(UNMAPPED);
+	private volatile boolean dirty;
+	/**
+	 * The end of the log when the page was first written while clean - no
+	 * record of its changes not on disk is before that. Meaningful only if
+	 * dirty - see {@link LogManager#checkpoint}.
+	 */
+	private volatile long recLsn;
+	/**
+	 * The recovery LSN of the contents being written back - -1 if no write is
+	 * in progress. The frame is marked clean as the write starts, so the page
+	 * still counts as dirty till it ends - see {@link #dirtySince()}.
+	 */
+	private volatile long writing = -1;
+	/**
+	 * The end of the commit record of the last changes to the page - it is not
+	 * written back before the log is forced up to it (see
+	 * {@link LogManager#flush(long)}). 0 if none.
+	 */
+	private volatile long pageLsn;
+	private final ByteBuffer data;
+	// the page this frame holds - written holding the partition's lock
+	private volatile int pageId;
+	private volatile long address; // of the page - see DiskFile#address
+	private volatile DiskFile file; // null if the frame holds no page
+	private volatile boolean permanent;
+	/**
+	 * The images of the transactions writing the page, by id - empty if not
+	 * written since logged. Guarded by this - see {@link #beforeWrite}.
+	 */
+	private final Map<Long, Image> images = new HashMap<>();
+	/**
+	 * the transaction that created the page - it did not exist before its
+	 * image. 0 if none.
+	 */
+	private volatile long creator;
+	/** incremented when the frame is unmapped - see {@link Page} */
+	private volatile int generation;
+	/** true while the page is read in - see {@link #startRead()} */
+	private volatile boolean reading;
+	/**
+	 * Held while the page is read in or written back outside the partition lock
+	 * (see {@link Partition#load} and {@link Cleaner}) and by a transaction that
+	 * pinned the page to modify it, till it makes sure the committed changes
+	 * are on disk
+	 */
+	final Lock io = new ReentrantLock();
+	/**
+	 * Held while the records of the page are read, shared, or written - just
+	 * for the read or write, by a thread holding the page pinned. See
+	 * {@link Page#latch(boolean)}.
+	 */
+	final ReadWriteLock latch = new ReentrantReadWriteLock();
+
+	/**
+	 * The bytes a transaction wrote to the page, as they were before it first
+	 * wrote each - so the changes of the transactions writing different
+	 * records of a page are logged and undone apart. Holds the runs of bytes
+	 * written only, not the whole page.
+	 */
+	static final class Image {
+
+		/** the runs of bytes written, by offset - disjoint, never adjacent */
+		private final TreeMap<Integer, byte[]> runs = new TreeMap<>();
+		/** the end of the log at the first write - no record of ours before */
+		final long since;
+
+		Image(long since) {
+			this.since = since;
+		}
+
+		/** Keeps the bytes of {@code page} in [from, to) not kept already */
+		void keep(ByteBuffer page, int from, int to) {
+			for (int i = from; i < to;) {
+				final Entry<Integer, byte[]> prev = runs.floorEntry(i);
+				final int prevEnd = prev == null ? -1 : prev.getKey()
+					+ prev.getValue().length;
+				if (prevEnd > i) { // kept
+					i = prevEnd;
+					continue;
+				}
+				final Integer next = runs.higherKey(i);
+				final int end = next == null ? to : Math.min(to, next);
+				int start = i;
+				byte[] run = new byte[end - i];
+				for (int j = 0; j < run.length; ++j)
+					run[j] = page.get(i + j);
+				if (prevEnd == i) { // merge with the neighbours
+					start = prev.getKey();
+					run = concat(prev.getValue(), run);
+				}
+				if (next != null && next == end)
+					run = concat(run, runs.remove(next));
+				runs.put(start, run);
+				i = end;
+			}
+		}
+
+		/** Puts the bytes kept back in {@code page} */
+		void restore(ByteBuffer page) {
+			for (Entry<Integer, byte[]> run : runs.entrySet()) {
+				final byte[] bytes = run.getValue();
+				for (int j = 0; j < bytes.length; ++j)
+					page.put(run.getKey() + j, bytes[j]);
+			}
+		}
+
+		/** The changes to the bytes kept - null if none */
+		PageUpdate diff(String file, int pageID, ByteBuffer page) {
+			final byte[] before = new byte[page.capacity()];
+			final BitSet written = new BitSet();
+			for (Entry<Integer, byte[]> run : runs.entrySet()) {
+				final byte[] bytes = run.getValue();
+				System.arraycopy(bytes, 0, before, run.getKey(), bytes.length);
+				written.set(run.getKey(), run.getKey() + bytes.length);
+			}
+			return PageUpdate.diff(file, pageID, before, page, written);
+		}
+
+		private static byte[] concat(byte[] a, byte[] b) {
+			final byte[] c = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, c, a.length, b.length);
+			return c;
+		}
+	}
+
+	public Frame(int i, ByteBuffer data) {
+		framenumber = i;
+		dirty = false;
+		this.data = data;
+	}
+
+	public int getFrameNumber() {
+		return framenumber;
+	}
+
+	public ByteBuffer getBuffer() {
+		return data;
+	}
+
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public int increasePincount() {
+		return pincount.incrementAndGet();
+	}
+
+	public int decreasePincount() {
+		return pincount.decrementAndGet();
+	}
+
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+
+	long getRecLsn() {
+		return recLsn;
+	}
+
+	/**
+	 * The recovery LSN of the page if it is dirty or being written back - -1
+	 * otherwise. Reads the flag first: {@link #startWrite()} marks the write
+	 * before clearing it.
+	 */
+	long dirtySince() {
+		final boolean d = dirty;
+		final long rec = recLsn;
+		final long w = writing;
+		if (w == -1) return d ? rec : -1;
+		return d ? Math.min(rec, w) : w;
+	}
+
+	/**
+	 * Marks the frame clean before it is written back - writes to the buffer
+	 * meanwhile dirty it again. Call {@link #endWrite()} or
+	 * {@link #failWrite()} once done.
+	 */
+	void startWrite() {
+		writing = recLsn;
+		dirty = false;
+	}
+
+	/** The contents are written back - they may be forced */
+	void endWrite() {
+		writing = -1;
+	}
+
+	/** The write back failed - the frame is dirty as of the contents too */
+	void failWrite() {
+		final long lsn = writing;
+		if (lsn != -1 && (!dirty || lsn < recLsn)) recLsn = lsn;
+		dirty = true;
+		writing = -1;
+	}
+
+	long getPageLsn() {
+		return pageLsn;
+	}
+
+	/** NOOP if the page holds later changes already */
+	synchronized void setPageLsn(long lsn) {
+		if (lsn > pageLsn) pageLsn = lsn;
+	}
+
+	public AtomicInteger getPinCount() {
+		return pincount;
+	}
+
+	/** Pins the frame unless it is unmapped or being evicted */
+	boolean tryPin() {
+		for (;;) {
+			final int count = pincount.get();
+			if (count == UNMAPPED) return false;
+			if (pincount.compareAndSet(count, count + 1)) return true;
+		}
+	}
+
+	/** Claims an unpinned frame for eviction - fails if it got pinned */
+	boolean claim() {
+		return pincount.compareAndSet(0, UNMAPPED);
+	}
+
+	// =========================================================================
+	// Mapping - the page held by the frame
+	// =========================================================================
+	void map(int pageID, DiskFile disk, boolean pin) {
+		synchronized (this) {
+			images.clear();
+			pageLsn = 0;
+		}
+		creator = 0;
+		pageId = pageID;
+		address = disk.address(pageID);
+		file = disk;
+		pincount.set(pin ? 1 : 0);
+	}
+
+	/**
+	 * The frame no longer holds its page but keeps its pins - used when the
+	 * read of the page fails while other threads wait for it
+	 */
+	void invalidate() {
+		file = null;
+	}
+
+	void unmap() {
+		pincount.set(UNMAPPED);
+		dirty = false; // written back or discarded
+		file = null;
+		permanent = false;
+		++generation; // written holding the partition lock
+	}
+
+	int getGeneration() {
+		return generation;
+	}
+
+	int getPageId() {
+		return pageId;
+	}
+
+	/** The address of the page held - the key of the frame in the pool */
+	long getAddress() {
+		return address;
+	}
+
+	/** The file the page held belongs to - used to write back dirty victims */
+	DiskFile getFile() {
+		return file;
+	}
+
+	/** True if the frame holds the page at {@code address} */
+	boolean holds(long address) {
+		return file != null && this.address == address;
+	}
+
+	boolean isPermanent() {
+		return permanent;
+	}
+
+	void setPermanent() {
+		permanent = true;
+	}
+
+	// =========================================================================
+	// Before images - for the log
+	// =========================================================================
+	/**
+	 * Called by {@link Page} before each write of {@code length} bytes at
+	 * {@code pos} - keeps the bytes in the image of the transaction of the
+	 * thread, unless it wrote them already, and the LSN of the write if the
+	 * page is clean
+	 */
+	void beforeWrite(int pos, int length) {
+		if (!dirty) recLsn = LogManager.getInstance().getEnd();
+		final long transaction = BufferManager.transaction();
+		if (transaction == 0) return; // not logged - eg creating a file, or
+		// logged on its own - see SystemChange
+		synchronized (this) { // see snapshot
+			Image image = images.get(transaction);
+			if (image == null) {
+				image = new Image(LogManager.getInstance().getEnd());
+				images.put(transaction, image);
+			}
+			image.keep(data, pos, pos + length);
+		}
+	}
+
+	/**
+	 * A copy of a dirty permanent page to be written back, or null if clean -
+	 * the write is started (see {@link #startWrite()}). Permanent pages are not
+	 * pinned by their transactions, so the bytes written by the transactions
+	 * in progress are masked with their images - the copy holds committed
+	 * changes only. The page stays dirty then, as of the first write of those
+	 * transactions: their records are not before it. Null too while a
+	 * {@link SystemChange} is in progress - the latch is not waited for.
+	 */
+	ByteBuffer snapshot() {
+		final Lock shared = latch.readLock();
+		if (!shared.tryLock()) return null;
+		try {
+			synchronized (this) { // no first writes meanwhile - see beforeWrite
+				if (!dirty) return null;
+				long since = LogManager.getInstance().getEnd(); // before the copy
+				final ByteBuffer copy = ByteBuffer.allocate(data.capacity());
+				final ByteBuffer all = data.duplicate();
+				all.clear();
+				copy.put(all).flip();
+				for (Image image : images.values()) {
+					image.restore(copy);
+					since = Math.min(since, image.since);
+				}
+				startWrite();
+				if (!images.isEmpty()) {
+					recLsn = since;
+					dirty = true;
+				}
+				return copy;
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * The changes of {@code transaction} to the page - of the bytes it wrote
+	 * only. Null if none.
+	 */
+	synchronized PageUpdate update(long transaction) {
+		final Image image = images.get(transaction);
+		final DiskFile f = file;
+		if (image == null || f == null) return null;
+		return image.diff(f.getPath(), pageId, data);
+	}
+
+	/** The changes of the transaction are logged - forget its image */
+	synchronized void clearImage(long transaction) {
+		images.remove(transaction);
+		if (creator == transaction) creator = 0;
+	}
+
+	/** Forgets the images of all the transactions - the page is discarded */
+	synchronized void clearImages() {
+		images.clear();
+		creator = 0;
+	}
+
+	/** The image of {@code transaction} - null if none */
+	synchronized Image getImage(long transaction) {
+		return images.get(transaction);
+	}
+
+	/**
+	 * Puts back the image of a stolen page read in again - the changes of the
+	 * transaction are still to be logged on commit. The page is dirty as of
+	 * the STEAL record at {@code lsn} (-1 if none) - the disk holds changes
+	 * that may be undone.
+	 */
+	synchronized void restore(Image image, long transaction,
+			boolean isCreated, long lsn) {
+		images.put(transaction, image);
+		if (isCreated) creator = transaction;
+		if (lsn != -1) {
+			recLsn = lsn;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Undoes the changes of {@code transaction} in memory - the bytes it wrote
+	 * are restored, those of other transactions are left alone. The page stays
+	 * dirty - it may hold committed changes not written back, or the disk the
+	 * changes undone if stolen. NOOP if no image.
+	 */
+	synchronized void undo(long transaction) {
+		final Image image = images.remove(transaction);
+		if (image == null) return;
+		image.restore(data);
+		if (creator == transaction) creator = 0;
+	}
+
+	/** True if the page was created by {@code transaction} */
+	boolean isCreated(long transaction) {
+		return transaction != 0 && creator == transaction;
+	}
+
+	/**
+	 * The page is new - discarded if {@code transaction} aborts. NOOP if 0,
+	 * as for a page created by a {@link SystemChange}.
+	 */
+	void setCreated(long transaction) {
+		creator = transaction;
+	}
+
+	/**
+	 * True if the frame holds a page pinned by {@code transaction} alone - a
+	 * page it may steal. Either one it modified, no other transaction wrote
+	 * it, or one in {@code held}, the pages the transaction keeps pinned, not
+	 * modified by any (see {@link BufferManager#hold(long)}) - the single pin
+	 * is the transaction's then, not one of its thread.
+	 */
+	boolean isStealable(long transaction, Set<Long> held) {
+		if (transaction == 0 || permanent || reading || pincount.get() != 1)
+			return false;
+		synchronized (this) {
+			if (images.isEmpty()) return held.contains(address);
+			return images.size() == 1 && images.containsKey(transaction);
+		}
+	}
+
+	/** Claims a stealable frame - fails if pinned by another thread meanwhile */
+	boolean claimOwned() {
+		return pincount.compareAndSet(1, UNMAPPED);
+	}
+
+	/** Gives a claimed frame back - with {@code pins}, as claimed */
+	void unclaim(int pins) {
+		pincount.set(pins);
+	}
+
+	/** True if claimed but still mapped - being written back */
+	boolean isClaimed() {
+		return pincount.get() == UNMAPPED;
+	}
+
+	// =========================================================================
+	// I/O in progress
+	// =========================================================================
+	/**
+	 * Marks the frame as being read in. Called holding the partition lock,
+	 * before the frame is mapped, so threads finding the page in the page table
+	 * wait in {@link #awaitRead()} till the data are there.
+	 */
+	void startRead() {
+		io.lock();
+		reading = true;
+	}
+
+	void endRead() {
+		reading = false;
+		io.unlock();
+	}
+
+	/** Waits for a read of the frame in progress, if any */
+	void awaitRead() {
+		if (!reading) return;
+		io.lock(); // released by the reader once done
+		io.unlock();
+	}
+
+	/**
+	 * A frame may be handed over to another page if it holds a page that is
+	 * neither pinned nor permanent nor being read in.
+	 */
+	boolean isEvictable() {
+		return file != null && !permanent && !reading && pincount.get() == 0;
+	}
+}
@@ -1,107 +1,195 @@
-package gr.uoa.di.mde515.engine.buffer;
-
-import java.nio.ByteBuffer;
-
-public class Page {
-
-	private static final BufferManager buf = BufferManager.getInstance();
-	// mutable state - oops private volatile boolean dirty; // TODO cache
-	private final int pageid;
-	private final ByteBuffer dat;
-
-	/**
-	 * Used by the buffer manager
-	 *
-	 * @param pageid
-	 * @param dat
-	 */
-	Page(int pageid, ByteBuffer dat) {
-		this.pageid = pageid;
-		this.dat = dat;
-	}
-
-	/**
-	 * Used by subclasses - passing in a page returned by the
-	 * {@link BufferManager}.
-	 *
-	 * @param allocFrame
-	 *            the allocated page by the BM - mapped to aframe
-	 */
-	protected Page(Page allocFrame) {
-		this(allocFrame.pageid, allocFrame.dat);
-	}
-
-	public final int getPageId() {
-		return pageid;
-	}
-
-	// =========================================================================
-	// Read
-	// =========================================================================
-	public final <V> V readType(int offset, Serializer<V> ser) {
-		return ser.readValue(dat, offset);
-	}
-
-	public final byte readByte(int pos) {
-		return dat.get(pos);
-	}
-
-	public final int readInt(int pos) {
-		return dat.getInt(pos);
-	}
-
-	public final short readShort(int pos) {
-		return dat.getShort(pos);
-	}
-
-	// =========================================================================
-	// Write
-	// =========================================================================
-	public final <V> void writeType(int offset, Serializer<V> ser, V value) {
-		ser.writeValue(dat, offset, value);
-		// if (!dirty) { // TODO cache - need to clean it too !
-		buf.setPageDirty(pageid);
-		// dirty = true;
-	}
-
-	public final void writeShort(int pos, short value) {
-		dat.putShort(pos, value);
-		buf.setPageDirty(pageid);
-	}
-
-	public final void writeByte(int pos, byte value) {
-		dat.put(pos, value);
-		buf.setPageDirty(pageid);
-	}
-
-	public final void writeInt(int pos, int value) {
-		dat.putInt(pos, value);
-		buf.setPageDirty(pageid);
-	}
-
-	// =========================================================================
-	// Object Overrides
-	// =========================================================================
-	@Override
-	public final String toString() {
-		return "@" + getPageId();
-	}
-
-	@Override
-	public final int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + pageid;
-		return result;
-	}
-
-	@Override
-	public final boolean equals(Object obj) {
-		if (this == obj) return true;
-		if (obj == null) return false;
-		if (getClass() != obj.getClass()) return false;
-		Page other = (Page) obj;
-		if (pageid != other.pageid) return false;
-		return true;
-	}
-}
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A page mapped to a frame of the {@link BufferManager}. Writes mark the frame
+ * dirty directly (a volatile write) - no lock is taken, no lookup is made. The
+ * first write of a transaction to a byte keeps its old value, so the changes
+ * of each transaction can be logged on commit (see
+ * {@link BufferManager#update(long)}) - and undone - apart from the changes of
+ * the others writing other records of the page.
+ *
+ * If the frame is handed over to another page meanwhile - the page was stolen
+ * by the transaction holding it, see {@link Partition} - the page is read in
+ * again on its next access.
+ */
+public class Page {
+
+	private final int pageid;
+	private final DiskFile file; // null if not in the pool
+	private Frame frame;
+	private ByteBuffer dat;
+	/** of the frame when mapped to this page */
+	private int generation;
+
+	/**
+	 * Used by the buffer manager
+	 *
+	 * @param pageid
+	 * @param frame
+	 *            the frame the page is mapped to
+	 */
+	Page(int pageid, Frame frame) {
+		this.pageid = pageid;
+		this.file = frame.getFile();
+		this.generation = frame.getGeneration();
+		this.frame = frame;
+		this.dat = frame.getBuffer();
+	}
+
+	/**
+	 * Used by subclasses - passing in a page returned by the
+	 * {@link BufferManager}.
+	 *
+	 * @param allocFrame
+	 *            the allocated page by the BM - mapped to aframe
+	 */
+	protected Page(Page allocFrame) {
+		this.pageid = allocFrame.pageid;
+		this.file = allocFrame.file;
+		this.generation = allocFrame.generation;
+		this.frame = allocFrame.frame;
+		this.dat = allocFrame.dat;
+	}
+
+	public final int getPageId() {
+		return pageid;
+	}
+
+	/** The size of the page in bytes - as configured for the Engine */
+	public final int getPageSize() {
+		return dat.capacity();
+	}
+
+	// =========================================================================
+	// Read
+	// =========================================================================
+	public final <V> V readType(int offset, Serializer<V> ser) {
+		return ser.readValue(data(), offset);
+	}
+
+	public final byte readByte(int pos) {
+		return data().get(pos);
+	}
+
+	public final int readInt(int pos) {
+		return data().getInt(pos);
+	}
+
+	public final short readShort(int pos) {
+		return data().getShort(pos);
+	}
+
+	// =========================================================================
+	// Write
+	// =========================================================================
+	public final <V> void writeType(int offset, Serializer<V> ser, V value) {
+		final ByteBuffer data = data();
+		frame.beforeWrite(offset, ser.getTypeSize());
+		ser.writeValue(data, offset, value);
+		frame.setDirty(true); // after the write - see Partition#flush
+	}
+
+	public final void writeShort(int pos, short value) {
+		final ByteBuffer data = data();
+		frame.beforeWrite(pos, 2);
+		data.putShort(pos, value);
+		frame.setDirty(true);
+	}
+
+	public final void writeByte(int pos, byte value) {
+		final ByteBuffer data = data();
+		frame.beforeWrite(pos, 1);
+		data.put(pos, value);
+		frame.setDirty(true);
+	}
+
+	public final void writeInt(int pos, int value) {
+		final ByteBuffer data = data();
+		frame.beforeWrite(pos, 4);
+		data.putInt(pos, value);
+		frame.setDirty(true);
+	}
+
+	// =========================================================================
+	// Latch
+	// =========================================================================
+	/**
+	 * The latch of the page - shared by the readers of its records, exclusive
+	 * for a writer, so a record is never read half written. Held just for
+	 * the read or write, with the page pinned - never while waiting for a
+	 * lock or a frame - a record lock may only be tried under it. The writers
+	 * of the records of a page are kept apart by their record locks.
+	 */
+	public final Lock latch(boolean exclusive) {
+		data(); // the frame of the page, if stolen meanwhile
+		return exclusive ? frame.latch.writeLock() : frame.latch.readLock();
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * The buffer of the page - read in again if its frame was reassigned.
+	 * Frames are stolen only by the thread of the transaction that holds the
+	 * page (see {@link Partition}), so this can't race with the steal.
+	 */
+	private ByteBuffer data() {
+		if (frame.getGeneration() != generation) reload();
+		return dat;
+	}
+
+	/** The frame of the page - read in again if reassigned */
+	Frame frame() {
+		data();
+		return frame;
+	}
+
+	private void reload() {
+		final Page page;
+		try {
+			page = BufferManager.getInstance().allocFrame(pageid, file);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read page " + pageid
+				+ " back", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted reading page " + pageid
+				+ " back", e);
+		}
+		frame = page.frame;
+		dat = page.dat;
+		generation = page.generation;
+	}
+
+	// =========================================================================
+	// Object Overrides
+	// =========================================================================
+	@Override
+	public final String toString() {
+		return "@" + getPageId();
+	}
+
+	@Override
+	public final int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + pageid;
+		return result;
+	}
+
+	@Override
+	public final boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (obj == null) return false;
+		if (getClass() != obj.getClass()) return false;
+		Page other = (Page) obj;
+		if (pageid != other.pageid) return false;
+		return true;
+	}
+}
@@ -0,0 +1,526 @@
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.engine.TransactionTimeoutException;
+import gr.uoa.di.mde515.engine.buffer.BufferManager.ReplacementAlgorithm;
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.engine.log.PageUpdate;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A slice of the buffer pool - the {@link BufferManager} hashes each page
+ * address to one partition. A partition has its own frames, page table, free list and
+ * replacement state, guarded by its own lock (the partition instance), so
+ * threads working on pages of different partitions do not contend. The page
+ * table is concurrent - hits, pins and unpins do not lock at all (see
+ * {@link Frame#tryPin()}). Pages are read in outside the lock - the frame is
+ * mapped while the read is in progress and threads asking for the page wait
+ * on the frame (see {@link Frame#awaitRead()}), not on the partition.
+ *
+ * Dirty victims are written back outside the lock - the frame is claimed and
+ * stays in the page table till written, threads asking for its page meanwhile
+ * wait on the partition (see {@link #writeBack(Frame)}).
+ *
+ * Steal: when all the frames are pinned a transaction may evict the pages it
+ * alone holds pinned - those it read, or modified itself if no other
+ * transaction wrote them since logged (see
+ * {@link Frame#isStealable(long, Set)}). The changes are logged (with the
+ * before image) before the page is written, and the image is kept here, to be
+ * put back in the frame if the page is read in again, or to undo the changes
+ * on abort. The transaction keeps its pin on the page - it is pinned again
+ * when read in. Only the pages of the transaction of the thread are stolen, so
+ * the {@link Page}s of other threads are never pulled under their feet.
+ */
+final class Partition {
+
+	/** the frames of the partition - unmodifiable list */
+	private final List<Frame> frames;
+	/** maps page addresses to their frames - modified holding the lock */
+	private final ConcurrentMap<Long, Frame> pageTable = new ConcurrentHashMap<>();
+	/** contains the numbers of the frames that hold no page */
+	private final List<Integer> freeList = new ArrayList<>();
+	/** chooses the frame to evict when the free list is empty */
+	private final ReplacementPolicy policy;
+	/** number of threads waiting for a frame - modified holding the lock */
+	private volatile int waiters;
+	/**
+	 * the pages stolen by transactions in progress, by address - guarded by
+	 * the lock
+	 */
+	private final Map<Long, Stolen> stolen = new HashMap<>();
+	/** the size of {@link #stolen} - read without the lock */
+	private volatile int stolenPages;
+	/**
+	 * the frames claimed to be stolen, till written back - guarded by the lock
+	 */
+	private final Map<Frame, Stolen> stealing = new HashMap<>();
+
+	/** A page of a transaction in progress evicted, with its changes if any */
+	private static final class Stolen {
+
+		final long transaction;
+		/** null if the transaction only read the page */
+		final Frame.Image image;
+		/** the changes written back - null if none */
+		final PageUpdate update;
+		/** the page was created by the transaction */
+		final boolean created;
+		/** of the STEAL record - -1 if none */
+		final long lsn;
+
+		Stolen(long transaction, Frame.Image image, PageUpdate update,
+				boolean created, long lsn) {
+			this.transaction = transaction;
+			this.image = image;
+			this.update = update;
+			this.created = created;
+			this.lsn = lsn;
+		}
+	}
+
+	/** Creates a partition with a frame for each of the {@code buffers} */
+	Partition(List<ByteBuffer> buffers, ReplacementAlgorithm algorithm) {
+		List<Frame> frames1 = new ArrayList<>();
+		for (int i = 0; i < buffers.size(); i++) {
+			frames1.add(new Frame(i, buffers.get(i)));
+			freeList.add(i);
+		}
+		frames = Collections.unmodifiableList(frames1);
+		policy = algorithm.newPolicy(buffers.size());
+	}
+
+	// =========================================================================
+	// Lock free
+	// =========================================================================
+	/** Returns the frame holding the page at {@code address} or null if none */
+	Frame lookup(long address) {
+		final Frame frame = pageTable.get(address);
+		if (frame == null) return null;
+		frame.awaitRead();
+		if (!frame.holds(address)) return null; // the read failed
+		policy.accessed(frame.getFrameNumber());
+		return frame;
+	}
+
+	/** Returns the frame holding the page at address pinned or null if none */
+	Frame lookupPinned(long address) {
+		final Frame frame = pageTable.get(address);
+		if (frame == null || !frame.tryPin()) return null;
+		frame.awaitRead();
+		if (!frame.holds(address)) {
+			if (frame.getFile() != null) unpin(frame); // reassigned meanwhile
+			else synchronized (this) { // the read failed
+				_release(frame);
+			}
+			return null;
+		}
+		policy.accessed(frame.getFrameNumber());
+		return frame;
+	}
+
+	/**
+	 * Decrease the pinCount of the frame. If the pin count of the frame reaches
+	 * zero the frame may be evicted so it notifiesAll() the threads waiting
+	 * for a frame. Permanent frames keep no pin count. TODO throw on negative
+	 * pinCount
+	 *
+	 * @return the current pin count of the page
+	 */
+	int unpin(Frame frame) {
+		if (!frame.isPermanent() && frame.decreasePincount() == 0
+			&& waiters > 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+		return frame.getPinCount().intValue();
+	}
+
+	// =========================================================================
+	// Holding the lock
+	// =========================================================================
+	/**
+	 * Returns the frame holding {@code pageID}, reading the page from
+	 * {@code file} to a free or evicted frame if not already there. The page is
+	 * read outside the lock - threads asking for it meanwhile wait on the frame.
+	 */
+	Frame load(int pageID, DiskFile file, boolean pin) throws IOException,
+			InterruptedException {
+		final long address = file.address(pageID);
+		while (true) {
+			Frame frame;
+			Frame victim = null;
+			synchronized (this) {
+				frame = pageTable.get(address);
+				if (frame == null) {
+					final Frame free = _allocFrame(address);
+					// _allocFrame may wait, releasing the lock - the page may
+					// have been loaded meanwhile, mapping it twice would
+					// leave one of the frames out of the page table
+					frame = pageTable.get(address);
+					if (free.getFile() != null) victim = free;
+					else if (frame == null) {
+						frame = free;
+						frame.startRead(); // no one else locks a claimed frame
+						_map(pageID, file, frame, pin);
+						break; // read it below
+					} else _free(free);
+				}
+				if (victim == null) {
+					if (frame.isClaimed()) { // being written back
+						wait();
+						continue;
+					}
+					// not evicted - we hold the lock and it is mapped
+					if (pin) frame.increasePincount();
+					policy.accessed(frame.getFrameNumber());
+				}
+			}
+			if (victim != null) { // dirty - to the free list, then retry
+				writeBack(victim);
+				continue;
+			}
+			frame.awaitRead();
+			if (frame.holds(address)) return frame;
+			if (pin) synchronized (this) { // the read failed - retry
+				_release(frame);
+			}
+		}
+		final Frame frame = pageTable.get(address); // mapped by us
+		try {
+			file.readPage(pageID, frame.getBuffer());
+		} catch (IOException e) {
+			synchronized (this) {
+				pageTable.remove(address, frame);
+				frame.invalidate(); // waiters see it does not hold the page
+				if (pin) _release(frame);
+				else if (frame.claim()) _free(frame);
+			}
+			throw e;
+		} finally {
+			frame.endRead();
+		}
+		return frame;
+	}
+
+	/** Maps {@code pageID} to a zeroed frame */
+	Frame loadNew(int pageID, DiskFile file, boolean pin) throws IOException,
+			InterruptedException {
+		while (true) {
+			final Frame frame;
+			synchronized (this) {
+				frame = _allocFrame(file.address(pageID));
+				if (frame.getFile() == null) {
+					final ByteBuffer buffer = frame.getBuffer();
+					for (int i = 0; i < buffer.capacity(); ++i)
+						buffer.put(i, (byte) 0); // may hold the data of a victim
+					_map(pageID, file, frame, pin);
+					// discarded on abort - unless created by a system change
+					frame.setCreated(BufferManager.transaction());
+					return frame;
+				}
+			}
+			writeBack(frame); // dirty - to the free list, then retry
+		}
+	}
+
+	Frame loadPermanent(int pageID, DiskFile file) throws IOException,
+			InterruptedException {
+		final Frame frame = load(pageID, file, true); // so it is not evicted
+		synchronized (this) {
+			frame.setPermanent(); // never a victim from now on
+			frame.decreasePincount(); // permanent frames keep no pin count
+		}
+		return frame;
+	}
+
+	synchronized void pin(long address) {
+		pageTable.get(address).increasePincount();
+	}
+
+	/** See {@link BufferManager#killPage(int, DiskFile)} */
+	void kill(int pageID, DiskFile file) throws IOException {
+		final long address = file.address(pageID);
+		final long transaction = BufferManager.transaction();
+		Frame frame = pageTable.get(address);
+		boolean loaded = false;
+		if (frame == null) { // stolen - undone in the pool, as other
+			// transactions may be reading or writing the other records of the
+			// page. The image is put back when read in - see _map
+			synchronized (this) {
+				final Stolen s = stolen.get(address);
+				if (s == null || s.transaction != transaction) return;
+				if (s.image == null) { // read only - nothing to undo
+					_forget(address);
+					return;
+				}
+			}
+			try {
+				frame = load(pageID, file, true);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted reading page "
+					+ pageID + " back to undo it");
+			}
+			loaded = true;
+		}
+		frame.io.lock(); // always before the partition lock
+		frame.latch.writeLock().lock(); // readers of other records wait
+		try {
+			synchronized (this) {
+				final Stolen s = stolen.get(address);
+				if (s != null && s.transaction == transaction) _forget(address);
+				if (frame.isCreated(transaction)) { // no such page any more
+					frame.clearImages();
+					frame.setDirty(false);
+					_free(frame);
+					return;
+				}
+				frame.undo(transaction); // the page stays in the pool
+				unpin(frame);
+				if (loaded) unpin(frame);
+			}
+		} finally {
+			frame.latch.writeLock().unlock();
+			frame.io.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the page at {@code address} if stolen by {@code transaction} -
+	 * it committed. Returns false if not stolen by it. Locks only if any page
+	 * is stolen - only the thread of the transaction steals its pages.
+	 */
+	boolean forget(long address, long transaction) {
+		if (stolenPages == 0) return false;
+		synchronized (this) {
+			final Stolen s = stolen.get(address);
+			if (s == null || s.transaction != transaction) return false;
+			_forget(address);
+			return true;
+		}
+	}
+
+	/** The changes of a stolen page not read in again - null if none */
+	synchronized PageUpdate stolenUpdate(long address) {
+		final Stolen s = stolen.get(address);
+		return s == null ? null : s.update;
+	}
+
+	// =========================================================================
+	// Holding the io lock of the frame
+	// =========================================================================
+	void flush(int pageID, DiskFile disk) throws IOException {
+		flush(pageTable.get(disk.address(pageID)), pageID, disk);
+	}
+
+	/**
+	 * Writes the page back if dirty. The dirty flag is cleared before the
+	 * write, while {@link Page} sets it after each write to the buffer - so a
+	 * write racing with the flush either makes it to the disk or leaves the
+	 * frame dirty. The page stays in the dirty page table till the write ends
+	 * (see {@link Frame#startWrite()}). Waits for a write of the
+	 * {@link Cleaner} in progress. The log is forced first if the page holds
+	 * changes of asynchronous commits.
+	 */
+	static void flush(Frame frame, int pageID, DiskFile disk)
+			throws IOException {
+		frame.io.lock();
+		try { // may have been evicted meanwhile
+			if (!frame.holds(disk.address(pageID)) || !frame.isDirty()) return;
+			LogManager.getInstance().flush(frame.getPageLsn());
+			frame.startWrite();
+			try {
+				disk.writePage(pageID, frame.getBuffer());
+			} catch (IOException e) {
+				frame.failWrite();
+				throw e;
+			}
+			frame.endWrite();
+		} finally {
+			frame.io.unlock();
+		}
+	}
+
+	/**
+	 * Writes back a dirty victim claimed by {@link #_allocFrame(long)} and
+	 * adds its frame to the free list. Called outside the lock - holding the
+	 * io lock of the frame, so a flush of the page waits. A stolen page is
+	 * logged first - the log comes first. If the write fails the frame is
+	 * given back, still dirty.
+	 */
+	private void writeBack(Frame frame) throws IOException {
+		final Stolen s;
+		synchronized (this) {
+			s = stealing.remove(frame);
+		}
+		long lsn = -1;
+		frame.io.lock();
+		try {
+			final LogManager log = LogManager.getInstance();
+			if (s != null && s.update != null)
+				lsn = log.steal(s.transaction, s.update);
+			log.flush(frame.getPageLsn());
+			frame.startWrite();
+			frame.getFile().writePage(frame.getPageId(), frame.getBuffer());
+			frame.endWrite();
+		} catch (IOException e) {
+			frame.failWrite();
+			synchronized (this) {
+				frame.unclaim(s == null ? 0 : 1); // still holds it
+				notifyAll();
+			}
+			throw e;
+		} finally {
+			frame.io.unlock();
+		}
+		synchronized (this) {
+			if (s != null) _stolen(frame.getAddress(), new Stolen(
+				s.transaction, s.image, s.update, s.created, lsn));
+			_free(frame);
+		}
+	}
+
+	List<Frame> getFrames() {
+		return frames;
+	}
+
+	// =========================================================================
+	// Private helpers - all must be called holding the lock
+	// =========================================================================
+
+	/**
+	 * Returns a frame that holds no page - a free one, a clean victim of the
+	 * {@link #policy} or a page stolen without I/O - or else a dirty victim,
+	 * claimed but still mapped: the caller writes it back outside the lock
+	 * (see {@link #writeBack(Frame)}) and retries. Waits if all the frames are
+	 * pinned - till the deadline of the transaction of the thread.
+	 *
+	 * @param address
+	 *            the page the frame is for - not stolen, the transaction may
+	 *            hold it and not have pinned it yet
+	 */
+	private Frame _allocFrame(long address) throws IOException,
+			InterruptedException {
+		while (true) {
+			if (!freeList.isEmpty()) return frames.get(freeList.remove(0));
+			// announce ourselves before looking for a victim, so a frame
+			// unpinned after we looked at it gets us notified (see unpin)
+			++waiters;
+			try {
+				final int victim = policy.victim(frames);
+				if (victim != -1) {
+					final Frame frame = frames.get(victim);
+					if (!frame.claim()) continue; // pinned meanwhile
+					if (!frame.isDirty()) _evict(frame);
+					return frame;
+				}
+				final Frame own = _steal(address);
+				if (own != null) return own;
+				System.out.println("No available buffer");
+				final long left = BufferManager.nanosLeft();
+				if (left == Long.MAX_VALUE) wait();
+				else if (left > 0) TimeUnit.NANOSECONDS.timedWait(this, left);
+				else throw new TransactionTimeoutException("Transaction "
+					+ BufferManager.transaction() + " timed out waiting for "
+					+ "a frame");
+			} finally {
+				--waiters;
+			}
+		}
+	}
+
+	/** Unmaps a claimed frame written back, or clean */
+	private void _evict(Frame frame) {
+		pageTable.remove(frame.getAddress());
+		frame.unmap();
+		policy.removed(frame.getFrameNumber());
+	}
+
+	/**
+	 * Claims a page pinned by the transaction of the thread alone - if any -
+	 * to evict it. A clean page the transaction did not modify is evicted
+	 * here, the others are written back by the caller - their changes logged
+	 * first. Returns the frame, or null if none.
+	 */
+	private Frame _steal(final long address) {
+		final long transaction = BufferManager.transaction();
+		if (transaction == 0) return null;
+		final Set<Long> held = BufferManager.held();
+		while (true) {
+			final int victim = policy.victim(frames,
+				new ReplacementPolicy.Eligible() {
+
+					@Override
+					public boolean test(Frame frame) {
+						return !frame.holds(address)
+							&& frame.isStealable(transaction, held);
+					}
+				});
+			if (victim == -1) return null;
+			final Frame frame = frames.get(victim);
+			if (!frame.claimOwned()) continue; // pinned meanwhile
+			final Frame.Image image = frame.getImage(transaction);
+			final Stolen s = new Stolen(transaction, image,
+				image == null ? null : frame.update(transaction),
+				frame.isCreated(transaction), -1);
+			if (s.update == null && !frame.isDirty()) {
+				_stolen(frame.getAddress(), s);
+				_evict(frame);
+			} else stealing.put(frame, s);
+			return frame;
+		}
+	}
+
+	private void _stolen(long address, Stolen s) {
+		stolen.put(address, s);
+		stolenPages = stolen.size();
+	}
+
+	private void _forget(long address) {
+		stolen.remove(address);
+		stolenPages = stolen.size();
+	}
+
+	private void _map(int pageID, DiskFile file, Frame frame, boolean pin) {
+		frame.map(pageID, file, pin);
+		// kept till the transaction ends - the read may fail
+		final Stolen s = stolen.get(frame.getAddress());
+		if (s != null) { // pinned by its transaction
+			frame.increasePincount();
+			if (s.image != null)
+				frame.restore(s.image, s.transaction, s.created, s.lsn);
+		}
+		pageTable.put(frame.getAddress(), frame);
+		policy.accessed(frame.getFrameNumber());
+	}
+
+	/**
+	 * Unpins a frame whose read failed - the last one to unpin it adds it to
+	 * the free list
+	 */
+	private void _release(Frame frame) {
+		if (frame.decreasePincount() == 0 && frame.claim()) _free(frame);
+	}
+
+	/** Discards the page held by the frame and adds it to the free list */
+	private void _free(Frame frame) {
+		pageTable.remove(frame.getAddress(), frame); // unless reloaded
+		frame.unmap();
+		policy.removed(frame.getFrameNumber());
+		freeList.add(frame.getFrameNumber());
+		notifyAll();
+	}
+}
@@ -0,0 +1,140 @@
+package gr.uoa.di.mde515.engine.buffer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which of the unpinned frames of the pool is handed over to a new
+ * page when the free list is exhausted. Frames that are not pinned stay mapped
+ * to their pages (so a later request for the page is a hit) until the policy
+ * picks them as victims. There is one policy per {@link Partition}.
+ * {@link #victim(List)} and {@link #removed(int)} are called holding the lock
+ * of the partition, while {@link #accessed(int)} is also called on the lock
+ * free hit path - so the reference information is approximate, which is fine
+ * for choosing a victim.
+ */
+abstract class ReplacementPolicy {
+
+	/** Records a reference to the page held in frame {@code frameNumber} */
+	abstract void accessed(int frameNumber);
+
+	/** The page held in frame {@code frameNumber} was discarded */
+	abstract void removed(int frameNumber);
+
+	/** Tells the frames that may be victims */
+	interface Eligible {
+
+		boolean test(Frame frame);
+	}
+
+	static final Eligible EVICTABLE = new Eligible() {
+
+		@Override
+		public boolean test(Frame frame) {
+			return frame.isEvictable();
+		}
+	};
+
+	/**
+	 * Returns the number of the frame to be evicted or -1 if all frames are
+	 * in use. Only frames for which {@link Frame#isEvictable()} holds are
+	 * considered.
+	 */
+	final int victim(List<Frame> pool) {
+		return victim(pool, EVICTABLE);
+	}
+
+	/**
+	 * Returns the number of the {@code eligible} frame to be evicted or -1 if
+	 * none is - used to pick the page to steal (see {@link Partition})
+	 */
+	abstract int victim(List<Frame> pool, Eligible eligible);
+
+	/**
+	 * CLOCK (second chance) - a hand sweeps the frames clearing their
+	 * reference bits and stops at the first evictable frame found not
+	 * referenced since the last sweep.
+	 */
+	static final class Clock extends ReplacementPolicy {
+
+		private final boolean[] referenced;
+		private int hand;
+
+		Clock(int numBufs) {
+			referenced = new boolean[numBufs];
+		}
+
+		@Override
+		void accessed(int frameNumber) {
+			referenced[frameNumber] = true;
+		}
+
+		@Override
+		void removed(int frameNumber) {
+			referenced[frameNumber] = false;
+		}
+
+		@Override
+		int victim(List<Frame> pool, Eligible eligible) {
+			// two sweeps - the first may only clear the reference bits
+			for (int i = 0, n = referenced.length; i < 2 * n; ++i) {
+				final int frameNumber = hand;
+				hand = (hand + 1) % n;
+				if (!eligible.test(pool.get(frameNumber))) continue;
+				if (!referenced[frameNumber]) return frameNumber;
+				referenced[frameNumber] = false;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * LRU-K - evicts the frame whose K-th most recent reference is the oldest.
+	 * Frames referenced less than K times have an infinite backward K-distance
+	 * and go first, least recently used first. Times are logical (a counter
+	 * incremented on every reference).
+	 */
+	static final class LruK extends ReplacementPolicy {
+
+		private final int k;
+		/** the last k reference times of each frame, most recent first */
+		private final long[][] history;
+		private final AtomicLong time = new AtomicLong();
+
+		LruK(int numBufs, int k) {
+			this.k = k;
+			history = new long[numBufs][k];
+		}
+
+		@Override
+		void accessed(int frameNumber) {
+			final long[] h = history[frameNumber];
+			System.arraycopy(h, 0, h, 1, k - 1);
+			h[0] = time.incrementAndGet();
+		}
+
+		@Override
+		void removed(int frameNumber) {
+			final long[] h = history[frameNumber];
+			for (int i = 0; i < k; ++i)
+				h[i] = 0;
+		}
+
+		@Override
+		int victim(List<Frame> pool, Eligible eligible) {
+			int victim = -1;
+			for (int i = 0; i < history.length; ++i) {
+				if (!eligible.test(pool.get(i))) continue;
+				if (victim == -1 || older(history[i], history[victim]))
+					victim = i;
+			}
+			return victim;
+		}
+
+		/** True if h1 has the larger backward k-distance (0 is infinite) */
+		private boolean older(long[] h1, long[] h2) {
+			if (h1[k - 1] != h2[k - 1]) return h1[k - 1] < h2[k - 1];
+			return h1[0] < h2[0];
+		}
+	}
+}
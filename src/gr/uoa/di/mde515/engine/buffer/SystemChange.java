@@ -0,0 +1,125 @@
+package gr.uoa.di.mde515.engine.buffer;
+
+import gr.uoa.di.mde515.engine.log.LogManager;
+import gr.uoa.di.mde515.engine.log.PageUpdate;
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change to pages made outside the transaction of the thread - a nested top
+ * action. Used for the structures shared by the transactions writing to a
+ * file, as its free space and page count: they must not be undone when the
+ * transaction that happened to change them aborts, as others rely on them
+ * meanwhile, nor be locked till it ends. The change is logged on its own (see
+ * {@link LogManager#system(List)}) when it ends and its pages are not part of
+ * the images of any transaction.
+ *
+ * The pages are latched exclusively once added, till the end - so the change
+ * is atomic to the readers of the pages. They must be pinned by the caller
+ * before and unpinned after. No frame is allocated once a page is added - the
+ * thread would wait for a frame holding the latches - but for a new page, see
+ * {@link #newPage}. Not thread safe - confined to the thread that started it.
+ * Use as:
+ *
+ * <pre>
+ * final SystemChange change = buf.systemChange();
+ * try {
+ * 	change.add(page);
+ * 	// write to page
+ * } finally {
+ * 	change.end();
+ * }
+ * </pre>
+ */
+public final class SystemChange {
+
+	/** the transaction of the thread - bound again at the end */
+	private final long transaction;
+	private final List<Frame> frames = new ArrayList<>();
+	/** the pages of the frames as they were when added */
+	private final List<byte[]> before = new ArrayList<>();
+
+	SystemChange() {
+		transaction = BufferManager.transaction();
+		BufferManager.bind(0); // the writes keep no image - see Frame
+	}
+
+	/**
+	 * Latches the page exclusively and keeps its contents - its changes till
+	 * the end are part of this change. NOOP if added already.
+	 *
+	 * @param page
+	 *            a page pinned by the caller
+	 */
+	public void add(Page page) {
+		final Frame frame = page.frame();
+		for (Frame f : frames)
+			if (f == frame) return;
+		frame.latch.writeLock().lock();
+		frames.add(frame);
+		final byte[] bytes = new byte[frame.getBuffer().capacity()];
+		for (int i = 0; i < bytes.length; ++i)
+			bytes[i] = frame.getBuffer().get(i);
+		before.add(bytes);
+	}
+
+	/**
+	 * Creates page {@code pageID} of {@code file} and adds it - the page is
+	 * part of this change, so it is not discarded if the transaction aborts.
+	 * Call before adding any page: the transaction may steal a frame for it
+	 * (see {@link Partition}), which must not wait holding latches.
+	 *
+	 * @return the page, pinned
+	 */
+	public Page newPage(int pageID, DiskFile file) throws IOException,
+			InterruptedException {
+		if (!frames.isEmpty())
+			throw new IllegalStateException("Creating page " + pageID
+				+ " holding latches");
+		BufferManager.bind(transaction);
+		final Page page;
+		try {
+			page = BufferManager.getInstance().allocFrameForNewPage(pageID,
+				file, true);
+		} finally {
+			BufferManager.bind(0);
+		}
+		page.frame().setCreated(0); // outlives the transaction
+		add(page);
+		return page;
+	}
+
+	/**
+	 * Logs the changes to the pages added and releases their latches - the
+	 * pages are not written back before the log is forced past the record.
+	 * Binds the thread to its transaction again.
+	 *
+	 * @throws IOException
+	 *             if the record can't be appended - the changes stay in the
+	 *             pages
+	 */
+	public void end() throws IOException {
+		try {
+			final List<PageUpdate> updates = new ArrayList<>();
+			for (int i = 0; i < frames.size(); ++i) {
+				final Frame frame = frames.get(i);
+				final PageUpdate update = PageUpdate.diff(frame.getFile()
+					.getPath(), frame.getPageId(), before.get(i), frame
+					.getBuffer());
+				if (update != null) updates.add(update);
+			}
+			if (updates.isEmpty()) return;
+			final long lsn = LogManager.getInstance().system(updates);
+			for (Frame frame : frames)
+				frame.setPageLsn(lsn);
+		} finally {
+			for (int i = frames.size() - 1; i >= 0; --i)
+				frames.get(i).latch.writeLock().unlock();
+			frames.clear();
+			BufferManager.bind(transaction);
+		}
+	}
+}
@@ -0,0 +1,771 @@
+package gr.uoa.di.mde515.engine.log;
+
+import gr.uoa.di.mde515.files.DiskFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The write ahead log. A transaction commits by appending one record with the
+ * changes it made to its pages (see {@link PageUpdate}) and forcing the log -
+ * one sequential write, however many pages it touched. The pages themselves are
+ * written back later, by the cleaner or on eviction (no force) - never before
+ * the record of their changes is on disk, as the pages are pinned till then.
+ *
+ * Steal: a transaction that runs out of frames may write back pages it
+ * modified before it commits - a STEAL record with the changes (and so their
+ * before image) is forced first (see {@link #steal(long, PageUpdate)}). If
+ * such a transaction aborts it appends an ABORT record, once its pages are
+ * restored.
+ *
+ * On startup {@link #recover(Map)} replays the records to the files, before
+ * their pages are read - the stolen changes of a transaction are undone when
+ * its COMMIT or ABORT is met (the COMMIT then redoes all its changes), and
+ * those of the transactions that never ended are undone at the end. The log
+ * is truncated once all the pages it describes are on disk - after recovery
+ * and on shutdown.
+ *
+ * Records are addressed by their LSN - their offset from the start of the log
+ * as if it was never truncated. The log is kept in segment files named after
+ * the LSN of their first record ({@code db.log.0} and so on). Fuzzy
+ * checkpoints (see {@link #checkpoint(long, Map, Collection)}) start a new
+ * segment with a CHECKPOINT record, holding the dirty page table and the
+ * active transaction table - and so the LSN replay must start from, the redo
+ * point. The segments before the redo point are deleted and recovery starts
+ * from the redo point of the last checkpoint.
+ *
+ * A record is:
+ *
+ * <pre>
+ * int length | int crc32 | long transaction id | byte type | int updates |
+ * updates...
+ * </pre>
+ *
+ * where length and crc32 are of what follows them - a record torn by a crash
+ * fails the check and ends the log. A CHECKPOINT record has no updates but is
+ * followed by {@code long redo point | int pages | (long address, long LSN)... |
+ * int transactions | (long id, long first STEAL LSN or -1)...}.
+ *
+ * Group commit: concurrent committers share the forces of the log. The first
+ * one to append to an empty group is its leader - it waits for the force in
+ * progress, if any, and then up to the max wait for the group to fill, closes
+ * it and forces the log for all its members. The rest (followers) just wait
+ * for the leader. Committers arriving while the log is forced form the next
+ * group, so groups form even with no max wait.
+ *
+ * Asynchronous commit: a transaction may return once its record is appended,
+ * before the log is forced - a background flusher forces it within a max delay.
+ * A crash may lose such a transaction, but not partly: its pages are not
+ * written back before the log is forced past its record (see
+ * {@link #flush(long)}). And not alone - the log is replayed up to its first
+ * missing record, so the transactions committed after it are lost too.
+ */
+public enum LogManager {
+	INSTANCE;
+
+	private static final int RECORD_HEADER = 8; // length, crc
+	private static final int BODY_HEADER = 8 + 1 + 4; // id, type, updates
+	// record types
+	private static final byte COMMIT = 0;
+	private static final byte STEAL = 1;
+	private static final byte ABORT = 2;
+	private static final byte CHECKPOINT = 3;
+	public static final int DEFAULT_MAX_BATCH = 64;
+	/** the path of the log - segments append their first LSN to it */
+	private Path path;
+	/** the segment files by the LSN of their first record */
+	private final TreeMap<Long, Path> segments = new TreeMap<>();
+	/** the last segment - null if not open */
+	private FileChannel channel;
+	/** the LSN of the first record of the last segment */
+	private long segmentStart;
+	/** the LSN of the end of the log - where the next record goes */
+	private volatile long end;
+	/** the log is on disk up to this LSN - written holding the lock */
+	private volatile long forced;
+	// GROUP COMMIT - all guarded by this
+	private long maxWaitNanos;
+	private int maxBatch = DEFAULT_MAX_BATCH;
+	/** the group new committers join - null if none is open */
+	private Group open;
+	/** true while a leader forces the log */
+	private boolean flushing;
+	// ASYNCHRONOUS COMMIT - all guarded by this
+	private long maxDelayNanos;
+	/** the end of the last asynchronous commit record */
+	private long lazyEnd;
+	/** when the first asynchronous commit not forced yet was appended */
+	private long lazySince;
+	/** forces the asynchronous commits - null if the log is closed */
+	private Thread flusher;
+	// metrics
+	private long commits;
+	private long groups;
+	private long lazyCommits;
+	private long steals;
+	private long systemChanges;
+	private long recoveryNanos;
+	private int recovered;
+	/**
+	 * the transactions in progress that stole pages, with the LSN of their
+	 * first STEAL record - guarded by this
+	 */
+	private final Map<Long, Long> stealing = new HashMap<>();
+
+	/** Committers sharing a force of the log */
+	private static final class Group {
+
+		int size;
+		boolean done;
+		IOException failed;
+		/** the end of the log when the group closed - forced by the leader */
+		long end;
+	}
+
+	public static LogManager getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the group commit parameters - see {@link LogManager}
+	 *
+	 * @param maxWaitMicros
+	 *            how long a leader waits for its group to fill - 0 for no
+	 *            waiting
+	 * @param batch
+	 *            the max number of commits in a group
+	 */
+	public synchronized void groupCommit(long maxWaitMicros, int batch) {
+		if (maxWaitMicros < 0 || batch < 1)
+			throw new IllegalArgumentException("Illegal group commit "
+				+ maxWaitMicros + "us, " + batch);
+		maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+		maxBatch = batch;
+	}
+
+	/**
+	 * Sets the max delay of the force of the log after an asynchronous commit
+	 * - see {@link #commit(long, List, boolean)}
+	 */
+	public synchronized void asyncCommit(long maxDelayMillis) {
+		if (maxDelayMillis < 0)
+			throw new IllegalArgumentException("Illegal async commit delay "
+				+ maxDelayMillis + "ms");
+		maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+	}
+
+	/**
+	 * Opens (or creates) the log - its segments are {@code path} followed by
+	 * the LSN of their first record. Call {@link #recover(Map)} next.
+	 */
+	public synchronized void open(String path) throws IOException {
+		if (channel != null)
+			throw new IllegalStateException("Log already open");
+		this.path = Paths.get(path).toAbsolutePath();
+		segments.clear();
+		final String prefix = this.path.getFileName() + ".";
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream(
+			this.path.getParent(), prefix + "*")) {
+			for (Path p : dir)
+				try {
+					segments.put(Long.parseLong(p.getFileName().toString()
+						.substring(prefix.length())), p);
+				} catch (NumberFormatException e) {
+					// not a segment
+				}
+		}
+		if (segments.isEmpty()) segments.put(0L, segment(0));
+		_openSegment(segments.lastKey());
+		flusher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				flushLazily();
+			}
+		}, "Log flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Redoes the changes of the committed transactions recorded in the log to
+	 * the {@code files}, forces them and truncates the log. Must be called
+	 * before any page of the files is read. Replay starts from the redo point
+	 * of the last checkpoint - the records before it are of pages already on
+	 * disk.
+	 *
+	 * @param files
+	 *            the files of the engine by path (see
+	 *            {@link PageUpdate#getFile()})
+	 * @return the number of transactions redone
+	 * @throws IOException
+	 *             if the log refers to a file not given
+	 */
+	public synchronized int recover(Map<String, DiskFile> files)
+			throws IOException {
+		final long start = System.nanoTime();
+		int redone = 0;
+		long from = segments.firstKey();
+		for (long first : segments.descendingKeySet()) {
+			final ByteBuffer checkpoint = checkpointAt(first);
+			if (checkpoint != null) {
+				from = checkpoint.getLong(BODY_HEADER);
+				break;
+			}
+		}
+		final Long fromSegment = segments.floorKey(from);
+		if (fromSegment == null)
+			throw new IOException("The log before LSN " + from + " is missing");
+		// the stolen changes of the transactions in progress
+		final Map<Long, List<PageUpdate>> stolen = new HashMap<>();
+		scan: for (Entry<Long, Path> segment : segments.tailMap(fromSegment)
+			.entrySet())
+			try (FileChannel log = FileChannel.open(segment.getValue(),
+				StandardOpenOption.READ)) {
+				final long size = log.size();
+				for (long pos = Math.max(from - segment.getKey(), 0); pos < size;) {
+					final ByteBuffer body = readRecord(log, pos, size);
+					if (body == null) break scan; // torn - the end of the log
+					final long transId = body.getLong();
+					final byte type = body.get();
+					final int count = body.getInt();
+					final List<PageUpdate> updates = new ArrayList<>(count);
+					for (int i = 0; i < count; ++i)
+						updates.add(PageUpdate.readFrom(body));
+					if (type == STEAL) {
+						if (!stolen.containsKey(transId))
+							stolen.put(transId, new ArrayList<PageUpdate>());
+						stolen.get(transId).addAll(updates);
+					} else if (type != CHECKPOINT) { // back to before the
+						// transaction - then redo if COMMIT
+						undo(stolen.remove(transId), files);
+						if (type == COMMIT) {
+							for (PageUpdate u : updates)
+								redo(u, files);
+							++redone;
+						}
+					}
+					pos += RECORD_HEADER + body.limit();
+				}
+			}
+		for (List<PageUpdate> updates : stolen.values())
+			undo(updates, files); // never ended
+		for (DiskFile file : files.values())
+			file.force();
+		truncate();
+		recovered = redone;
+		recoveryNanos = System.nanoTime() - start;
+		return redone;
+	}
+
+	/**
+	 * Appends the commit record of transaction {@code transId} and, if
+	 * {@code durable}, forces the log - along with the records of concurrent
+	 * committers. Once it returns the transaction is durable. Otherwise it
+	 * returns right away - the log is forced within the max delay (see
+	 * {@link #asyncCommit(long)}). NOOP if no updates - unless the transaction
+	 * stole pages, as the COMMIT must end their STEAL records.
+	 *
+	 * @return the end of the record - the pages of the transaction must not be
+	 *         written back before the log is forced up to it. 0 if none.
+	 */
+	public long commit(long transId, List<PageUpdate> updates, boolean durable)
+			throws IOException {
+		if (updates.isEmpty()) synchronized (this) {
+			if (!stealing.containsKey(transId)) return 0; // read only
+		}
+		final ByteBuffer record = record(transId, COMMIT, updates);
+		final Group group;
+		final FileChannel log;
+		final long lsn;
+		synchronized (this) {
+			_append(record);
+			lsn = end;
+			stealing.remove(transId); // the COMMIT ends it in the log
+			if (!durable) {
+				++lazyCommits;
+				if (lazyEnd <= forced) { // wake the flusher
+					lazySince = System.nanoTime();
+					notifyAll();
+				}
+				lazyEnd = lsn;
+				return lsn;
+			}
+			if (open != null && open.size < maxBatch) { // follower
+				group = open;
+				if (++group.size == maxBatch) notifyAll(); // wake the leader
+				_await(group);
+				if (group.failed != null)
+					throw new IOException("Log force failed", group.failed);
+				return lsn;
+			}
+			group = open = new Group();
+			group.size = 1;
+			_gather(group);
+			log = channel; // not switched while flushing
+			group.end = end;
+		}
+		try {
+			log.force(false);
+		} catch (IOException e) {
+			group.failed = e;
+		}
+		synchronized (this) {
+			flushing = false;
+			if (group.failed == null) forced = Math.max(forced, group.end);
+			group.done = true;
+			notifyAll();
+		}
+		if (group.failed != null) throw group.failed;
+		return lsn;
+	}
+
+	/**
+	 * Appends the record of a change made outside any transaction - as the
+	 * allocation of a page of a file, shared by the transactions writing to
+	 * it. Logged as the COMMIT of transaction 0, so redone on recovery, but
+	 * not forced - the pages changed must not be written back before the log
+	 * is forced up to the end returned, as for an asynchronous commit, and
+	 * the commits of the transactions that see the change next force it.
+	 *
+	 * @return the end of the record
+	 */
+	public long system(List<PageUpdate> updates) throws IOException {
+		final ByteBuffer record = record(0, COMMIT, updates);
+		synchronized (this) {
+			_append(record);
+			++systemChanges;
+			return end;
+		}
+	}
+
+	/**
+	 * Forces the log up to {@code lsn} - NOOP if already there. Called before
+	 * a page is written back (see {@link #commit(long, List, boolean)}).
+	 * Forces holding the lock, as {@link #steal(long, PageUpdate)}.
+	 */
+	public void flush(long lsn) throws IOException {
+		if (forced >= lsn) return;
+		synchronized (this) {
+			_drain(); // the force in progress may cover it
+			if (forced >= lsn) return;
+			channel.force(false);
+			forced = end;
+		}
+	}
+
+	/**
+	 * Appends a STEAL record with the changes of transaction {@code transId}
+	 * to a page about to be written back, and forces the log - the page must
+	 * not be written before this returns. Forced holding the lock - steals are
+	 * rare and the segment must not be switched meanwhile.
+	 *
+	 * @return the LSN of the record
+	 */
+	public long steal(long transId, PageUpdate update) throws IOException {
+		final ByteBuffer record = record(transId, STEAL, Collections
+			.singletonList(update));
+		synchronized (this) {
+			final long lsn = end;
+			_append(record);
+			++steals;
+			if (!stealing.containsKey(transId)) stealing.put(transId, lsn);
+			channel.force(false);
+			forced = end;
+			return lsn;
+		}
+	}
+
+	/**
+	 * Appends an ABORT record if transaction {@code transId} stole pages -
+	 * call once they are restored. Not forced - the commits of the
+	 * transactions that modify the pages next force it.
+	 */
+	public void abort(long transId) throws IOException {
+		final ByteBuffer record = record(transId, ABORT, Collections
+			.<PageUpdate> emptyList());
+		synchronized (this) {
+			if (stealing.remove(transId) != null) _append(record);
+		}
+	}
+
+	/**
+	 * Writes a fuzzy checkpoint - a CHECKPOINT record starting a new segment,
+	 * with the dirty page table and the active transaction table - then
+	 * deletes the segments before the redo point. The redo point is the
+	 * earliest of {@code begin}, the LSNs the dirty pages were first dirtied
+	 * at and the first STEAL records of the active transactions - no record
+	 * before it is needed to restore the files.
+	 *
+	 * @param begin
+	 *            the end of the log (see {@link #getEnd()}) before the tables
+	 *            were taken - pages dirtied after the snapshot have later LSNs
+	 * @param dirty
+	 *            the dirty page table - the LSN each dirty page was first
+	 *            dirtied at, by address. The files must be forced after it
+	 *            is taken - the pages missing from it were written back
+	 *            but maybe not forced
+	 * @param active
+	 *            the ids of the transactions in progress
+	 * @return the redo point - the LSN the log now starts at
+	 */
+	public synchronized long checkpoint(long begin, Map<Long, Long> dirty,
+			Collection<Long> active) throws IOException {
+		long redo = begin;
+		for (long lsn : dirty.values())
+			redo = Math.min(redo, lsn);
+		final Map<Long, Long> transactions = new HashMap<>();
+		for (long transId : active) {
+			final Long first = stealing.get(transId);
+			transactions.put(transId, first == null ? -1 : first);
+			if (first != null) redo = Math.min(redo, first);
+		}
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER
+			+ BODY_HEADER + 8 + 4 + 16 * dirty.size() + 4 + 16
+			* transactions.size());
+		record.putInt(record.capacity() - RECORD_HEADER).putInt(0);
+		record.putLong(0).put(CHECKPOINT).putInt(0).putLong(redo);
+		record.putInt(dirty.size());
+		for (Entry<Long, Long> page : dirty.entrySet())
+			record.putLong(page.getKey()).putLong(page.getValue());
+		record.putInt(transactions.size());
+		for (Entry<Long, Long> tr : transactions.entrySet())
+			record.putLong(tr.getKey()).putLong(tr.getValue());
+		_drain();
+		_switch(end);
+		_append(seal(record));
+		channel.force(false); // before the segments it replaces are deleted
+		forced = end;
+		_deleteBefore(redo);
+		return redo;
+	}
+
+	/**
+	 * The LSN the next record will be written at - the end of the log. Not
+	 * locking.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/** The size of the log in bytes - from the start of its first segment */
+	public synchronized long getSize() {
+		return end - segments.firstKey();
+	}
+
+	/** The average number of commits sharing a force of the log */
+	public synchronized double getAverageGroupSize() {
+		return groups == 0 ? 0 : (double) commits / groups;
+	}
+
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	/** The commits that did not wait for the log to be forced */
+	public synchronized long getAsyncCommits() {
+		return lazyCommits;
+	}
+
+	/** The pages stolen by transactions in progress - see #steal */
+	public synchronized long getSteals() {
+		return steals;
+	}
+
+	/** The changes logged outside of the transactions - see #system */
+	public synchronized long getSystemChanges() {
+		return systemChanges;
+	}
+
+	/** The time the last {@link #recover} took */
+	public synchronized long getRecoveryNanos() {
+		return recoveryNanos;
+	}
+
+	/** The transactions redone by the last {@link #recover} */
+	public synchronized int getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * Empties the log - call only when all the changes it records are on disk
+	 * (the files forced). LSNs go on from the end of the log.
+	 */
+	public synchronized void truncate() throws IOException {
+		_drain();
+		_switch(end);
+		_deleteBefore(end);
+	}
+
+	/** Stops the flusher - waiting for a force in progress - and closes */
+	public void close() throws IOException, InterruptedException {
+		final Thread thread;
+		synchronized (this) {
+			if (channel == null) return;
+			thread = flusher;
+			flusher = null;
+			notifyAll();
+		}
+		// do not interrupt - an interrupted force closes the FileChannel
+		thread.join();
+		synchronized (this) {
+			_drain();
+			channel.force(false);
+			forced = end;
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Run by the flusher - forces the log once the first asynchronous commit
+	 * not forced is older than the max delay
+	 */
+	private void flushLazily() {
+		final Thread me = Thread.currentThread();
+		while (true) {
+			final long lsn;
+			synchronized (this) {
+				try {
+					while (flusher == me && forced >= lazyEnd)
+						wait();
+					for (long left; flusher == me && forced < lazyEnd
+						&& (left = lazySince + maxDelayNanos - System.nanoTime()) > 0;)
+						TimeUnit.NANOSECONDS.timedWait(this, left);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (flusher != me) return;
+				lsn = lazyEnd;
+			}
+			try {
+				flush(lsn);
+			} catch (IOException e) {
+				e.printStackTrace(); // TODO logger - retried after the delay
+				synchronized (this) {
+					lazySince = System.nanoTime();
+				}
+			}
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/*
+	 * The waits below are not interruptible - the record of the committer is
+	 * in the log, so it must not abort. TODO a failed force leaves the log in
+	 * doubt - should stop the engine.
+	 */
+	/**
+	 * Called holding the lock by the leader of {@code group} - waits for the
+	 * force in progress and for the group to fill (up to the max wait), then
+	 * closes it
+	 */
+	private void _gather(Group group) {
+		boolean interrupted = false;
+		final long deadline = System.nanoTime() + maxWaitNanos;
+		while (true) {
+			try {
+				if (flushing) wait();
+				else {
+					final long left = deadline - System.nanoTime();
+					if (left <= 0 || group.size >= maxBatch) break;
+					TimeUnit.NANOSECONDS.timedWait(this, left);
+				}
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (open == group) open = null; // later committers start anew
+		flushing = true;
+		++groups;
+		commits += group.size;
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void _append(ByteBuffer record) throws IOException {
+		while (record.hasRemaining())
+			channel.write(record, end - segmentStart + record.position());
+		end += record.limit();
+	}
+
+	/** Waits for the force of the log in progress, if any */
+	private void _drain() {
+		boolean interrupted = false;
+		while (flushing)
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Starts a new segment at {@code lsn} - the end of the log. The last one is
+	 * forced and closed - must not be forced by others meanwhile (see
+	 * {@link #_drain()}). NOOP if the last segment is empty.
+	 */
+	private void _switch(long lsn) throws IOException {
+		if (lsn == segmentStart) return;
+		channel.force(false);
+		forced = end;
+		channel.close();
+		segments.put(lsn, segment(lsn));
+		_openSegment(lsn);
+	}
+
+	private void _openSegment(long first) throws IOException {
+		channel = FileChannel.open(segments.get(first),
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		segmentStart = first;
+		end = first + channel.size();
+		forced = end;
+	}
+
+	/** Deletes the segments that end before {@code lsn} */
+	private void _deleteBefore(long lsn) throws IOException {
+		final Long keep = segments.floorKey(lsn);
+		for (Iterator<Path> it = segments.headMap(keep).values().iterator(); it
+			.hasNext();) {
+			Files.deleteIfExists(it.next());
+			it.remove();
+		}
+	}
+
+	private Path segment(long first) {
+		return path.resolveSibling(path.getFileName() + "." + first);
+	}
+
+	/** Called holding the lock by a follower - waits for its leader */
+	private void _await(Group group) {
+		boolean interrupted = false;
+		while (!group.done)
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static ByteBuffer record(long transId, byte type,
+			List<PageUpdate> updates) {
+		int length = BODY_HEADER;
+		for (PageUpdate u : updates)
+			length += u.size();
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+		record.putInt(length).putInt(0); // crc filled below
+		record.putLong(transId).put(type).putInt(updates.size());
+		for (PageUpdate u : updates)
+			u.writeTo(record);
+		return seal(record);
+	}
+
+	/** Flips the {@code record} and fills in its crc */
+	private static ByteBuffer seal(ByteBuffer record) {
+		record.flip();
+		final ByteBuffer body = record.duplicate();
+		body.position(RECORD_HEADER);
+		record.putInt(4, crc(body));
+		return record;
+	}
+
+	/** Of the remaining bytes of {@code body} - its position is not moved */
+	private static int crc(ByteBuffer body) {
+		final CRC32 crc = new CRC32();
+		final byte[] bytes = new byte[body.remaining()];
+		body.duplicate().get(bytes);
+		crc.update(bytes, 0, bytes.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * The body of the record at {@code pos} of the segment {@code log} of
+	 * {@code size} bytes - null if torn
+	 */
+	private static ByteBuffer readRecord(FileChannel log, long pos, long size)
+			throws IOException {
+		if (pos + RECORD_HEADER > size) return null;
+		final ByteBuffer header = read(log, pos, RECORD_HEADER);
+		final int length = header.getInt(0);
+		if (length < BODY_HEADER || pos + RECORD_HEADER + length > size)
+			return null;
+		final ByteBuffer body = read(log, pos + RECORD_HEADER, length);
+		return crc(body) == header.getInt(4) ? body : null;
+	}
+
+	/**
+	 * The body of the CHECKPOINT record the segment starting at {@code first}
+	 * starts with - null if it does not start with one
+	 */
+	private ByteBuffer checkpointAt(long first) throws IOException {
+		try (FileChannel log = FileChannel.open(segments.get(first),
+			StandardOpenOption.READ)) {
+			final ByteBuffer body = readRecord(log, 0, log.size());
+			if (body == null || body.get(8) != CHECKPOINT) return null;
+			return body;
+		}
+	}
+
+	private static ByteBuffer read(FileChannel log, long pos, int length)
+			throws IOException {
+		final ByteBuffer dst = ByteBuffer.allocate(length);
+		while (dst.hasRemaining())
+			if (log.read(dst, pos + dst.position()) == -1)
+				throw new IOException("Unexpected end of log");
+		dst.flip();
+		return dst;
+	}
+
+	/** Undoes the stolen {@code updates} - in reverse. NOOP if null. */
+	private static void undo(List<PageUpdate> updates,
+			Map<String, DiskFile> files) throws IOException {
+		if (updates == null) return;
+		for (int i = updates.size() - 1; i >= 0; --i) {
+			final PageUpdate update = updates.get(i);
+			final DiskFile file = file(update, files);
+			final ByteBuffer page = ByteBuffer.allocate(file.getPageSize());
+			file.readPage(update.getPageID(), page);
+			update.undo(page);
+			file.writePage(update.getPageID(), page);
+		}
+	}
+
+	private static void redo(PageUpdate update, Map<String, DiskFile> files)
+			throws IOException {
+		final DiskFile file = file(update, files);
+		final ByteBuffer page = ByteBuffer.allocate(file.getPageSize());
+		file.readPage(update.getPageID(), page);
+		update.redo(page);
+		file.writePage(update.getPageID(), page);
+	}
+
+	private static DiskFile file(PageUpdate update, Map<String, DiskFile> files)
+			throws IOException {
+		final DiskFile file = files.get(update.getFile());
+		if (file == null)
+			throw new IOException("The log refers to unknown file "
+				+ update.getFile());
+		return file;
+	}
+}
@@ -0,0 +1,158 @@
+package gr.uoa.di.mde515.engine.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes a transaction made to a page - the byte ranges that differ from
+ * the page as it was before the transaction modified it, with their old (undo)
+ * and new (redo) contents. Redo and undo are physical, so applying them twice
+ * is harmless.
+ */
+public final class PageUpdate {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** ranges closer than that are merged - a range costs 8 bytes in the log */
+	private static final int MIN_GAP = 8;
+	private final String file;
+	private final int pageID;
+	private final List<Range> ranges;
+
+	/** A run of modified bytes */
+	private static final class Range {
+
+		final int offset;
+		final byte[] before;
+		final byte[] after;
+
+		Range(int offset, byte[] before, byte[] after) {
+			this.offset = offset;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	private PageUpdate(String file, int pageID, List<Range> ranges) {
+		this.file = file;
+		this.pageID = pageID;
+		this.ranges = Collections.unmodifiableList(ranges);
+	}
+
+	/**
+	 * Compares the {@code before} image of the page with its current contents
+	 * ({@code page} - its position and limit are ignored) and returns the
+	 * ranges that differ, or null if none does.
+	 *
+	 * @param file
+	 *            the path of the file of the page - identifies the file in the
+	 *            log
+	 */
+	public static PageUpdate diff(String file, int pageID, byte[] before,
+			ByteBuffer page) {
+		return diff(file, pageID, before, page, null);
+	}
+
+	/**
+	 * As {@link #diff(String, int, byte[], ByteBuffer)} but of the bytes in
+	 * {@code written} only - the ones a transaction wrote, when others write
+	 * other records of the page. The ranges do not span the rest, so the
+	 * update holds none of the bytes of the others. {@code before} need hold
+	 * only the bytes written.
+	 */
+	public static PageUpdate diff(String file, int pageID, byte[] before,
+			ByteBuffer page, BitSet written) {
+		final List<Range> ranges = new ArrayList<>();
+		for (int i = 0; i < before.length;) {
+			if (!in(written, i) || before[i] == page.get(i)) {
+				++i;
+				continue;
+			}
+			// extend the range till MIN_GAP equal bytes are found
+			int end = i + 1;
+			for (int equal = 0; end < before.length && equal < MIN_GAP
+				&& in(written, end); ++end)
+				equal = before[end] == page.get(end) ? equal + 1 : 0;
+			while (before[end - 1] == page.get(end - 1))
+				--end; // trim the trailing equal bytes
+			final byte[] after = new byte[end - i];
+			for (int j = 0; j < after.length; ++j)
+				after[j] = page.get(i + j);
+			final byte[] old = new byte[end - i];
+			System.arraycopy(before, i, old, 0, old.length);
+			ranges.add(new Range(i, old, after));
+			i = end;
+		}
+		return ranges.isEmpty() ? null : new PageUpdate(file, pageID, ranges);
+	}
+
+	private static boolean in(BitSet written, int i) {
+		return written == null || written.get(i);
+	}
+
+	/** Applies the new contents of the ranges to {@code page} */
+	public void redo(ByteBuffer page) {
+		for (Range r : ranges)
+			for (int j = 0; j < r.after.length; ++j)
+				page.put(r.offset + j, r.after[j]);
+	}
+
+	/** Restores the old contents of the ranges in {@code page} */
+	public void undo(ByteBuffer page) {
+		for (Range r : ranges)
+			for (int j = 0; j < r.before.length; ++j)
+				page.put(r.offset + j, r.before[j]);
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public int getPageID() {
+		return pageID;
+	}
+
+	// =========================================================================
+	// Serialization - see LogManager
+	// =========================================================================
+	int size() {
+		int size = 2 + file.getBytes(UTF8).length + 4 + 4;
+		for (Range r : ranges)
+			size += 4 + 4 + 2 * r.after.length;
+		return size;
+	}
+
+	void writeTo(ByteBuffer log) {
+		final byte[] name = file.getBytes(UTF8);
+		log.putShort((short) name.length).put(name);
+		log.putInt(pageID).putInt(ranges.size());
+		for (Range r : ranges)
+			log.putInt(r.offset).putInt(r.after.length).put(r.before)
+				.put(r.after);
+	}
+
+	static PageUpdate readFrom(ByteBuffer log) {
+		final byte[] name = new byte[log.getShort()];
+		log.get(name);
+		final int pageID = log.getInt();
+		final int count = log.getInt();
+		final List<Range> ranges = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			final int offset = log.getInt();
+			final byte[] before = new byte[log.getInt()];
+			final byte[] after = new byte[before.length];
+			log.get(before).get(after);
+			ranges.add(new Range(offset, before, after));
+		}
+		return new PageUpdate(new String(name, UTF8), pageID, ranges);
+	}
+
+	@Override
+	public String toString() {
+		return "PageUpdate [" + file + "@" + pageID + ", ranges="
+			+ ranges.size() + "]";
+	}
+}
@@ -1,48 +1,52 @@
-package gr.uoa.di.mde515.files;
-
-import gr.uoa.di.mde515.engine.Transaction;
-import gr.uoa.di.mde515.engine.buffer.Serializer;
-import gr.uoa.di.mde515.index.Record;
-import gr.uoa.di.mde515.locks.DBLock;
-
-import java.io.IOException;
-import java.util.List;
-
-public abstract class DataFile<K extends Comparable<K>, V> { // TODO extend
-
-																// disk file ?
-
-	public static <L extends Comparable<L>, M> DataFile<L, M> init(
-			String filename, Serializer<L> serKey, Serializer<M> serVal)
-			throws IOException, InterruptedException {
-		return new HeapFile<>(filename, serKey, serVal);
-	}
-
-	public abstract int insert(Transaction tr, Record<K, V> rec)
-			throws IOException, InterruptedException;
-
-	public abstract void delete(Transaction tr, int pid, K key)
-			throws IOException, InterruptedException;
-
-	public abstract V get(Transaction tr, int pid, K key) throws IOException,
-			InterruptedException;
-
-	public abstract void close() throws IOException;
-
-	public abstract void flush(List<Integer> pageIds) throws IOException;
-
-	public abstract void abort(List<Integer> pageIds) throws IOException;
-
-	/**
-	 * Attempts to lock the header page on behalf of transaction {@code tr},
-	 * blocks till it manages to do so.
-	 *
-	 * @param tr
-	 *            the transaction that attempts to lock
-	 * @param e
-	 *            the type of lock requested
-	 * @throws InterruptedException
-	 */
-	public abstract void lockHeader(Transaction tr, DBLock e)
-			throws InterruptedException;
-}
+package gr.uoa.di.mde515.files;
+
+import gr.uoa.di.mde515.engine.Transaction;
+import gr.uoa.di.mde515.engine.buffer.Serializer;
+import gr.uoa.di.mde515.index.Record;
+
+import java.io.IOException;
+import java.util.List;
+
+public abstract class DataFile<K extends Comparable<K>, V> { // TODO extend
+
+																// disk file ?
+
+	public static <L extends Comparable<L>, M> DataFile<L, M> init(
+			DiskFile file, Serializer<L> serKey, Serializer<M> serVal)
+			throws IOException, InterruptedException {
+		return new HeapFile<>(file, serKey, serVal);
+	}
+
+	public abstract int insert(Transaction tr, Record<K, V> rec)
+			throws IOException, InterruptedException;
+
+	public abstract void delete(Transaction tr, int pid, K key)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Returns the value of the record with key {@code key} in page
+	 * {@code pid}, or null if none - the record is locked for reading on
+	 * behalf of {@code tr}.
+	 */
+	public abstract V get(Transaction tr, int pid, K key) throws IOException,
+			InterruptedException;
+
+	/**
+	 * Returns all the records of the file - in file order. Locks the whole
+	 * file for reading on behalf of {@code tr}, which keeps inserts and
+	 * deletes out.
+	 */
+	public abstract List<Record<K, V>> scan(Transaction tr) throws IOException,
+			InterruptedException;
+
+	public abstract void close() throws IOException;
+
+	/**
+	 * Releases the pages of this file among the {@code addresses} (see
+	 * {@link DiskFile#address(int)}) locked by a committing transaction
+	 */
+	public abstract void flush(List<Long> addresses) throws IOException;
+
+	/** Discards the changes to the pages of this file among addresses */
+	public abstract void abort(List<Long> addresses) throws IOException;
+}
@@ -1,60 +1,515 @@
-package gr.uoa.di.mde515.files;
-
-import gr.uoa.di.mde515.engine.Engine;
-
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-
-public class DiskFile {
-
-	private final static int PAGE_SIZE = Engine.PAGE_SIZE;
-	private final RandomAccessFile file;
-
-	/**
-	 * The constructor creates the database file or opens it if already exists
-	 *
-	 * @param path
-	 *            TODO Path not String
-	 * @throws FileNotFoundException
-	 */
-	public DiskFile(String path) throws FileNotFoundException {
-		file = new RandomAccessFile(path, "rw");
-	}
-
-	/**
-	 * The method allows to read the contents of a disk block to a frame in
-	 * memory.
-	 *
-	 * @param pageID
-	 * @param frame
-	 * @throws IOException
-	 */
-	public void readPage(int pageID, ByteBuffer buffer) throws IOException {
-		file.seek(pageID * PAGE_SIZE);
-		file.read(buffer.array(), 0, PAGE_SIZE);
-	}
-
-	/**
-	 * The method simply write the content of the buffer in the disk in the
-	 * write offset.
-	 *
-	 * @param pageID
-	 * @param buffer
-	 * @throws IOException
-	 */
-	public void writePage(int pageID, ByteBuffer buffer) throws IOException {
-		file.seek(pageID * PAGE_SIZE);
-		file.write(buffer.array());
-	}
-
-	public void close() throws IOException {
-		file.close();
-	}
-
-	/** Used to check if file exists */
-	public int read() throws IOException {
-		return file.read();
-	}
-}
+package gr.uoa.di.mde515.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file of fixed size pages. The first block of the file is the file header -
+ * it records the format of the file (and the page size) and is checked when
+ * the file is reopened. Page {@code i} is stored in block {@code i + 1}.
+ * Pages are read and written with positional I/O, so any number of threads
+ * may do so at the same time. Only the scattering/gathering I/O on runs of
+ * blocks uses (and so locks) the position of the channel. Alternatively the
+ * file may be memory mapped (see {@link Access}).
+ *
+ * A file may be split in segments - files of a fixed number of blocks named
+ * {@code path}, {@code path.1}, {@code path.2} and so on - so it grows past
+ * the limits of the file system and its I/O is spread over many files.
+ * Offsets are longs - a file may have up to 2^31 blocks.
+ *
+ * Each file opened gets an id - the pages of all the files are told apart by
+ * their {@link #address(int)}, which the buffer pool and the lock manager use.
+ */
+public class DiskFile {
+
+	/** How the pages of the file are accessed */
+	public static enum Access {
+		/** reads and writes go through the FileChannel */
+		CHANNEL,
+		/**
+		 * the file is memory mapped - reads and writes are copies from/to the
+		 * OS page cache, and scans read the mapping in place (see
+		 * {@link DiskFile#mappedPage(int)}). Fits read mostly databases.
+		 */
+		MAPPED
+	}
+
+	/** "CCM!" - identifies our files */
+	private static final int MAGIC = 0x43434D21;
+	/** bump on changes of the on disk format */
+	private static final int FORMAT_VERSION = 6;
+	// FILE HEADER OFFSETS
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_PAGE_SIZE = 8;
+	private static final int OFFSET_SEGMENT_BLOCKS = 12;
+	/** the blocks of the file when last forced - see #force() */
+	private static final int OFFSET_BLOCKS = 16;
+	/** the segment size of files that are not segmented */
+	public static final int UNSEGMENTED = Integer.MAX_VALUE;
+	private static final AtomicInteger ids = new AtomicInteger();
+	private final int id = ids.incrementAndGet();
+	private final String path;
+	private final int pageSize;
+	private final int segmentBlocks;
+	private final Access access;
+	private final boolean isNew;
+	/** the segments opened - replaced (copy on write) holding the lock */
+	private volatile Segment[] segments;
+	/** the blocks recorded in the header - guarded by this */
+	private int recorded;
+
+	/** A file of the segmented file - mapped if the access is MAPPED */
+	private static final class Segment {
+
+		final FileChannel channel;
+		final MappedExtents mapped; // null if not mapped
+
+		Segment(String path, int pageSize, Access access, int blocks)
+				throws IOException {
+			channel = FileChannel.open(Paths.get(path),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+			try {
+				mapped = access == Access.MAPPED ? new MappedExtents(channel,
+					pageSize, blocks) : null;
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		long size() throws IOException {
+			return mapped != null ? mapped.size() : channel.size();
+		}
+
+		void force() throws IOException {
+			if (mapped != null) mapped.force();
+			channel.force(false);
+		}
+
+		/** Drops the bytes past {@code size} - NOOP if not mapped */
+		void truncate(long size) throws IOException {
+			if (mapped != null) mapped.truncate(size);
+		}
+
+		void close() throws IOException {
+			try {
+				if (mapped != null) mapped.close();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	public DiskFile(String path, int pageSize) throws IOException {
+		this(path, pageSize, Access.CHANNEL, UNSEGMENTED);
+	}
+
+	/**
+	 * The constructor creates the database file or opens it if already exists
+	 *
+	 * @param path
+	 *            TODO Path not String
+	 * @param pageSize
+	 *            the size of the pages in bytes - must match the one recorded
+	 *            in the header if the file exists
+	 * @param access
+	 *            how the pages are read and written
+	 * @param segmentBlocks
+	 *            the number of blocks in a segment - {@link #UNSEGMENTED} for
+	 *            a single file. Must match the one recorded in the header if
+	 *            the file exists.
+	 * @throws IOException
+	 *             if the file can't be opened, or was created by an
+	 *             incompatible version or with a different page or segment
+	 *             size
+	 */
+	public DiskFile(String path, int pageSize, Access access, int segmentBlocks)
+			throws IOException {
+		if (segmentBlocks < 2)
+			throw new IllegalArgumentException("Illegal segment size "
+				+ segmentBlocks);
+		this.path = path;
+		this.pageSize = pageSize;
+		this.access = access;
+		this.segmentBlocks = segmentBlocks;
+		final Segment first = new Segment(path, pageSize, access,
+			segmentBlocks);
+		segments = new Segment[] { first };
+		try {
+			isNew = first.channel.size() == 0;
+			if (isNew) writeHeader(first.channel);
+			else recorded = checkHeader(first.channel);
+			// open the segments that exist - they are needed by blocks()
+			for (int i = 1; Files.exists(Paths.get(segmentPath(i))); ++i)
+				segment(i);
+			if (!isNew) truncate(recorded);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The method allows to read the contents of a disk block to a frame in
+	 * memory. Pages past the end of the file are read as zeroes. The buffer
+	 * may be a heap or a direct one - its position and limit are ignored.
+	 *
+	 * @param pageID
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void readPage(int pageID, ByteBuffer buffer) throws IOException {
+		readBlock(blockOf(pageID), whole(buffer));
+	}
+
+	/**
+	 * The method simply write the content of the buffer in the disk in the
+	 * write offset.
+	 *
+	 * @param pageID
+	 * @param buffer
+	 * @throws IOException
+	 */
+	public void writePage(int pageID, ByteBuffer buffer) throws IOException {
+		writeBlock(blockOf(pageID), whole(buffer));
+	}
+
+	/**
+	 * Writes the pages in {@code buffers} to consecutive blocks starting at
+	 * {@code firstBlock} - in one gathering write per segment.
+	 *
+	 * @see #blockOf(int)
+	 */
+	public void writeBlocks(int firstBlock, ByteBuffer[] buffers)
+			throws IOException {
+		final ByteBuffer[] srcs = new ByteBuffer[buffers.length];
+		for (int i = 0; i < srcs.length; ++i)
+			srcs[i] = whole(buffers[i]);
+		for (int i = 0, n; i < srcs.length; i += n) {
+			final int block = firstBlock + i;
+			final Segment s = segment(block / segmentBlocks);
+			n = Math.min(srcs.length - i, segmentBlocks - block
+				% segmentBlocks);
+			if (s.mapped != null) {
+				for (int j = 0; j < n; ++j)
+					s.mapped.write(block % segmentBlocks + j, srcs[i + j]);
+				continue;
+			}
+			synchronized (s) { // shares the position of the channel
+				s.channel.position(offset(block));
+				final ByteBuffer last = srcs[i + n - 1];
+				while (last.hasRemaining())
+					s.channel.write(srcs, i, n);
+			}
+		}
+	}
+
+	/**
+	 * Reads consecutive blocks starting at {@code firstBlock} into
+	 * {@code buffers} - in one scattering read per segment. Blocks past the
+	 * end of the file are read as zeroes.
+	 */
+	public void readBlocks(int firstBlock, ByteBuffer[] buffers)
+			throws IOException {
+		final ByteBuffer[] dsts = new ByteBuffer[buffers.length];
+		for (int i = 0; i < dsts.length; ++i)
+			dsts[i] = whole(buffers[i]);
+		for (int i = 0, n; i < dsts.length; i += n) {
+			final int block = firstBlock + i;
+			final Segment s = existing(block / segmentBlocks);
+			n = Math.min(dsts.length - i, segmentBlocks - block
+				% segmentBlocks);
+			if (s == null) continue; // zeroed below
+			if (s.mapped != null) {
+				for (int j = 0; j < n; ++j)
+					s.mapped.read(block % segmentBlocks + j, dsts[i + j]);
+				continue;
+			}
+			synchronized (s) { // shares the position of the channel
+				s.channel.position(offset(block));
+				final ByteBuffer last = dsts[i + n - 1];
+				while (last.hasRemaining())
+					if (s.channel.read(dsts, i, n) == -1) break;
+			}
+		}
+		for (ByteBuffer dst : dsts)
+			while (dst.hasRemaining())
+				dst.put((byte) 0);
+	}
+
+	/**
+	 * A read only view of the page in the memory mapped file - no copy. Null
+	 * if the file is not {@link Access#MAPPED} or the page is past its end.
+	 * Modifications of the page (by writes to it) show through.
+	 */
+	public ByteBuffer mappedPage(int pageID) throws IOException {
+		if (access != Access.MAPPED) return null;
+		final Segment s = existing(blockOf(pageID) / segmentBlocks);
+		if (s == null) return null;
+		return s.mapped.slice(blockOf(pageID) % segmentBlocks);
+	}
+
+	/**
+	 * The block of the file page {@code pageID} is stored in - the order of
+	 * the blocks is the order on disk. Block 0 is the header.
+	 */
+	public int blockOf(int pageID) {
+		return pageID + 1;
+	}
+
+	/** The page stored in {@code block} - the inverse of {@link #blockOf} */
+	public int pageOf(int block) {
+		return block - 1;
+	}
+
+	/** The number of blocks in the file - including the header */
+	public int blocks() throws IOException {
+		final Segment[] s = segments;
+		for (int i = s.length - 1; i > 0; --i) {
+			final long last = s[i].size() / pageSize;
+			if (last > 0) return (int) ((long) i * segmentBlocks + last);
+		}
+		return (int) (s[0].size() / pageSize);
+	}
+
+	// =========================================================================
+	// Addresses - the pages of all the files opened
+	// =========================================================================
+	/**
+	 * The address of page {@code pageID} of this file - unique among the pages
+	 * of all the files opened. Valid till the engine stops - file ids are
+	 * assigned on opening the files.
+	 */
+	public long address(int pageID) {
+		return (long) id << 32 | pageID & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * The address of the record in slot {@code slot} of page {@code pageID}
+	 * of this file - names the record in the lock table, apart from the
+	 * addresses of the pages (it is negative). For file ids and slots of up to
+	 * 16 bits.
+	 */
+	public long recordAddress(int pageID, int slot) {
+		return Long.MIN_VALUE | (long) id << 47 | (pageID & 0x7FFFFFFFL) << 16
+			| slot;
+	}
+
+	/** True if {@code address} is the address of a page of this file */
+	public boolean owns(long address) {
+		return (int) (address >>> 32) == id;
+	}
+
+	/**
+	 * The address standing for the whole file of the page at {@code address}
+	 * in the lock table - no page has it
+	 */
+	public static long fileAddress(long address) {
+		return address | 0xFFFFFFFFL;
+	}
+
+	/** The address of the page of the record at {@code record} */
+	public static long pageAddress(long record) {
+		return (record >>> 47 & 0xFFFF) << 32 | record >>> 16 & 0x7FFFFFFFL;
+	}
+
+	/** The id of the page at {@code address} in its file */
+	public static int pageID(long address) {
+		return (int) address;
+	}
+
+	// =========================================================================
+	// Lifecycle
+	// =========================================================================
+	/**
+	 * Forces the pages written to the disk - then records the number of
+	 * blocks forced in the header. A mapped file is extended in whole extents,
+	 * so after a crash its size says nothing of the blocks written: it is cut
+	 * to the recorded blocks when opened. The blocks written after the count
+	 * was taken hold changes the log redoes from a later checkpoint.
+	 */
+	public void force() throws IOException {
+		final int blocks = blocks(); // before the force
+		for (Segment s : segments)
+			s.force();
+		if (record(blocks)) segments[0].channel.force(false);
+	}
+
+	/** Forces the pages written to the disk and closes the file */
+	public synchronized void close() throws IOException {
+		IOException failed = null;
+		try {
+			force();
+		} catch (IOException e) {
+			failed = e; // close anyway
+		}
+		for (Segment s : segments)
+			try {
+				s.close();
+			} catch (IOException e) {
+				failed = e; // close the rest
+			}
+		if (failed != null) throw failed;
+	}
+
+	/** True if the file was created when opened - so it holds no pages */
+	public boolean isNew() {
+		return isNew;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/** The path the file was opened with - identifies it in the log */
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	private void readBlock(int block, ByteBuffer dst) throws IOException {
+		final Segment s = existing(block / segmentBlocks);
+		if (s != null && s.mapped != null) {
+			s.mapped.read(block % segmentBlocks, dst);
+			return;
+		}
+		final long offset = offset(block);
+		while (s != null && dst.hasRemaining())
+			if (s.channel.read(dst, offset + dst.position()) == -1) break;
+		while (dst.hasRemaining())
+			dst.put((byte) 0);
+	}
+
+	private void writeBlock(int block, ByteBuffer src) throws IOException {
+		final Segment s = segment(block / segmentBlocks);
+		if (s.mapped != null) {
+			s.mapped.write(block % segmentBlocks, src);
+			return;
+		}
+		final long offset = offset(block);
+		while (src.hasRemaining())
+			s.channel.write(src, offset + src.position());
+	}
+
+	/**
+	 * The segment {@code i} - null if past the end of the file. Reads do not
+	 * create segments - the blocks past the end are zeroes.
+	 */
+	private Segment existing(int i) {
+		final Segment[] s = segments;
+		return i < s.length ? s[i] : null;
+	}
+
+	/**
+	 * The segment {@code i} - created, with the ones before it, if need be.
+	 * For writes only - see {@link #existing(int)}.
+	 */
+	private Segment segment(int i) throws IOException {
+		final Segment[] s = segments;
+		if (i < s.length) return s[i];
+		synchronized (this) {
+			Segment[] more = segments;
+			if (i < more.length) return more[i]; // opened meanwhile
+			final int opened = more.length;
+			more = Arrays.copyOf(more, i + 1);
+			for (int j = opened; j <= i; ++j)
+				more[j] = new Segment(segmentPath(j), pageSize, access,
+					segmentBlocks);
+			segments = more;
+			return more[i];
+		}
+	}
+
+	/**
+	 * Records {@code blocks} in the header - unless as many or more are
+	 * recorded already. Returns true if written.
+	 */
+	private synchronized boolean record(int blocks) throws IOException {
+		blocks = Math.max(1, blocks); // the header, if no page written yet
+		if (blocks <= recorded) return false;
+		final ByteBuffer count = ByteBuffer.allocate(4).putInt(0, blocks);
+		while (count.hasRemaining())
+			segments[0].channel.write(count, OFFSET_BLOCKS + count.position());
+		recorded = blocks;
+		return true;
+	}
+
+	/**
+	 * Drops the blocks past the first {@code blocks} of a mapped file - the
+	 * rest of the extents mapped when it was last open. Called on opening.
+	 */
+	private void truncate(int blocks) throws IOException {
+		final Segment[] s = segments;
+		for (int i = 0; i < s.length; ++i) {
+			final long b = Math.max(0, Math.min(segmentBlocks, blocks
+				- (long) i * segmentBlocks));
+			s[i].truncate(b * pageSize);
+		}
+	}
+
+	private String segmentPath(int i) {
+		return i == 0 ? path : path + "." + i;
+	}
+
+	/** The offset of {@code block} in its segment */
+	private long offset(int block) {
+		return (long) (block % segmentBlocks) * pageSize;
+	}
+
+	/** A view of the page in {@code buffer} - so we do not touch its state */
+	private ByteBuffer whole(ByteBuffer buffer) {
+		final ByteBuffer view = buffer.duplicate();
+		view.clear().limit(pageSize);
+		return view;
+	}
+
+	private void writeHeader(FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(pageSize);
+		header.putInt(OFFSET_MAGIC, MAGIC);
+		header.putInt(OFFSET_VERSION, FORMAT_VERSION);
+		header.putInt(OFFSET_PAGE_SIZE, pageSize);
+		header.putInt(OFFSET_SEGMENT_BLOCKS, segmentBlocks);
+		header.putInt(OFFSET_BLOCKS, 1);
+		recorded = 1;
+		while (header.hasRemaining())
+			channel.write(header, header.position());
+	}
+
+	/** Returns the blocks recorded - see {@link #force()} */
+	private int checkHeader(FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(OFFSET_BLOCKS + 4);
+		while (header.hasRemaining())
+			if (channel.read(header, header.position()) == -1)
+				throw new IOException(path + " is not a database file");
+		if (header.getInt(OFFSET_MAGIC) != MAGIC)
+			throw new IOException(path + " is not a database file");
+		final int version = header.getInt(OFFSET_VERSION);
+		if (version != FORMAT_VERSION)
+			throw new IOException(path + " has format version " + version
+				+ " - expected " + FORMAT_VERSION);
+		final int size = header.getInt(OFFSET_PAGE_SIZE);
+		if (size != pageSize)
+			throw new IOException(path + " has pages of " + size
+				+ " bytes - the engine is configured for " + pageSize);
+		final int blocks = header.getInt(OFFSET_SEGMENT_BLOCKS);
+		if (blocks != segmentBlocks)
+			throw new IOException(path + " has segments of " + blocks
+				+ " blocks - the engine is configured for " + segmentBlocks);
+		return header.getInt(OFFSET_BLOCKS);
+	}
+}
@@ -1,356 +1,516 @@
-package gr.uoa.di.mde515.files;
-
-import gr.uoa.di.mde515.engine.Engine;
-import gr.uoa.di.mde515.engine.Transaction;
-import gr.uoa.di.mde515.engine.buffer.BufferManager;
-import gr.uoa.di.mde515.engine.buffer.Page;
-import gr.uoa.di.mde515.engine.buffer.RecordsPage;
-import gr.uoa.di.mde515.engine.buffer.Serializer;
-import gr.uoa.di.mde515.index.Record;
-import gr.uoa.di.mde515.locks.DBLock;
-
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.util.List;
-
-public final class HeapFile<K extends Comparable<K>, V> extends DataFile<K, V> {
-
-	private static final BufferManager buf = BufferManager.getInstance();
-	// storage layer
-	private final DiskFile file;
-	private final Header head;
-	// useful constants
-	private static final int PAGE_SIZE = Engine.PAGE_SIZE;
-	// it the size of entry in the fileheader
-	private static final int KEY_SIZE = 4;
-	private static final short PAGE_HEADER_LENGTH = 20; // TODO move to page
-	private static final int UNDEFINED = -1;
-	// PAGE HEADER OFFSETS
-	private static final int OFFSET_CURRENT_PAGE = 0;
-	/** The next slot (FIXME OFFSET NOW) one can write */
-	private static final int OFFSET_NEXT_FREE_SLOT = 4;
-	private static final int OFFSET_CURRENT_NUMBER_OF_SLOTS = 8;
-	private static final int OFFSET_NEXT_PAGE = 12;
-	private static final int OFFSET_PREVIOUS_PAGE = 16;
-	// Used to write K and V to disc and read them back
-	private final Serializer<K> serKey;
-	private final Serializer<V> serVal;
-
-	public HeapFile(String filename, Serializer<K> serKey, Serializer<V> serVal)
-			throws IOException, InterruptedException {
-		this.serKey = serKey;
-		this.serVal = serVal;
-		try {
-			file = new DiskFile(filename);
-			head = new Header();
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException("Can't access db file", e);
-		}
-	}
-
-	private final class Header extends Page {
-
-		final short RECORD_SIZE;
-		final short MAXIMUM_NUMBER_OF_SLOTS;
-		// state fields
-		private int freeList = UNDEFINED;
-		private int numOfPages;
-		// OFFSETS
-		private static final int OFFSET_FREE_LIST = 0;
-		private static final int OFFSET_RECORD_SIZE = 12;
-		private static final int OFFSET_NUM_OF_PAGES = 14;
-
-		@SuppressWarnings("synthetic-access")
-		Header() throws IOException, InterruptedException {
-			super(buf.allocPermanentPage(0, file));
-			if (file.read() != -1) {
-				System.out.println("File already exists");
-				freeList = readInt(OFFSET_FREE_LIST);
-				RECORD_SIZE = readShort(OFFSET_RECORD_SIZE);
-				numOfPages = readInt(OFFSET_NUM_OF_PAGES);
-			} else { // FILE EMPTY - CREATE THE HEADER
-				System.out.println("Creating the file");
-				RECORD_SIZE = (short) (serKey.getTypeSize() + serVal
-					.getTypeSize());
-				writeInt(OFFSET_FREE_LIST, UNDEFINED);
-				writeShort(OFFSET_RECORD_SIZE, RECORD_SIZE);
-				writeInt(OFFSET_NUM_OF_PAGES, 0);
-				buf.flushPage(0, file); // TODO - watch out: wild flush
-			}
-			MAXIMUM_NUMBER_OF_SLOTS = (short) ((PAGE_SIZE - PAGE_HEADER_LENGTH) / RECORD_SIZE);
-			if (MAXIMUM_NUMBER_OF_SLOTS < 1)
-				throw new AssertionError("Page too small");
-		}
-
-		void pageWrite() {
-			pageWriteFreeList(freeList);
-			pageWriteNumOfPages(numOfPages);
-		}
-
-		// =====================================================================
-		// Accessors/Mutators
-		// =====================================================================
-		// FIXME sync
-		int getNumOfPages() {
-			return numOfPages;
-		}
-
-		void setNumOfPages(int num) {
-			numOfPages = num;
-		}
-
-		int getFreeList() {
-			return freeList;
-		}
-
-		void setFreeList(int freepageID) {
-			freeList = freepageID;
-		}
-
-		// =====================================================================
-		// Helpers
-		// =====================================================================
-		private void pageWriteNumOfPages(int numPages) {
-			writeInt(OFFSET_NUM_OF_PAGES, numPages);
-		}
-
-		private void pageWriteFreeList(int freelist) {
-			writeInt(OFFSET_FREE_LIST, freelist);
-		}
-	}
-
-	private final class HeapPage extends RecordsPage<K, V> {
-
-		public HeapPage(Page page) {
-			super(page, serKey, serVal, PAGE_HEADER_LENGTH);
-		}
-
-		@Override
-		@SuppressWarnings("synthetic-access")
-		protected short getMaxKeys() {
-			return head.MAXIMUM_NUMBER_OF_SLOTS;
-		}
-	}
-
-	// =========================================================================
-	// API
-	// =========================================================================
-	/**
-	 * Insert a Record<K, V> to the file. It dynamically creates new pages if
-	 * the file does not have them and modify appropriately the file and header
-	 * pages if necessary. New pages are created on insert which means that head
-	 * is locked for writing therefore there is no race in locking the newly
-	 * created page. The header of the file should be locked beforehand for
-	 * writing. Blocks if the buffer manager has no available frames.
-	 *
-	 * @param record
-	 * @throws IOException
-	 * @throws InterruptedException
-	 */
-	@Override
-	public int insert(Transaction tr, Record<K, V> record) throws IOException,
-			InterruptedException {
-		int pageID = getFreeListPageId();
-		HeapPage p = new HeapPage(alloc(tr, pageID));
-		writeIntoFrame(p, (Integer) record.getKey(),
-			(Integer) record.getValue());
-		checkReachLimitOfPage(p, tr);
-		return pageID;
-	}
-
-	@Override
-	public void delete(Transaction tr, int pid, K key) throws IOException,
-			InterruptedException {
-		int newFreeSlotposition = 0;
-		Page deleteFromPage = alloc(tr, pid);
-		for (int i = PAGE_HEADER_LENGTH, j = 0; j < head.MAXIMUM_NUMBER_OF_SLOTS; i += head.RECORD_SIZE, ++j) {
-			if (key.compareTo((K) (Integer) deleteFromPage.readInt(i)) == 0) {
-				newFreeSlotposition = i;
-			}
-			// else FIXME
-		}
-		int used_slots = deleteFromPage.readInt(OFFSET_CURRENT_NUMBER_OF_SLOTS);
-		int old_free_slot_position = deleteFromPage
-			.readInt(OFFSET_NEXT_FREE_SLOT);
-		if (used_slots != head.MAXIMUM_NUMBER_OF_SLOTS) {
-			if (newFreeSlotposition > old_free_slot_position) {
-				for (int i = 1; i < (head.MAXIMUM_NUMBER_OF_SLOTS - used_slots); i++) {
-					old_free_slot_position = deleteFromPage
-						.readInt(old_free_slot_position + KEY_SIZE);
-				}
-				// delete the key and value needs no update of the page header
-				deleteFromPage.writeInt(old_free_slot_position + KEY_SIZE,
-					newFreeSlotposition);
-				deleteFromPage.writeInt(newFreeSlotposition, UNDEFINED);
-				deleteFromPage.writeInt(newFreeSlotposition + KEY_SIZE, 0);
-				deleteFromPage.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS,
-					used_slots - 1);
-			} else {
-				deleteFromPage.writeInt(newFreeSlotposition, UNDEFINED);
-				deleteFromPage.writeInt(newFreeSlotposition + KEY_SIZE,
-					old_free_slot_position);
-				// update the page header
-				deleteFromPage.writeInt(OFFSET_NEXT_FREE_SLOT,
-					newFreeSlotposition);
-				deleteFromPage.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS,
-					used_slots - 1);
-			}
-		} else {
-			deleteFromPage.writeInt(newFreeSlotposition, UNDEFINED);
-			deleteFromPage.writeInt(newFreeSlotposition + KEY_SIZE, 0);
-			// update the page header
-			deleteFromPage.writeInt(OFFSET_NEXT_FREE_SLOT, newFreeSlotposition);
-			deleteFromPage.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS,
-				used_slots - 1);
-			// update the file header
-			if (head.getFreeList() != UNDEFINED) {
-				// get next free page
-				Page nextPage = alloc(tr, head.getFreeList());
-				nextPage.writeInt(OFFSET_PREVIOUS_PAGE,
-					deleteFromPage.readInt(OFFSET_CURRENT_PAGE));
-				deleteFromPage.writeInt(OFFSET_NEXT_PAGE,
-					nextPage.readInt(OFFSET_CURRENT_PAGE));
-				deleteFromPage.writeInt(OFFSET_PREVIOUS_PAGE, 0);
-				head.setFreeList(deleteFromPage.readInt(OFFSET_CURRENT_PAGE));
-				head.pageWrite();
-			} else {
-				head.setFreeList(deleteFromPage.readInt(OFFSET_CURRENT_PAGE));
-				deleteFromPage.writeInt(OFFSET_NEXT_PAGE, UNDEFINED);
-				deleteFromPage.writeInt(OFFSET_PREVIOUS_PAGE, 0);
-				head.pageWrite();
-			}
-		}
-	}
-
-	@Override
-	public V get(Transaction tr, int pid, K key) throws IOException,
-			InterruptedException {
-		if (key == null)
-			throw new NullPointerException("Trying to get a null key");
-		HeapPage allocFrame = new HeapPage(buf.allocFrame(pid, file));
-		return allocFrame._get(key);
-	}
-
-	@Override
-	public void abort(List<Integer> pageIds) throws IOException {
-		for (int pageID : pageIds) {
-			buf.killPage(pageID, file);
-		}
-	}
-
-	@Override
-	public void flush(List<Integer> pageIds) throws IOException {
-		head.pageWrite();
-		for (int pageID : pageIds) {
-			buf.flushPage(pageID, file);
-			System.out.println("PID " + pageID);
-			buf.unpinPage(pageID);
-		}
-	}
-
-	@Override
-	public void close() throws IOException {
-		file.close();
-	}
-
-	@Override
-	public void lockHeader(Transaction tr, DBLock e)
-			throws InterruptedException {
-		tr.lock(0, e); // FIXME pin
-	}
-
-	// =========================================================================
-	// Helpers
-	// =========================================================================
-	private int getFreeListPageId() throws InterruptedException {
-		// TODO maybe sync is excessive - only one writer - still memory model..
-		synchronized (head) {
-			final int freeList = head.getFreeList();
-			if (freeList == UNDEFINED) {
-				final int pageID = head.getNumOfPages() + 1;
-				createPageInMemory(pageID);
-				head.setFreeList(pageID);
-				head.setNumOfPages(pageID);
-				return pageID;
-			}
-			return freeList;
-		}
-	}
-
-	/**
-	 * Allocates a frame in memory for a new page and writes its header.
-	 *
-	 * @param pageID
-	 * @throws InterruptedException
-	 */
-	private static void createPageInMemory(int pageID)
-			throws InterruptedException {
-		Page p = buf.allocFrameForNewPage(pageID);
-		for (int i = 0; i < PAGE_SIZE; i = i + 4) {
-			p.writeInt(i, 0);
-		}
-		p.writeInt(OFFSET_CURRENT_PAGE, pageID);
-		p.writeInt(OFFSET_NEXT_FREE_SLOT, PAGE_HEADER_LENGTH);
-		p.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS, 0);
-		p.writeInt(OFFSET_NEXT_PAGE, UNDEFINED);
-		p.writeInt(OFFSET_PREVIOUS_PAGE, 0);
-	}
-
-	private void writeIntoFrame(Page p, int key, int value) {
-		int freeSlot = p.readInt(OFFSET_NEXT_FREE_SLOT);
-		// consider the free slots
-		int nextFreeSlot = p.readInt(freeSlot + KEY_SIZE); // OUT OF BOUNDS
-		if (nextFreeSlot == 0) {
-			p.writeInt(freeSlot, key);
-			p.writeInt(freeSlot + KEY_SIZE, value);
-			p.writeInt(OFFSET_NEXT_FREE_SLOT, freeSlot + head.RECORD_SIZE);
-			int current_number_of_slots = p
-				.readInt(OFFSET_CURRENT_NUMBER_OF_SLOTS);
-			p.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS,
-				current_number_of_slots + 1);
-		} else {
-			// update the next slot
-			p.writeInt(OFFSET_NEXT_FREE_SLOT, nextFreeSlot);
-			// write the record
-			p.writeInt(freeSlot, key);
-			p.writeInt(freeSlot + KEY_SIZE, value);
-			int current_number_of_slots = p
-				.readInt(OFFSET_CURRENT_NUMBER_OF_SLOTS);
-			p.writeInt(OFFSET_CURRENT_NUMBER_OF_SLOTS,
-				current_number_of_slots + 1);
-		}
-	}
-
-	private void checkReachLimitOfPage(Page page, Transaction tr)
-			throws IOException, InterruptedException {
-		int current_number_of_slots = page
-			.readInt(OFFSET_CURRENT_NUMBER_OF_SLOTS);
-		if (current_number_of_slots == head.MAXIMUM_NUMBER_OF_SLOTS) {
-			int next_page = page.readInt(OFFSET_NEXT_PAGE);
-			System.out.println("The next header is " + next_page);
-			page.writeInt(OFFSET_NEXT_PAGE, UNDEFINED);
-			page.writeInt(OFFSET_PREVIOUS_PAGE, 0);
-			head.setFreeList(next_page);
-			if (next_page != UNDEFINED && next_page != 0) {
-				System.out.println("The NEXT FRAME HERE");
-				Page p = alloc(tr, next_page);
-				p.writeInt(OFFSET_PREVIOUS_PAGE, 0);
-				// buf.flushPage(next_page, file); // FIXME FLUSH ??
-			}
-		}
-	}
-
-	private Page alloc(Transaction tr, int pageID) throws IOException,
-			InterruptedException {
-		Page p;
-		// TODO DBLock.E parameter
-		if (tr.lock(pageID, DBLock.E)) { // locks for the first time
-			p = buf.allocFrame(pageID, file);
-			// FIXME - race in pin ??? - add boolean pin param in allocFrame
-			buf.pinPage(pageID);
-		} else {
-			p = buf.allocFrame(pageID, file);
-		}
-		return p;
-	}
-}
+package gr.uoa.di.mde515.files;
+
+import gr.uoa.di.mde515.engine.Transaction;
+import gr.uoa.di.mde515.engine.buffer.BufferManager;
+import gr.uoa.di.mde515.engine.buffer.BulkRead;
+import gr.uoa.di.mde515.engine.buffer.Page;
+import gr.uoa.di.mde515.engine.buffer.RecordsPage;
+import gr.uoa.di.mde515.engine.buffer.Serializer;
+import gr.uoa.di.mde515.engine.buffer.SystemChange;
+import gr.uoa.di.mde515.index.Record;
+import gr.uoa.di.mde515.locks.DBLock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A heap of fixed size records - page 0 holds the file header, the pages after
+ * it the records, in slots. A slot is free if its key is UNDEFINED - the pages
+ * with free slots are linked in the free list.
+ *
+ * Writers lock the file IX, the page IX and the slot E - transactions write
+ * different records of a page concurrently, each under the short exclusive
+ * latch of the page, and only the bytes of their records are logged and
+ * undone (see {@link BufferManager#update}). An insert looks for a free slot
+ * under the latch and takes the first it can lock right away - a slot freed by
+ * a transaction in progress stays locked till it ends.
+ *
+ * The free list, the page count and the links of the pages are shared by the
+ * writers of the file, so they are not locked: they are changed under the
+ * monitor of the header (never waiting for a lock holding it), latched, as a
+ * {@link SystemChange} - logged on its own and not undone if the transaction
+ * making it aborts. The list is a hint - a page may be in it with no free
+ * slots (dropped by the next insert to find it full) and a page with free
+ * slots may not be (pushed back by the next delete).
+ */
+public final class HeapFile<K extends Comparable<K>, V> extends DataFile<K, V> {
+
+	private static final BufferManager buf = BufferManager.getInstance();
+	// storage layer
+	private final DiskFile file;
+	private final Header head;
+	// useful constants
+	private static final short PAGE_HEADER_LENGTH = 16;
+	private static final int UNDEFINED = -1;
+	/** no free slot in the page - see HeapPage#_insert */
+	private static final int FULL = -1;
+	/** the free slots of the page are locked by others - still freed */
+	private static final int BUSY = -2;
+	// PAGE HEADER OFFSETS
+	private static final int OFFSET_CURRENT_PAGE = 0;
+	/** 1 if the page is in the free list */
+	private static final int OFFSET_ON_FREE_LIST = 4;
+	private static final int OFFSET_NEXT_PAGE = 8;
+	private static final int OFFSET_PREVIOUS_PAGE = 12;
+	// Used to write K and V to disc and read them back
+	private final Serializer<K> serKey;
+	private final Serializer<V> serVal;
+
+	public HeapFile(DiskFile file, Serializer<K> serKey, Serializer<V> serVal)
+			throws IOException, InterruptedException {
+		this.serKey = serKey;
+		this.serVal = serVal;
+		this.file = file;
+		head = new Header();
+	}
+
+	private final class Header extends Page {
+
+		final short RECORD_SIZE;
+		final short MAXIMUM_NUMBER_OF_SLOTS;
+		// OFFSETS
+		private static final int OFFSET_FREE_LIST = 0;
+		private static final int OFFSET_RECORD_SIZE = 12;
+		private static final int OFFSET_NUM_OF_PAGES = 14;
+
+		@SuppressWarnings("synthetic-access")
+		Header() throws IOException, InterruptedException {
+			super(buf.allocPermanentPage(0, file));
+			if (!file.isNew()) {
+				System.out.println("File already exists");
+				RECORD_SIZE = readShort(OFFSET_RECORD_SIZE);
+			} else { // FILE EMPTY - CREATE THE HEADER
+				System.out.println("Creating the file");
+				RECORD_SIZE = (short) (serKey.getTypeSize() + serVal
+					.getTypeSize());
+				writeInt(OFFSET_FREE_LIST, UNDEFINED);
+				writeShort(OFFSET_RECORD_SIZE, RECORD_SIZE);
+				writeInt(OFFSET_NUM_OF_PAGES, 0);
+				buf.flushPage(0, file); // TODO - watch out: wild flush
+			}
+			MAXIMUM_NUMBER_OF_SLOTS = (short) ((getPageSize() - PAGE_HEADER_LENGTH) / RECORD_SIZE);
+			if (MAXIMUM_NUMBER_OF_SLOTS < 1)
+				throw new AssertionError("Page too small");
+		}
+
+		// =====================================================================
+		// Accessors/Mutators
+		// =====================================================================
+		// read and written through, holding the monitor of the header - and
+		// written in system changes, as no transaction locks the page
+		int getNumOfPages() {
+			return readInt(OFFSET_NUM_OF_PAGES);
+		}
+
+		void setNumOfPages(int num) {
+			pageWriteNumOfPages(num);
+		}
+
+		int getFreeList() {
+			return readInt(OFFSET_FREE_LIST);
+		}
+
+		void setFreeList(int freepageID) {
+			pageWriteFreeList(freepageID);
+		}
+
+		// =====================================================================
+		// Helpers
+		// =====================================================================
+		private void pageWriteNumOfPages(int numPages) {
+			writeInt(OFFSET_NUM_OF_PAGES, numPages);
+		}
+
+		private void pageWriteFreeList(int freelist) {
+			writeInt(OFFSET_FREE_LIST, freelist);
+		}
+	}
+
+	private final class HeapPage extends RecordsPage<K, V> {
+
+		public HeapPage(Page page) {
+			super(page, serKey, serVal, PAGE_HEADER_LENGTH);
+		}
+
+		@Override
+		@SuppressWarnings("synthetic-access")
+		protected short getMaxKeys() {
+			return head.MAXIMUM_NUMBER_OF_SLOTS;
+		}
+
+		/** Adds the records of the page to {@code out} - in slot order */
+		@SuppressWarnings("synthetic-access")
+		void _records(List<Record<K, V>> out) {
+			for (short i = 0; i < getMaxKeys(); ++i) {
+				if (_deleted(i)) continue;
+				out.add(new Record<>(readKey(i), readValue(i)));
+			}
+		}
+
+		/** The slot holding {@code key}, or -1 if none - read latched */
+		@SuppressWarnings("synthetic-access")
+		int _slot(K key) {
+			final Lock latch = latch(false);
+			latch.lock();
+			try {
+				for (short i = 0; i < getMaxKeys(); ++i) {
+					if (_deleted(i)) continue;
+					if (key.compareTo(readKey(i)) == 0) return i;
+				}
+				return -1;
+			} finally {
+				latch.unlock();
+			}
+		}
+
+		/**
+		 * Writes the record to the first free slot the transaction can lock E
+		 * right away - exclusively latched, so two inserts never pick the same
+		 * slot. Returns the slot, or {@link #FULL} if none is free, or
+		 * {@link #BUSY} if the free ones are locked - freed by transactions in
+		 * progress.
+		 */
+		@SuppressWarnings("synthetic-access")
+		int _insert(Transaction tr, Record<K, V> record) {
+			final Lock latch = latch(true);
+			latch.lock();
+			try {
+				boolean busy = false;
+				for (short i = 0; i < getMaxKeys(); ++i) {
+					if (!_deleted(i)) continue;
+					if (!tr.tryLockRecord(file.recordAddress(getPageId(), i),
+						DBLock.E)) {
+						busy = true;
+						continue;
+					}
+					writeKey(i, record.getKey());
+					writeValue(i, record.getValue());
+					return i;
+				}
+				return busy ? BUSY : FULL;
+			} finally {
+				latch.unlock();
+			}
+		}
+
+		/**
+		 * Frees {@code slot} if it still holds {@code key} - the slot is
+		 * locked E. Returns false if not.
+		 */
+		@SuppressWarnings("synthetic-access")
+		boolean _delete(int slot, K key) {
+			final Lock latch = latch(true);
+			latch.lock();
+			try {
+				if (_deleted(slot) || key.compareTo(readKey(slot)) != 0)
+					return false;
+				writeInt(PAGE_HEADER_LENGTH + slot * record_size, UNDEFINED);
+				return true;
+			} finally {
+				latch.unlock();
+			}
+		}
+
+		/** The first free slot, or -1 if none - call latched */
+		int _free() {
+			for (short i = 0; i < getMaxKeys(); ++i)
+				if (_deleted(i)) return i;
+			return -1;
+		}
+
+		// deleted slots have UNDEFINED keys - FIXME integers
+		@SuppressWarnings("synthetic-access")
+		private boolean _deleted(int slot) {
+			final int key = readInt(PAGE_HEADER_LENGTH + slot * record_size);
+			return key == UNDEFINED;
+		}
+
+		/**
+		 * The record in {@code slot} if it still has key {@code key}, else
+		 * null - read latched
+		 */
+		@SuppressWarnings("synthetic-access")
+		Record<K, V> _record(int slot, K key) {
+			final Lock latch = latch(false);
+			latch.lock();
+			try {
+				if (_deleted(slot) || key.compareTo(readKey(slot)) != 0)
+					return null;
+				return new Record<>(key, readValue(slot));
+			} finally {
+				latch.unlock();
+			}
+		}
+	}
+
+	// =========================================================================
+	// API
+	// =========================================================================
+	/**
+	 * Inserts the record in the first page of the free list with a slot the
+	 * transaction can lock - see {@link HeapPage#_insert}. Pages found full
+	 * are dropped from the list on the way, and if none has a slot a new page
+	 * is created and pushed on it. Returns the id of the page. Blocks if the
+	 * buffer manager has no available frames.
+	 *
+	 * @param record
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Override
+	public int insert(Transaction tr, Record<K, V> record) throws IOException,
+			InterruptedException {
+		tr.lockFile(file.address(0), DBLock.IX); // scans keep out of the list
+		int pageID = UNDEFINED;
+		boolean full = false;
+		while (true) {
+			Page created = null;
+			synchronized (head) {
+				pageID = _nextFreePage(pageID, full);
+				if (pageID == UNDEFINED) {
+					created = _createPage();
+					pageID = created.getPageId();
+				}
+			}
+			final HeapPage p = new HeapPage(alloc(tr, pageID, created));
+			final int slot = p._insert(tr, record);
+			if (slot >= 0) return pageID;
+			full = slot == FULL;
+		}
+	}
+
+	/**
+	 * Deletes the record with key {@code key} from page {@code pid}. The page
+	 * is locked IX and the slot E - the page goes back to the free list if not
+	 * in it.
+	 */
+	@Override
+	public void delete(Transaction tr, int pid, K key) throws IOException,
+			InterruptedException {
+		final HeapPage p = new HeapPage(alloc(tr, pid, null));
+		for (int slot; (slot = p._slot(key)) != -1;) {
+			tr.lockRecord(file.recordAddress(pid, slot), DBLock.E);
+			if (!p._delete(slot, key)) continue; // deleted meanwhile
+			synchronized (head) {
+				if (p.readInt(OFFSET_ON_FREE_LIST) == 0) _push(p);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Locks the record S - the page is pinned just for the read and its
+	 * writers, locking it IX, do not keep the reader out unless writing the
+	 * same record. The slot is looked up again once locked, as the record may
+	 * have been deleted meanwhile.
+	 */
+	@Override
+	public V get(Transaction tr, int pid, K key) throws IOException,
+			InterruptedException {
+		if (key == null)
+			throw new NullPointerException("Trying to get a null key");
+		final HeapPage page = new HeapPage(buf.allocFrame(pid, file, true));
+		try {
+			for (int slot; (slot = page._slot(key)) != -1;) {
+				tr.lockRecord(file.recordAddress(pid, slot), DBLock.S);
+				final Record<K, V> rec = page._record(slot, key);
+				if (rec != null) return rec.getValue();
+			}
+			return null;
+		} finally {
+			buf.unpinPage(pid, file);
+		}
+	}
+
+	/**
+	 * Reads the pages through a {@link BulkRead} - so the scan does not wipe
+	 * the buffer pool. Locks the whole file S, one lock for all the pages -
+	 * the writers lock the file IX before locking a page.
+	 */
+	@Override
+	public List<Record<K, V>> scan(Transaction tr) throws IOException,
+			InterruptedException {
+		tr.lockFile(file.address(0), DBLock.S);
+		final List<Record<K, V>> records = new ArrayList<>();
+		final BulkRead scan = buf.bulkRead(file);
+		try {
+			for (int pageID = 1; pageID <= head.getNumOfPages(); ++pageID)
+				new HeapPage(scan.read(pageID))._records(records);
+		} finally {
+			scan.close();
+		}
+		return records;
+	}
+
+	@Override
+	public void abort(List<Long> addresses) throws IOException {
+		for (long address : addresses) {
+			if (!file.owns(address)) continue;
+			buf.killPage(DiskFile.pageID(address), file);
+		}
+	}
+
+	@Override
+	public void flush(List<Long> addresses) throws IOException {
+		for (long address : addresses) {
+			if (!file.owns(address)) continue;
+			final int pageID = DiskFile.pageID(address);
+			buf.releasePage(pageID, file); // written back in the background
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * The page after {@code pageID} in the free list - the first one if
+	 * UNDEFINED, or if no longer in the list. Drops it from the list if
+	 * {@code full} and no slot was freed meanwhile. UNDEFINED at the end of
+	 * the list. Holding the monitor of the header - the links are only
+	 * changed holding it.
+	 */
+	private int _nextFreePage(int pageID, boolean full) throws IOException,
+			InterruptedException {
+		if (pageID == UNDEFINED) return head.getFreeList();
+		final Page p = buf.allocFrame(pageID, file); // pinned by us
+		if (p.readInt(OFFSET_ON_FREE_LIST) == 0) return head.getFreeList();
+		final int next = p.readInt(OFFSET_NEXT_PAGE);
+		if (full) _unlink(p);
+		return next;
+	}
+
+	/**
+	 * Creates a new page and pushes it on the free list - returns it pinned,
+	 * to be handed to {@link #alloc}. Holding the monitor of the header.
+	 */
+	private Page _createPage() throws IOException, InterruptedException {
+		final int pageID = head.getNumOfPages() + 1;
+		final int first = head.getFreeList();
+		final Page next = first == UNDEFINED ? null : buf.allocFrame(first,
+			file, true);
+		try {
+			final SystemChange change = buf.systemChange();
+			try {
+				final Page p = change.newPage(pageID, file);
+				change.add(head);
+				for (int i = 0; i < head.MAXIMUM_NUMBER_OF_SLOTS; ++i)
+					p.writeInt(PAGE_HEADER_LENGTH + i * head.RECORD_SIZE,
+						UNDEFINED); // free
+				p.writeInt(OFFSET_CURRENT_PAGE, pageID);
+				_link(change, p, next);
+				head.setNumOfPages(pageID);
+				return p;
+			} finally {
+				change.end();
+			}
+		} finally {
+			if (next != null) buf.unpinPage(first, file);
+		}
+	}
+
+	/** Pushes the page on the free list - holding the monitor of the header */
+	private void _push(Page p) throws IOException, InterruptedException {
+		final int first = head.getFreeList();
+		final Page next = first == UNDEFINED ? null : buf.allocFrame(first,
+			file, true);
+		try {
+			final SystemChange change = buf.systemChange();
+			try {
+				change.add(head);
+				change.add(p);
+				_link(change, p, next);
+			} finally {
+				change.end();
+			}
+		} finally {
+			if (next != null) buf.unpinPage(first, file);
+		}
+	}
+
+	/** Links {@code p} before {@code next} - the first page of the list */
+	private void _link(SystemChange change, Page p, Page next) {
+		p.writeInt(OFFSET_ON_FREE_LIST, 1);
+		p.writeInt(OFFSET_NEXT_PAGE, next == null ? UNDEFINED : next
+			.getPageId());
+		p.writeInt(OFFSET_PREVIOUS_PAGE, 0);
+		if (next != null) {
+			change.add(next);
+			next.writeInt(OFFSET_PREVIOUS_PAGE, p.getPageId());
+		}
+		head.setFreeList(p.getPageId());
+	}
+
+	/**
+	 * Drops the page from the free list - unless a slot was freed meanwhile.
+	 * Holding the monitor of the header.
+	 */
+	private void _unlink(Page p) throws IOException, InterruptedException {
+		final int prev = p.readInt(OFFSET_PREVIOUS_PAGE);
+		final int next = p.readInt(OFFSET_NEXT_PAGE);
+		final Page prevPage = prev == 0 ? null : buf.allocFrame(prev, file,
+			true);
+		Page nextPage = null;
+		try {
+			if (next != UNDEFINED) nextPage = buf.allocFrame(next, file, true);
+			final SystemChange change = buf.systemChange();
+			try {
+				change.add(p);
+				if (new HeapPage(p)._free() != -1) return; // not full
+				if (prevPage == null) {
+					change.add(head);
+					head.setFreeList(next);
+				} else {
+					change.add(prevPage);
+					prevPage.writeInt(OFFSET_NEXT_PAGE, next);
+				}
+				if (nextPage != null) {
+					change.add(nextPage);
+					nextPage.writeInt(OFFSET_PREVIOUS_PAGE, prev);
+				}
+				p.writeInt(OFFSET_ON_FREE_LIST, 0);
+				p.writeInt(OFFSET_NEXT_PAGE, UNDEFINED);
+				p.writeInt(OFFSET_PREVIOUS_PAGE, 0);
+			} finally {
+				change.end();
+			}
+		} finally {
+			if (nextPage != null) buf.unpinPage(next, file);
+			if (prevPage != null) buf.unpinPage(prev, file);
+		}
+	}
+
+	/**
+	 * Locks the page IX and pins it - once per transaction. The writers of
+	 * its other records lock it IX too, the records written are locked E
+	 * (see {@link HeapPage#_insert}). A page created pinned is handed over in
+	 * {@code pinned} - its pin is the transaction's.
+	 */
+	private Page alloc(Transaction tr, int pageID, Page pinned)
+			throws IOException, InterruptedException {
+		final boolean first;
+		try {
+			first = tr.lock(file.address(pageID), DBLock.IX);
+		} catch (InterruptedException | RuntimeException e) {
+			if (pinned != null) buf.unpinPage(pageID, file);
+			throw e;
+		}
+		if (pinned != null) {
+			if (!first) buf.unpinPage(pageID, file); // pinned already
+			return pinned;
+		}
+		if (!first) return buf.allocFrame(pageID, file);
+		try {
+			return buf.allocFrame(pageID, file, true);
+		} catch (IOException | InterruptedException e) {
+			tr.unlock(file.address(pageID)); // not pinned
+			throw e;
+		}
+	}
+}
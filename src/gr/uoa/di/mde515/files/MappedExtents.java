@@ -0,0 +1,120 @@
+package gr.uoa.di.mde515.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The blocks of a {@link DiskFile} mapped in memory - the file is mapped in
+ * extents of about {@value #EXTENT_BYTES} bytes, or of the whole segment if
+ * smaller (whole blocks, so no block spans two extents), each mapped the first time one of its blocks is
+ * accessed. Mapping an extent past the end of the file extends the file, so
+ * the size of the file is tracked here - it is the end of the last block
+ * written - and the file is truncated to it on {@link #close()}. After a
+ * crash the {@link DiskFile} cuts it to the blocks recorded in its header
+ * (see {@link #truncate(long)}).
+ *
+ * Thread safe - threads access the mappings through views of their own.
+ */
+final class MappedExtents {
+
+	private static final int EXTENT_BYTES = 64 * 1024 * 1024;
+	private final FileChannel channel;
+	private final int pageSize;
+	private final int blocksPerExtent;
+	/** replaced (copy on write) holding the lock - null if not mapped yet */
+	private volatile MappedByteBuffer[] extents = new MappedByteBuffer[0];
+	/** in bytes - whole blocks */
+	private final AtomicLong size;
+
+	/** @param maxBlocks the blocks the file may hold - see DiskFile */
+	MappedExtents(FileChannel channel, int pageSize, int maxBlocks)
+			throws IOException {
+		this.channel = channel;
+		this.pageSize = pageSize;
+		blocksPerExtent = Math.min(maxBlocks, Math.max(1, EXTENT_BYTES
+			/ pageSize));
+		size = new AtomicLong(channel.size() / pageSize * pageSize);
+	}
+
+	/** Copies {@code block} to {@code dst} - zeroes if past the end */
+	void read(int block, ByteBuffer dst) throws IOException {
+		if ((long) block * pageSize >= size.get()) {
+			while (dst.hasRemaining())
+				dst.put((byte) 0);
+			return;
+		}
+		dst.put(view(block));
+	}
+
+	/** Copies {@code src} to {@code block} - extending the file if need be */
+	void write(int block, ByteBuffer src) throws IOException {
+		view(block).put(src);
+		final long end = (long) (block + 1) * pageSize;
+		for (long cur = size.get(); end > cur; cur = size.get())
+			if (size.compareAndSet(cur, end)) break;
+	}
+
+	/**
+	 * A read only view of {@code block} - it shares its content with the
+	 * mapping (no copy). Null if past the end of the file.
+	 */
+	ByteBuffer slice(int block) throws IOException {
+		if ((long) block * pageSize >= size.get()) return null;
+		return view(block).asReadOnlyBuffer();
+	}
+
+	long size() {
+		return size.get();
+	}
+
+	void force() {
+		for (MappedByteBuffer extent : extents)
+			if (extent != null) extent.force();
+	}
+
+	/**
+	 * The file holds {@code bytes} - whole blocks - and what is past them is
+	 * dropped. Call before any block is accessed.
+	 */
+	void truncate(long bytes) throws IOException {
+		if (bytes < size.get()) size.set(bytes);
+		if (channel.size() > bytes) channel.truncate(bytes);
+	}
+
+	/** Writes back the modified blocks and truncates the file to its size */
+	void close() throws IOException {
+		force();
+		// FIXME: can't unmap before GC - on windows the truncate fails
+		channel.truncate(size.get());
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/** A view of {@code block} - mapping its extent if not yet mapped */
+	private ByteBuffer view(int block) throws IOException {
+		final int e = block / blocksPerExtent;
+		MappedByteBuffer[] ext = extents;
+		if (e >= ext.length || ext[e] == null) ext = map(e);
+		final ByteBuffer view = ext[e].duplicate();
+		final int position = (block % blocksPerExtent) * pageSize;
+		view.limit(position + pageSize).position(position);
+		return view.slice();
+	}
+
+	private synchronized MappedByteBuffer[] map(int e) throws IOException {
+		MappedByteBuffer[] ext = extents;
+		if (e < ext.length && ext[e] != null) return ext; // mapped meanwhile
+		if (e >= ext.length) ext = Arrays.copyOf(ext, e + 1);
+		else ext = ext.clone();
+		final long extentBytes = (long) blocksPerExtent * pageSize;
+		ext[e] = channel.map(MapMode.READ_WRITE, e * extentBytes, extentBytes);
+		extents = ext;
+		return ext;
+	}
+}
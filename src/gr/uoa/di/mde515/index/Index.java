@@ -1,35 +1,48 @@
-package gr.uoa.di.mde515.index;
-
-import gr.uoa.di.mde515.engine.Transaction;
-import gr.uoa.di.mde515.locks.DBLock;
-
-import java.io.IOException;
-import java.util.List;
-
-/**
- * @param <K>
- *            the key type - the primary key in the data file
- * @param <T>
- *            the type of the pageId - int in this project
- */
-public interface Index<K extends Comparable<K>, T> {
-
-	/**
-	 * Locks the path from the root to the leaf where a key is to be inserted on
-	 * behalf of a given transaction - WIP
-	 *
-	 * @throws InterruptedException
-	 * @throws IOException
-	 */
-	T lookupLocked(Transaction tr, K key, DBLock el) throws IOException,
-			InterruptedException;
-
-	void flush(List<Integer> list) throws IOException;
-
-	void insert(Transaction tr, Record<K, T> rec) throws IOException,
-			InterruptedException;
-
-	void delete(Transaction tr, K key) throws IOException, InterruptedException;
-
-	void abort(List<Integer> list) throws IOException;
-}
+package gr.uoa.di.mde515.index;
+
+import gr.uoa.di.mde515.engine.Transaction;
+import gr.uoa.di.mde515.locks.DBLock;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @param <K>
+ *            the key type - the primary key in the data file
+ * @param <T>
+ *            the type of the pageId - int in this project
+ */
+public interface Index<K extends Comparable<K>, T> {
+
+	/**
+	 * Locks the path from the root to the leaf where a key is to be inserted on
+	 * behalf of a given transaction - WIP
+	 *
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	T lookupLocked(Transaction tr, K key, DBLock el) throws IOException,
+			InterruptedException;
+
+	/**
+	 * Returns the records with keys in [key1, key2] in key order, locking
+	 * for reading on behalf of {@code tr}
+	 */
+	List<Record<K, T>> range(Transaction tr, K key1, K key2)
+			throws IOException, InterruptedException;
+
+	/**
+	 * Releases the index pages among the {@code addresses} locked by a
+	 * committing transaction - see {@link gr.uoa.di.mde515.files.DiskFile#address(int)}
+	 */
+	void flush(List<Long> addresses) throws IOException;
+
+	void insert(Transaction tr, Record<K, T> rec) throws IOException,
+			InterruptedException;
+
+	void delete(Transaction tr, K key) throws IOException, InterruptedException;
+
+	void abort(List<Long> addresses) throws IOException;
+
+	void close() throws IOException;
+}
@@ -1,5 +1,81 @@
-package gr.uoa.di.mde515.locks;
-
-public enum DBLock {
-	E, S;
-}
+package gr.uoa.di.mde515.locks;
+
+/**
+ * The lock modes. Records are locked S or E. Files and pages are locked in any
+ * mode - the intention modes (IS, IX, SIX) are taken on a file before locking
+ * its pages, and on a page before locking its records, so a lock on the whole
+ * file or page (S, E) conflicts with the locks of other transactions below it
+ * without looking them up.
+ */
+public enum DBLock {
+	E, S, IS, IX, SIX;
+
+	/** Which modes may be held together - indexed by ordinal */
+	private static final boolean[][] COMPATIBLE = {
+		// E      S      IS     IX     SIX
+		{ false, false, false, false, false }, // E
+		{ false, true, true, false, false }, // S
+		{ false, true, true, true, true }, // IS
+		{ false, false, true, true, false }, // IX
+		{ false, false, true, false, false }, // SIX
+	};
+	/** Which modes grant all that others do - indexed by ordinal */
+	private static final boolean[][] COVERS = {
+		// E      S      IS     IX     SIX
+		{ true, true, true, true, true }, // E
+		{ false, true, true, false, false }, // S
+		{ false, false, true, false, false }, // IS
+		{ false, false, true, true, false }, // IX
+		{ false, true, true, true, true }, // SIX
+	};
+	/** The modes from the weakest to the strongest */
+	private static final DBLock[] STRENGTH = { IS, S, IX, SIX, E };
+
+	/** True if a lock of this mode may be granted while {@code held} is held */
+	public boolean isCompatible(DBLock held) {
+		return COMPATIBLE[ordinal()][held.ordinal()];
+	}
+
+	/** True if holding this mode grants all {@code other} does */
+	public boolean covers(DBLock other) {
+		return COVERS[ordinal()][other.ordinal()];
+	}
+
+	/**
+	 * True if holding this mode on a file, or page, locks all it contains in
+	 * mode {@code lock} - E all modes, S and SIX the modes for reading
+	 */
+	public boolean coversChildren(DBLock lock) {
+		return this == E || (this == S || this == SIX)
+			&& (lock == S || lock == IS);
+	}
+
+	/** The weakest mode covering both this and {@code other} - S and IX: SIX */
+	public DBLock sup(DBLock other) {
+		for (DBLock mode : STRENGTH)
+			if (mode.covers(this) && mode.covers(other)) return mode;
+		throw new AssertionError(); // E covers all
+	}
+
+	/**
+	 * The mode the file is locked in before locking a page in this mode - or
+	 * the page before locking a record
+	 */
+	public DBLock intention() {
+		return this == S || this == IS ? IS : IX;
+	}
+
+	/** The modes in ordinal order */
+	private static final DBLock[] MODES = values();
+
+	/**
+	 * True if compatible with all the modes in {@code held} - a mask of
+	 * {@code 1 << ordinal()}
+	 */
+	boolean isCompatibleWithAll(int held) {
+		for (DBLock mode : MODES)
+			if ((held & 1 << mode.ordinal()) != 0 && !isCompatible(mode))
+				return false;
+		return true;
+	}
+}
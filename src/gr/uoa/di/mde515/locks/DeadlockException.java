@@ -0,0 +1,15 @@
+package gr.uoa.di.mde515.locks;
+
+/**
+ * Thrown to a transaction requesting a lock when it is aborted to resolve or
+ * prevent a deadlock - see {@link LockManager.DeadlockPolicy}. The lock is not
+ * granted. Retrying the operation in a new transaction may succeed.
+ */
+public final class DeadlockException extends InterruptedException {
+
+	private static final long serialVersionUID = -3870255236120993716L;
+
+	public DeadlockException(String string) {
+		super(string);
+	}
+}
@@ -1,148 +1,561 @@
-package gr.uoa.di.mde515.locks;
-
-import gr.uoa.di.mde515.engine.Transaction;
-
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
-public class LockManager {
-
-	private LockManager() {}
-
-	public final static class Request {
-
-		private final int pageId;
-		private final Transaction tr;
-		private final DBLock lock;
-
-		public Request(int pageId, Transaction tr, DBLock lock) {
-			this.pageId = pageId;
-			this.tr = tr;
-			this.lock = lock;
-		}
-
-		@Override
-		public String toString() {
-			StringBuilder builder = new StringBuilder();
-			builder.append("Request [pageId=");
-			builder.append(pageId);
-			builder.append(", tr=");
-			builder.append(tr);
-			builder.append(", lock=");
-			builder.append(lock);
-			builder.append("]");
-			return builder.toString();
-		}
-	}
-
-	private static final ConcurrentMap<Integer, LockStructure> locks = new ConcurrentHashMap<>();
-	private static final LockManager instance = new LockManager();
-
-	public static LockManager getInstance() {
-		return instance;
-	}
-
-	@SuppressWarnings("synthetic-access")
-	public void requestLock(Request request) throws InterruptedException {
-		LockStructure lockStruct = null;
-		synchronized (locks) {
-			lockStruct = locks.get(request.pageId);
-			if (lockStruct == null) {
-				lockStruct = new LockStructure();
-				locks.put(request.pageId, lockStruct);
-			}
-			// make sure that no other thread deletes the pageLock by adding to
-			// trans
-			lockStruct.add(request);
-		}
-		lockStruct.lock(request); // this may block so must be
-		// out of the synchronized block
-	}
-
-	public void unlock(Transaction tr, int pid) {
-		synchronized (locks) {
-			LockStructure lockStruct = locks.get(pid);
-			if (lockStruct == null) {
-				throw new RuntimeException(
-					"Requesting unlock for non locked page " + pid
-						+ " on behalf of transaction " + tr);
-			}
-			if (lockStruct.unlock(tr)) locks.remove(pid);
-		}
-	}
-
-	private final static class LockStructure {
-
-		/** A semi fair lock - FIFO with preference to writers */
-		private final ReadWriteLock rw = new ReentrantReadWriteLock(true);
-		private final Lock r = rw.readLock();
-		private final Lock w = rw.writeLock();
-		/**
-		 * Keeps track of the for the page this LockStructure is mapped to. When
-		 * empty delete this LockStructure
-		 */
-		private final Map<Transaction, DBLock> requests = new LinkedHashMap<>();
-		private final Map<Transaction, Request> granted = new LinkedHashMap<>();
-
-		private LockStructure() {}
-
-		@SuppressWarnings("synthetic-access")
-		synchronized void lock(Request req) throws InterruptedException {
-			final DBLock lock = req.lock;
-			final Transaction trans = req.tr;
-			final Request grant = granted.get(trans);
-			if (grant != null && grant.pageId == req.pageId
-				&& grant.lock == lock) return; // maybe redundant checks ?
-			switch (lock) {
-			case E:
-				w.lockInterruptibly();
-				break;
-			case S:
-				r.lockInterruptibly();
-				break;
-			}
-			granted.put(trans, req);
-		}
-
-		@SuppressWarnings("synthetic-access")
-		synchronized void add(Request request) {
-			requests.put(request.tr, request.lock);
-		}
-
-		/**
-		 * Unlock a lock granted to Transaction {@code tr}. Return true when
-		 * this was the last request for this page.
-		 */
-		@SuppressWarnings("synthetic-access")
-		synchronized boolean unlock(Transaction tr) {
-			System.out.println(tr + " unlocking.");
-			for (Entry<Transaction, Request> transRequest : granted.entrySet()) {
-				if (tr.equals(transRequest.getKey())) {
-					switch (transRequest.getValue().lock) {
-					case E:
-						w.unlock();
-						break;
-					case S:
-						r.unlock();
-						break;
-					}
-					granted.remove(tr);
-					break; // avoid a ConcurrentModificationException
-				}
-			}
-			for (Entry<Transaction, DBLock> transLock : requests.entrySet()) {
-				if (tr.equals(transLock.getKey())) {
-					requests.remove(tr);
-					break; // avoid a ConcurrentModificationException
-				}
-			}
-			return requests.isEmpty();
-		}
-	}
-}
+package gr.uoa.di.mde515.locks;
+
+import gr.uoa.di.mde515.engine.Transaction;
+import gr.uoa.di.mde515.engine.TransactionTimeoutException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Page and file locks of the transactions. How deadlocks are dealt with is
+ * set by the {@link DeadlockPolicy} - by default a transaction blocked on a
+ * lock is in the {@link WaitsForGraph} till the lock is granted, and once the
+ * deadlock detector is started (see {@link #startDetector(long, VictimPolicy)})
+ * transactions waiting in a cycle are interrupted, one per cycle, and fail.
+ *
+ * The lock table is striped - each page address is hashed to a {@link Stripe},
+ * a map of page to lock head latched by its own monitor - so requests for
+ * pages of different stripes do not contend. The heads of the pages no longer
+ * locked are pooled per stripe.
+ *
+ * The requests for a page are queued in its head, in FIFO order. A request is
+ * granted at once if {@link DBLock#isCompatible compatible} with all the
+ * requests queued - else it waits, parked, for the requests before it it
+ * conflicts with. When a lock is released the waiters are granted in order, as
+ * long as they are compatible with the granted group, and woken together.
+ *
+ * A transaction requesting a page it holds in another mode converts its lock
+ * (an S lock is upgraded to E). The conversion is queued ahead of the waiters,
+ * after the conversions before it, and granted once no other transaction holds
+ * the page in a conflicting mode - the waiters it passed wait for it too. Two
+ * transactions upgrading the same page deadlock - as any deadlock this is
+ * dealt with by the {@link DeadlockPolicy}.
+ *
+ * Locks are hierarchical - the address of a page or of a whole file (see
+ * {@link gr.uoa.di.mde515.files.DiskFile#fileAddress}) is locked alike, the
+ * {@link Transaction} takes the intention locks on the files.
+ */
+public class LockManager {
+
+	private LockManager() {}
+
+	/**
+	 * How deadlocks are dealt with. The prevention policies use the ids of the
+	 * transactions as their timestamps - the lower the id the older - and keep
+	 * no wait-for graph, but abort transactions that may never deadlock.
+	 */
+	public enum DeadlockPolicy {
+		/** Deadlocks are detected and broken - see {@link WaitsForGraph} */
+		DETECT,
+		/**
+		 * A transaction waits only for younger ones - requesting a lock held
+		 * or requested before it by an older transaction it dies
+		 */
+		WAIT_DIE,
+		/**
+		 * A transaction waits only for older ones - requesting a lock held or
+		 * requested before it by younger transactions it wounds them: they
+		 * die once waiting for a lock, or on their next lock request
+		 */
+		WOUND_WAIT;
+	}
+
+	/** Which transaction of a deadlock cycle is aborted */
+	public enum VictimPolicy {
+		/** The one that started last - the highest id */
+		YOUNGEST,
+		/** The one holding the fewest locks */
+		LEAST_WORK;
+	}
+
+	public final static class Request {
+
+		private final long pageId; // the address of the page
+		private final Transaction tr;
+		private final DBLock lock;
+		/** the next request in the queue of the page - guarded by the stripe */
+		private Request next;
+		/** set by the thread granting the request */
+		private volatile boolean granted;
+		/** converts a lock held by its transaction - guarded by the stripe */
+		private boolean upgrade;
+		private Thread thread; // the waiting thread, unparked when granted
+		/** the vertex of the waiting transaction - guarded by the stripe */
+		private WaitsForGraph.Waiter waiter;
+
+		public Request(long pageId, Transaction tr, DBLock lock) {
+			this.pageId = pageId;
+			this.tr = tr;
+			this.lock = lock;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Request [pageId=");
+			builder.append(pageId);
+			builder.append(", tr=");
+			builder.append(tr);
+			builder.append(", lock=");
+			builder.append(lock);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+
+	/** a power of two - a few per core so that the stripes are seldom shared */
+	private static final int STRIPES = Integer.highestOneBit(Math.max(16,
+		4 * Runtime.getRuntime().availableProcessors()) * 2 - 1);
+	/** the lock heads kept for reuse per stripe */
+	private static final int MAX_POOLED_HEADS = 16;
+	private static final LockManager instance = new LockManager();
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	{
+		for (int i = 0; i < STRIPES; ++i)
+			stripes[i] = new Stripe();
+	}
+	private final WaitsForGraph waits = new WaitsForGraph();
+	private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+	/** the page locks per file a transaction escalates past - 0 never */
+	private volatile int escalation;
+
+	public static LockManager getInstance() {
+		return instance;
+	}
+
+	/** Call before any lock is requested */
+	public void setDeadlockPolicy(DeadlockPolicy deadlocks) {
+		if (deadlocks == null) throw new NullPointerException();
+		policy = deadlocks;
+	}
+
+	/**
+	 * A transaction holding {@code pages} page locks of a file locks the
+	 * whole file instead - 0 never. See {@link Transaction#lock}.
+	 */
+	public void setEscalation(int pages) {
+		if (pages < 0) throw new IllegalArgumentException("Illegal escalation "
+			+ pages + " pages");
+		escalation = pages;
+	}
+
+	public int getEscalation() {
+		return escalation;
+	}
+
+	/**
+	 * Checks for deadlocks every {@code intervalMillis} - 0 for no detection,
+	 * deadlocked transactions then wait forever.
+	 */
+	public void startDetector(long intervalMillis, VictimPolicy policy) {
+		waits.start(intervalMillis, policy);
+	}
+
+	public void stopDetector() throws InterruptedException {
+		waits.shutdown();
+	}
+
+	/**
+	 * Blocks till the lock is granted - or the deadline of the transaction, if
+	 * any, passes.
+	 *
+	 * @throws TransactionTimeoutException
+	 *             if the deadline of the transaction passes waiting - then
+	 *             the lock is not granted
+	 * @throws DeadlockException
+	 *             if the transaction is aborted by the {@link DeadlockPolicy}
+	 *             - then the lock is not granted
+	 * @throws InterruptedException
+	 *             if the thread is interrupted waiting - then the lock is not
+	 *             granted
+	 */
+	@SuppressWarnings("synthetic-access")
+	public void requestLock(Request request) throws InterruptedException {
+		final DeadlockPolicy deadlocks = policy;
+		if (deadlocks != DeadlockPolicy.DETECT
+			&& waits.isWounded(request.tr)) throw victim(request, deadlocks);
+		final Stripe stripe = stripe(request.pageId);
+		final LockStructure lockStruct;
+		synchronized (stripe) {
+			lockStruct = stripe.head(request.pageId);
+			// make sure that no other thread deletes the pageLock by adding to
+			// trans
+			final List<Transaction> ahead = lockStruct.add(request);
+			if (request.upgrade) _passed(lockStruct, request, deadlocks);
+			if (request.granted) return; // else tracked while waiting
+			final List<Long> ids = new ArrayList<>();
+			for (Transaction t : ahead) {
+				switch (deadlocks) {
+				case WAIT_DIE:
+					if (t.getId() > request.tr.getId()) continue;
+					_cancel(stripe, lockStruct, request);
+					throw victim(request, deadlocks);
+				case WOUND_WAIT:
+					if (t.getId() > request.tr.getId()) waits.wound(t);
+					break;
+				case DETECT:
+					ids.add(t.getId());
+					break;
+				}
+			}
+			request.waiter = waits.waits(request.tr, request.pageId, ids);
+			if (request.waiter == null) { // wounded
+				_cancel(stripe, lockStruct, request);
+				throw victim(request, deadlocks);
+			}
+		}
+		final boolean granted;
+		try {
+			// this may block so must be out of the synchronized block
+			granted = lockStruct.await(request, request.tr.nanosLeft());
+		} catch (InterruptedException e) {
+			final boolean victim = waits.done(request.tr);
+			_cancel(stripe, lockStruct, request);
+			if (!victim) throw e;
+			throw victim(request, deadlocks);
+		}
+		if (!granted) {
+			if (waits.done(request.tr)) Thread.interrupted(); // victim too
+			_cancel(stripe, lockStruct, request);
+			throw new TransactionTimeoutException(request.tr
+				+ " timed out waiting for " + request);
+		}
+		if (waits.done(request.tr)) { // interrupted after the grant
+			Thread.interrupted(); // clear - it would close a FileChannel
+			_cancel(stripe, lockStruct, request); // an upgrade keeps the S lock
+			throw victim(request, deadlocks);
+		}
+	}
+
+	/**
+	 * Grants the lock if it can be granted right away - else withdraws the
+	 * request and returns false. Never waits, so it may be called holding a
+	 * latch (see {@link Transaction#tryLockRecord}) - and never takes part in
+	 * a deadlock, so the {@link DeadlockPolicy} is not consulted.
+	 */
+	public boolean tryLock(Request request) {
+		final Stripe stripe = stripe(request.pageId);
+		synchronized (stripe) {
+			final LockStructure lockStruct = stripe.head(request.pageId);
+			lockStruct.add(request);
+			if (request.granted) return true;
+			if (lockStruct.cancel(request))
+				stripe.free(request.pageId, lockStruct);
+			return false;
+		}
+	}
+
+	/** Transaction {@code tr} released all its locks */
+	public void ended(Transaction tr) {
+		if (policy != DeadlockPolicy.DETECT) waits.ended(tr);
+	}
+
+	public void unlock(Transaction tr, long pid) {
+		final Stripe stripe = stripe(pid);
+		synchronized (stripe) {
+			LockStructure lockStruct = stripe.heads.get(pid);
+			if (lockStruct == null) {
+				throw new RuntimeException(
+					"Requesting unlock for non locked page " + pid
+						+ " on behalf of transaction " + tr);
+			}
+			if (lockStruct.unlock(tr)) stripe.free(pid, lockStruct);
+			// else transactions may be waiting for the page
+			else if (policy == DeadlockPolicy.DETECT) lockStruct.released(tr);
+		}
+	}
+
+	// =========================================================================
+	// Helpers
+	// =========================================================================
+	/**
+	 * Fibonacci hashing - as in the buffer pool, page addresses are sequential
+	 * in their low bits.
+	 */
+	private Stripe stripe(long pageId) {
+		return stripes[(int) ((pageId * 0x9E3779B97F4A7C15L) >>> 40)
+			& (STRIPES - 1)];
+	}
+
+	/**
+	 * Withdraws a request - released if granted meanwhile. A withdrawn upgrade
+	 * leaves the transaction holding the page, so the waiters keep waiting for
+	 * it - those that waited only for the upgrade keep a stale edge, which may
+	 * cause a spurious victim but never a missed deadlock.
+	 */
+	private void _cancel(Stripe stripe, LockStructure lockStruct,
+			Request request) {
+		synchronized (stripe) {
+			if (lockStruct.cancel(request))
+				stripe.free(request.pageId, lockStruct);
+			else if (policy == DeadlockPolicy.DETECT && !request.upgrade)
+				lockStruct.released(request.tr);
+		}
+	}
+
+	/**
+	 * An upgrade was queued ahead of the waiters - the conflicting ones now
+	 * wait for it too.
+	 */
+	private void _passed(LockStructure lockStruct, Request request,
+			DeadlockPolicy deadlocks) {
+		final long id = request.tr.getId();
+		for (Request r : lockStruct.passed(request)) {
+			switch (deadlocks) {
+			case WAIT_DIE: // younger waiting for older - dies
+				if (r.tr.getId() > id) waits.wound(r.tr);
+				break;
+			case WOUND_WAIT: // older waiting for younger - wounds it
+				if (r.tr.getId() < id) waits.wound(request.tr);
+				break;
+			case DETECT:
+				if (r.waiter != null) r.waiter.waitsFor(id);
+				break;
+			}
+		}
+	}
+
+	private DeadlockException victim(Request request,
+			DeadlockPolicy deadlocks) {
+		switch (deadlocks) {
+		case WAIT_DIE:
+			return new DeadlockException(request.tr + " dies waiting for "
+				+ request + " held by an older transaction");
+		case WOUND_WAIT:
+			return new DeadlockException(request.tr
+				+ " wounded by an older transaction - requesting " + request);
+		default:
+			return new DeadlockException(request.tr + " chosen as deadlock "
+				+ "victim (" + waits.victimPolicy() + ") waiting for "
+				+ request);
+		}
+	}
+
+	/**
+	 * A bucket of the lock table - the lock heads of the pages hashed to it,
+	 * guarded by its monitor. The graph of the waiting transactions is only
+	 * updated holding a stripe (and never the reverse), so there is no global
+	 * lock order to mind.
+	 */
+	private static final class Stripe {
+
+		final Map<Long, LockStructure> heads = new HashMap<>();
+		/** heads of pages no longer locked - their queues are empty */
+		private final Deque<LockStructure> pool = new ArrayDeque<>();
+
+		/** The head of the page - created or reused if the page is unlocked */
+		@SuppressWarnings("synthetic-access")
+		LockStructure head(long pageId) {
+			LockStructure head = heads.get(pageId);
+			if (head == null) {
+				head = pool.poll();
+				if (head == null) head = new LockStructure();
+				heads.put(pageId, head);
+			}
+			return head;
+		}
+
+		/** The last request for the page is gone - its head is reused */
+		void free(long pageId, LockStructure head) {
+			heads.remove(pageId);
+			if (pool.size() < MAX_POOLED_HEADS) pool.push(head);
+		}
+	}
+
+	/**
+	 * The head of the queue of the requests for a page - guarded by the
+	 * stripe of the page, but for the waiting threads reading if they were
+	 * granted.
+	 */
+	private final static class LockStructure {
+
+		private Request first, last;
+
+		private LockStructure() {}
+
+		/**
+		 * Adds the request - granted if compatible with all the requests in
+		 * the queue, else returns the transactions requesting the page before
+		 * it in a conflicting mode, which it will wait for.
+		 */
+		@SuppressWarnings("synthetic-access")
+		List<Transaction> add(Request request) {
+			final List<Transaction> ahead = new ArrayList<>();
+			boolean holds = false;
+			for (Request r = first; r != null; r = r.next) {
+				if (r.tr.equals(request.tr)) { // redundant request ?
+					if (r.granted && r.lock == request.lock) {
+						request.granted = true;
+						return ahead;
+					}
+					holds |= r.granted;
+					continue;
+				}
+				if (!request.lock.isCompatible(r.lock)) ahead.add(r.tr);
+			}
+			if (holds) return convert(request);
+			if (ahead.isEmpty()) request.granted = true;
+			else request.thread = Thread.currentThread();
+			if (last == null) first = request;
+			else last.next = request;
+			last = request;
+			return ahead;
+		}
+
+		/**
+		 * Queues an upgrade ahead of the waiters, after the upgrades before it
+		 * - returns the transactions it will wait for: the ones holding the
+		 * page, or upgrading it, in a conflicting mode.
+		 */
+		@SuppressWarnings("synthetic-access")
+		private List<Transaction> convert(Request request) {
+			final List<Transaction> ahead = new ArrayList<>();
+			Request prev = null, next = first;
+			for (Request r = first; r != null; r = r.next) {
+				if (r.granted || r.upgrade) {
+					if (!r.tr.equals(request.tr)
+						&& !request.lock.isCompatible(r.lock)) ahead.add(r.tr);
+					if (r == next) {
+						prev = r;
+						next = r.next;
+					}
+				}
+			}
+			request.upgrade = true;
+			if (ahead.isEmpty()) request.granted = true;
+			else request.thread = Thread.currentThread();
+			request.next = next;
+			if (prev == null) first = request;
+			else prev.next = request;
+			if (next == null) last = request;
+			return ahead;
+		}
+
+		/**
+		 * The requests waiting behind the upgrade in a conflicting mode - it
+		 * passed them
+		 */
+		@SuppressWarnings("synthetic-access")
+		List<Request> passed(Request upgrade) {
+			final List<Request> passed = new ArrayList<>();
+			for (Request r = upgrade.next; r != null; r = r.next)
+				if (!r.granted && !r.upgrade && !r.tr.equals(upgrade.tr)
+					&& !upgrade.lock.isCompatible(r.lock)) passed.add(r);
+			return passed;
+		}
+
+		/**
+		 * Transaction {@code tr} released, or gave up waiting for, the page -
+		 * the waiters of the page no longer wait for it. Only the waiters of
+		 * this page are visited, by their requests.
+		 */
+		@SuppressWarnings("synthetic-access")
+		void released(Transaction tr) {
+			final long id = tr.getId();
+			for (Request r = first; r != null; r = r.next)
+				if (!r.granted && r.waiter != null) r.waiter.released(id);
+		}
+
+		/**
+		 * Parks, holding no monitor, till the request is granted. Waits up to
+		 * {@code nanos}, or forever if Long.MAX_VALUE - returns false if the
+		 * request was not granted by then.
+		 */
+		@SuppressWarnings("synthetic-access")
+		boolean await(Request req, long nanos) throws InterruptedException {
+			final long deadline = nanos == Long.MAX_VALUE ? 0 : System
+				.nanoTime() + nanos;
+			while (!req.granted) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				if (nanos == Long.MAX_VALUE) LockSupport.park(this);
+				else {
+					final long left = deadline - System.nanoTime();
+					if (left <= 0) return req.granted;
+					LockSupport.parkNanos(this, left);
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Removes the requests of {@code tr}, granted or not - the waiters
+		 * that can now be granted are. Return true when this was the last
+		 * request for this page.
+		 */
+		@SuppressWarnings("synthetic-access")
+		boolean unlock(Transaction tr) {
+			for (Request r = first, prev = null; r != null;) {
+				final Request next = r.next;
+				if (r.tr.equals(tr)) _unlink(r, prev);
+				else prev = r;
+				r = next;
+			}
+			if (first == null) return true;
+			grant();
+			return false;
+		}
+
+		/**
+		 * Removes the request, granted or not - an upgrade leaves the lock of
+		 * its transaction as it was. Return true when this was the last request
+		 * for this page.
+		 */
+		@SuppressWarnings("synthetic-access")
+		boolean cancel(Request request) {
+			for (Request r = first, prev = null; r != null; prev = r,
+					r = r.next) {
+				if (r != request) continue;
+				_unlink(r, prev);
+				break;
+			}
+			if (first == null) return true;
+			grant();
+			return false;
+		}
+
+		@SuppressWarnings("synthetic-access")
+		private void _unlink(Request r, Request prev) {
+			if (prev == null) first = r.next;
+			else prev.next = r.next;
+			if (last == r) last = prev;
+			r.next = null;
+		}
+
+		/**
+		 * Grants the waiters in order while compatible with the granted group
+		 * - all of them are woken at once
+		 */
+		@SuppressWarnings("synthetic-access")
+		private void grant() {
+			int held = 0; // the modes of the granted group
+			for (Request r = first; r != null; r = r.next)
+				if (r.granted) held |= 1 << r.lock.ordinal();
+			for (Request waiter = first; waiter != null; waiter = waiter.next) {
+				if (waiter.granted) continue;
+				if (waiter.upgrade ? !convertible(waiter) : !waiter.lock
+					.isCompatibleWithAll(held)) return;
+				held |= 1 << waiter.lock.ordinal();
+				waiter.granted = true;
+				LockSupport.unpark(waiter.thread);
+				waiter.thread = null;
+			}
+		}
+
+		/**
+		 * True if no other transaction holds the page in a mode conflicting
+		 * with the upgrade
+		 */
+		@SuppressWarnings("synthetic-access")
+		private boolean convertible(Request upgrade) {
+			for (Request r = first; r != null; r = r.next)
+				if (r.granted && !r.tr.equals(upgrade.tr)
+					&& !upgrade.lock.isCompatible(r.lock)) return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package gr.uoa.di.mde515.locks;
+
+import gr.uoa.di.mde515.engine.Transaction;
+import gr.uoa.di.mde515.locks.LockManager.VictimPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The transactions waiting for a lock and the transactions they wait for -
+ * maintained by the {@link LockManager} as locks are requested, granted and
+ * released. A transaction waits for one lock at a time, so each waiting
+ * transaction has one vertex with edges to the holders and the earlier
+ * conflicting waiters of the page it waits for.
+ *
+ * A detector thread takes a snapshot of the graph periodically and searches it
+ * for cycles (depth first, linear in the edges). One transaction per cycle is
+ * chosen as victim, by the {@link VictimPolicy}, and its thread interrupted -
+ * only while it still waits for the lock, so a victim is never interrupted
+ * doing I/O (an interrupted FileChannel is closed). The victim fails with an
+ * InterruptedException and is aborted as any failed transaction.
+ *
+ * Under the prevention policies (see {@link LockManager.DeadlockPolicy}) the
+ * waiting transactions are kept, with no edges, so the ones that must die are
+ * interrupted the same way - they are wounded.
+ */
+final class WaitsForGraph implements Runnable {
+
+	/**
+	 * A waiting transaction - a vertex of the graph. Kept by its request too,
+	 * in the queue of the page, so its edges are updated holding just the
+	 * stripe of the page (see {@link LockManager#unlock}).
+	 */
+	static final class Waiter {
+
+		final Transaction tr;
+		final Thread thread;
+		final long pageId;
+		/** the ids of the transactions waited for - read by the detector */
+		private final CopyOnWriteArrayList<Long> waitsFor;
+		/** guarded by the graph */
+		boolean victim;
+
+		Waiter(Transaction tr, long pageId, List<Long> waitsFor) {
+			this.tr = tr;
+			this.thread = Thread.currentThread();
+			this.pageId = pageId;
+			this.waitsFor = new CopyOnWriteArrayList<>(waitsFor);
+		}
+
+		/** Waits for transaction {@code id} too - called holding the stripe */
+		void waitsFor(long id) {
+			waitsFor.addIfAbsent(id);
+		}
+
+		/**
+		 * Transaction {@code id} released, or gave up waiting for, the page -
+		 * called holding the stripe
+		 */
+		void released(long id) {
+			waitsFor.remove(id);
+		}
+	}
+
+	/** the waiting transactions by id - guarded by this */
+	private final Map<Long, Waiter> waiting = new HashMap<>();
+	/**
+	 * the ids of the wounded transactions - added to and checked by waits
+	 * under this, but read without it on every lock request
+	 */
+	private final Set<Long> wounded = Collections
+		.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private volatile VictimPolicy policy = VictimPolicy.YOUNGEST;
+	private volatile long intervalMillis;
+	private Thread thread; // null if not started
+	private volatile boolean running;
+
+	// =========================================================================
+	// Maintained by the LockManager
+	// =========================================================================
+	/**
+	 * Transaction {@code tr} is about to wait for page {@code pageId}, held
+	 * or requested before it by the transactions {@code holders}. Returns
+	 * its vertex - or null, and {@code tr} must not wait, if it was wounded.
+	 */
+	synchronized Waiter waits(Transaction tr, long pageId, List<Long> holders) {
+		if (!wounded.isEmpty() && wounded.contains(tr.getId())) return null;
+		final Waiter w = new Waiter(tr, pageId, holders);
+		waiting.put(tr.getId(), w);
+		return w;
+	}
+
+	/**
+	 * Transaction {@code tr} no longer waits - its lock was granted or it
+	 * gave up. Returns true if it was chosen as a deadlock victim meanwhile:
+	 * its thread is interrupted, or about to be (under this monitor), so the
+	 * lock must not be kept.
+	 */
+	synchronized boolean done(Transaction tr) {
+		final Waiter w = waiting.remove(tr.getId());
+		return w != null && w.victim;
+	}
+
+	// =========================================================================
+	// Prevention
+	// =========================================================================
+	/**
+	 * Wounds transaction {@code tr} - interrupted if waiting for a lock, else
+	 * it dies on its next lock request, unless it ends first.
+	 */
+	synchronized void wound(Transaction tr) {
+		if (!wounded.add(tr.getId())) return;
+		final Waiter w = waiting.get(tr.getId());
+		if (w == null) return;
+		w.victim = true;
+		w.thread.interrupt();
+	}
+
+	boolean isWounded(Transaction tr) {
+		return !wounded.isEmpty() && wounded.contains(tr.getId());
+	}
+
+	void ended(Transaction tr) {
+		wounded.remove(tr.getId());
+	}
+
+	// =========================================================================
+	// Detector
+	// =========================================================================
+	/** Starts the detector thread - NOOP if {@code interval} is 0 */
+	synchronized void start(long interval, VictimPolicy victims) {
+		if (victims == null) throw new NullPointerException();
+		policy = victims;
+		if (interval == 0 || thread != null) return;
+		intervalMillis = interval;
+		running = true;
+		thread = new Thread(this, "Deadlock detector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** The policy the detector chooses its victims by */
+	VictimPolicy victimPolicy() {
+		return policy;
+	}
+
+	void shutdown() throws InterruptedException {
+		final Thread t;
+		synchronized (this) {
+			running = false;
+			notifyAll();
+			t = thread;
+			thread = null;
+		}
+		if (t != null) t.join();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				synchronized (this) {
+					if (running) wait(intervalMillis);
+				}
+				if (running) detect();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Breaks the cycles of a snapshot of the graph. A cycle of the snapshot is
+	 * a cycle of the graph as long as its transactions still wait - they
+	 * can't be granted their locks meanwhile - so a victim is interrupted only
+	 * if it still waits, for the same lock.
+	 */
+	private void detect() {
+		final Waiter[] snapshot;
+		final long[] ids;
+		final int[][] edges;
+		synchronized (this) {
+			if (waiting.size() < 2) return;
+			ids = new long[waiting.size()];
+			int i = 0;
+			for (long id : waiting.keySet())
+				ids[i++] = id;
+			Arrays.sort(ids); // the vertices are looked up by binary search
+			snapshot = new Waiter[ids.length];
+			for (i = 0; i < ids.length; ++i)
+				snapshot[i] = waiting.get(ids[i]);
+			edges = new int[snapshot.length][];
+			for (i = 0; i < snapshot.length; ++i) {
+				final List<Long> to = snapshot[i].waitsFor;
+				final int[] out = new int[to.size()];
+				int n = 0;
+				for (long id : to) {
+					final int v = Arrays.binarySearch(ids, id);
+					if (v >= 0) out[n++] = v; // else not waiting - no cycle
+				}
+				edges[i] = Arrays.copyOf(out, n);
+			}
+		}
+		final boolean[] removed = new boolean[ids.length];
+		final List<Waiter> victims = new ArrayList<>();
+		for (int[] cycle; (cycle = cycle(edges, removed)) != null;) {
+			final int v = victim(cycle, ids, snapshot);
+			removed[v] = true;
+			victims.add(snapshot[v]);
+		}
+		if (victims.isEmpty()) return;
+		synchronized (this) {
+			for (Waiter w : victims) {
+				if (waiting.get(w.tr.getId()) != w) continue; // granted
+				w.victim = true;
+				w.thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * A cycle of the graph of vertices {@code 0..edges.length - 1}, except
+	 * the removed ones, or null - an iterative depth first search, visiting
+	 * each vertex and edge once.
+	 */
+	private static int[] cycle(int[][] edges, boolean[] removed) {
+		final int n = edges.length;
+		final byte[] color = new byte[n]; // 0 white, 1 on the stack, 2 done
+		final int[] stack = new int[n];
+		final int[] next = new int[n]; // the next edge to follow per vertex
+		for (int root = 0; root < n; ++root) {
+			if (removed[root] || color[root] != 0) continue;
+			int top = 0;
+			stack[0] = root;
+			color[root] = 1;
+			while (top >= 0) {
+				final int v = stack[top];
+				if (next[v] == edges[v].length) {
+					color[v] = 2;
+					--top;
+					continue;
+				}
+				final int w = edges[v][next[v]++];
+				if (removed[w] || color[w] == 2) continue;
+				if (color[w] == 1) { // back edge - the stack from w is a cycle
+					int from = top;
+					while (stack[from] != w)
+						--from;
+					return Arrays.copyOfRange(stack, from, top + 1);
+				}
+				color[w] = 1;
+				stack[++top] = w;
+			}
+		}
+		return null;
+	}
+
+	private int victim(int[] cycle, long[] ids, Waiter[] snapshot) {
+		int victim = cycle[0];
+		for (int v : cycle) {
+			switch (policy) {
+			case YOUNGEST:
+				if (ids[v] > ids[victim]) victim = v;
+				break;
+			case LEAST_WORK: // racy read - a hint
+				final int locks = snapshot[v].tr.getLockCount();
+				final int min = snapshot[victim].tr.getLockCount();
+				if (locks < min || (locks == min && ids[v] > ids[victim]))
+					victim = v;
+				break;
+			}
+		}
+		return victim;
+	}
+}
@@ -1,26 +1,22 @@
 package gr.uoa.di.mde515.trees;
 
-import gr.uoa.di.mde515.engine.Engine;
 import gr.uoa.di.mde515.engine.Transaction;
 import gr.uoa.di.mde515.engine.buffer.BufferManager;
+import gr.uoa.di.mde515.engine.buffer.BulkRead;
 import gr.uoa.di.mde515.engine.buffer.IntegerSerializer;
 import gr.uoa.di.mde515.engine.buffer.Page;
 import gr.uoa.di.mde515.engine.buffer.RecordsPage;
 import gr.uoa.di.mde515.engine.buffer.Serializer;
+import gr.uoa.di.mde515.files.DiskFile;
 import gr.uoa.di.mde515.files.IndexDiskFile;
 import gr.uoa.di.mde515.index.Record;
 import gr.uoa.di.mde515.locks.DBLock;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Disk resident B plus tree. When a node that accepts an EVEN number of items
@@ -51,44 +47,80 @@ import java.util.concurrent.atomic.AtomicInteger;
 public final class BPlusDisk<K extends Comparable<K>, T> {
 
 	private static final BufferManager buf = BufferManager.getInstance();
+	/** the page of the superblock - the nodes come after it */
+	private static final int SUPERBLOCK = 1;
+	/** in a free node - the id of the next free node, 0 for none */
+	private static final int OFFSET_NEXT_FREE = 3; // past the node header
 	private final IndexDiskFile file;
 	// fields - TODO private lock + thread safety
-	private volatile Node<?> root;
-	private AtomicInteger nodeId = new AtomicInteger(0);
+	private volatile Node<?> root; // the root as of the last writer
+	private final SuperBlock sb;
 	// Used to write K and T to disc and read them back
 	private final Serializer<K> serKey;
 	private final Serializer<T> serVal;
 
 	/**
-	 * The BPlus writes the last nodeId and root node id to files and reads them
-	 * from there on restart of the engine. This class is responsible for these
-	 * operations.
+	 * Page {@value #SUPERBLOCK} of the index file - kept in the pool for good,
+	 * like the header of a heap file. Its fields are read and written through,
+	 * so they are logged on commit and restored on abort like the nodes, and
+	 * the page is dirtied (and written back on commit) only when they change.
+	 * Writers lock it exclusively and readers shared before reading the root -
+	 * see {@link #lockRoot(Transaction, DBLock)}.
 	 */
-	private static final class Root {
+	private final class SuperBlock extends Page {
 
-		private static final Path ROOT_PATH = FileSystems.getDefault().getPath(
-			"root.txt");
-		private static final Path NODES_PATH = FileSystems.getDefault()
-			.getPath("nodes.txt");
+		// OFFSETS
+		private static final int OFFSET_ROOT = 0;
+		private static final int OFFSET_NODES = 4; // the last node id
+		private static final int OFFSET_FREE_LIST = 8;
+		private static final int OFFSET_HEIGHT = 12;
 
-		static int rootFromFile() throws IOException {
-			byte[] readAllBytes = Files.readAllBytes(ROOT_PATH);
-			return ByteBuffer.wrap(readAllBytes).getInt();
+		@SuppressWarnings("synthetic-access")
+		SuperBlock() throws IOException, InterruptedException {
+			super(buf.allocPermanentPage(SUPERBLOCK, file));
 		}
 
-		static void rootToFile(int newRoot) throws IOException {
-			Files.write(ROOT_PATH, ByteBuffer.allocate(4).putInt(newRoot)
-				.array());
+		/** Initializes the superblock of a new file - no nodes yet */
+		void create() {
+			write(OFFSET_NODES, SUPERBLOCK);
+			setHeight(1); // of the root we create next
 		}
 
-		static int nodesFromFile() throws IOException {
-			byte[] readAllBytes = Files.readAllBytes(NODES_PATH);
-			return ByteBuffer.wrap(readAllBytes).getInt();
+		int getRoot() {
+			return readInt(OFFSET_ROOT);
 		}
 
-		static void nodesToFile(int newRoot) throws IOException {
-			Files.write(NODES_PATH, ByteBuffer.allocate(4).putInt(newRoot)
-				.array());
+		void setRoot(int pageID) {
+			write(OFFSET_ROOT, pageID);
+		}
+
+		/** The id of a new node - past the last one */
+		int nextNode() {
+			final int id = readInt(OFFSET_NODES) + 1;
+			write(OFFSET_NODES, id);
+			return id;
+		}
+
+		/** The first free node - 0 if none */
+		int getFreeList() {
+			return readInt(OFFSET_FREE_LIST);
+		}
+
+		void setFreeList(int pageID) {
+			write(OFFSET_FREE_LIST, pageID);
+		}
+
+		int getHeight() {
+			return readInt(OFFSET_HEIGHT);
+		}
+
+		void setHeight(int height) {
+			write(OFFSET_HEIGHT, height);
+		}
+
+		/** Writes {@code value} unless already there */
+		private void write(int offset, int value) {
+			if (readInt(offset) != value) writeInt(offset, value);
 		}
 	}
 
@@ -97,56 +129,89 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		this.serKey = serKey;
 		this.serVal = serVal;
 		this.file = file;
-		if (file.read() != -1) {
+		sb = new SuperBlock();
+		if (!file.isNew()) {
 			System.out.println(file + " already exists");
-			nodeId.set(Root.nodesFromFile());
-			int rootFromFile = Root.rootFromFile();
+			int rootFromFile = sb.getRoot();
 			Page allocFrame = buf.allocFrame(rootFromFile, file);
 			boolean leaf = allocFrame.readByte(Node.LEAF_OFFSET) == 1;
-			setRoot((leaf) ? new LeafNode(rootFromFile) : new InternalNode(
-				rootFromFile));
-			// FIXME permanent alloc (and something else I forgot ...)
+			root = (leaf) ? new LeafNode(rootFromFile) : new InternalNode(
+				rootFromFile);
 		} else { // FILE EMPTY - CREATE THE ROOT
 			System.out.println(file + ": Creating...");
-			setRoot(new LeafNode(null)); // null transaction !
-			buf.flushPage(-1, file); // TODO wild flush
+			sb.create();
+			setRoot(new LeafNode((Transaction) null)); // null transaction !
+			buf.flushPage(root.getPageId(), file); // TODO wild flush
+			buf.flushPage(SUPERBLOCK, file);
 		}
 	}
 
 	// =========================================================================
 	// API
 	// =========================================================================
-	public void flush(List<Integer> pageIds) throws IOException {
-		for (int pageID : pageIds) {
-			buf.flushPage(pageID, file);
+	public void flush(List<Long> addresses) throws IOException {
+		for (long address : addresses) {
+			if (!file.owns(address)) continue;
+			final int pageID = DiskFile.pageID(address);
+			buf.releasePage(pageID, file); // written back in the background
 			System.out.println("PID " + pageID);
-			buf.unpinPage(pageID);
 		}
-		Root.rootToFile(root.getPageId());
-		Root.nodesToFile(nodeId.get());
 	}
 
 	public <R extends Record<K, T>> void insert(Transaction tr, R rec)
 			throws IOException, InterruptedException {
-		setRoot(root.newNodeFromDiskOrBuffer(tr, DBLock.E, root.getPageId()));
+		setRoot(root.newNodeFromDiskOrBuffer(tr, DBLock.E, lockRoot(tr,
+			DBLock.E)));
 		final LeafNode leafNode = root.findLeaf(tr, DBLock.E, rec.getKey());
 		_insertInLeaf(tr, rec, leafNode);
 	}
 
 	public void delete(Transaction tr, K key) throws IOException,
 			InterruptedException {
-		root = root.newNodeFromDiskOrBuffer(tr, DBLock.E, root.getPageId());
+		setRoot(root.newNodeFromDiskOrBuffer(tr, DBLock.E, lockRoot(tr,
+			DBLock.E)));
 		final LeafNode leafNode = root.findLeaf(tr, DBLock.E, key);
 		// FIXME lock the siblings too!!
 		_deleteInLeaf(tr, key, leafNode);
 	}
 
-	public void abort(List<Integer> pageIds) throws IOException {
-		for (int pageID : pageIds) {
-			buf.killPage(pageID, file);
+	public void abort(List<Long> addresses) throws IOException {
+		for (long address : addresses) {
+			if (!file.owns(address)) continue;
+			buf.killPage(DiskFile.pageID(address), file);
 		}
 	}
 
+	/** Call after the dirty pages are written back */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Returns the records with keys in [key1, key2] in key order. Locks the
+	 * root and the path to the leaf of key1 for reading - which keeps the
+	 * writers, that lock the root exclusively, out - then walks the leaf chain
+	 * through a {@link BulkRead}, so a long range does not wipe the pool.
+	 */
+	public List<Record<K, T>> range(Transaction tr, K key1, K key2)
+			throws IOException, InterruptedException {
+		final List<Record<K, T>> records = new ArrayList<>();
+		final Node<?> r = root.newNodeFromDiskOrBuffer(tr, DBLock.S, lockRoot(
+			tr, DBLock.S));
+		LeafNode leaf = r.findLeaf(tr, DBLock.S, key1);
+		final BulkRead walk = buf.bulkRead(file);
+		try {
+			while (leaf._range(key1, key2, records)) {
+				final int next = leaf.greaterOrEqual();
+				if (next == 0) break; // the last leaf
+				leaf = new LeafNode(walk.read(next));
+			}
+		} finally {
+			walk.close();
+		}
+		return records;
+	}
+
 	public void print(Transaction tr, DBLock lock) throws IOException,
 			InterruptedException {
 		List<Node<?>> items = new ArrayList<>();
@@ -164,7 +229,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 
 	public void lockPath(Transaction tr, K key, DBLock el, Map<K, T> sm)
 			throws IOException, InterruptedException {
-		Integer indexPage = getRootPageId();
+		Integer indexPage = lockRoot(tr, el);
 		while (indexPage != null) {
 			indexPage = getNextPageIdToLock(indexPage, key, sm, tr, el);
 		}
@@ -199,9 +264,14 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		return nextNode.getPageId();
 	}
 
-	/** Return a page id for the root node */
-	private synchronized int getRootPageId() {
-		return root.getPageId();
+	/**
+	 * Locks the superblock - so the root does not change under our feet - and
+	 * returns the page id of the root
+	 */
+	private int lockRoot(Transaction tr, DBLock lock)
+			throws InterruptedException {
+		tr.lock(file.address(SUPERBLOCK), lock);
+		return sb.getRoot();
 	}
 
 	// =========================================================================
@@ -228,27 +298,22 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		 */
 		private Node(int id, Serializer<V> ser) throws IOException,
 				InterruptedException {
-			super(buf.allocFrame(id, file), serKey, ser, HEADER_SIZE);
-			max_keys = (short) ((Engine.PAGE_SIZE - HEADER_SIZE - serKey
-				.getTypeSize()) / record_size);
+			this(buf.allocFrame(id, file), ser);
+		}
+
+		/** Instantiates a Node on a page already read - see {@link #range} */
+		private Node(Page page, Serializer<V> ser) {
+			super(page, serKey, ser, HEADER_SIZE);
+			max_keys = slots(serKey.getTypeSize());
 			isLeaf = readByte(LEAF_OFFSET) == 1;
 			numOfKeys = readShort(NUM_KEYS_OFFSET);
 		}
 
 		/** Allocates a Node IN MEMORY */
 		private Node(Transaction tr, boolean leaf, Serializer<V> ser)
-				throws InterruptedException {
-			super(buf.allocFrameForNewPage(nodeId.decrementAndGet()), serKey,
-					ser, HEADER_SIZE);
-			max_keys = (short) ((Engine.PAGE_SIZE - HEADER_SIZE - serKey
-				.getTypeSize()) / record_size);
-			if (tr != null) { // if null we are creating the first root !
-				final int id = getPageId();
-				if (tr.lock(id, DBLock.E)) { // should always return true //
-					// notice the lock is for WRITING !
-					buf.pinPage(id);
-				}
-			}
+				throws IOException, InterruptedException {
+			super(newPage(tr), serKey, ser, HEADER_SIZE);
+			max_keys = slots(serKey.getTypeSize());
 			isLeaf = leaf;
 			writeByte(LEAF_OFFSET, (byte) ((leaf) ? 1 : 0));
 			numOfKeys = 0; // Unneeded
@@ -319,11 +384,11 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		}
 
 		final int greaterOrEqual() { // 4 for int - grOrE is always a page Id
-			return readInt(Engine.PAGE_SIZE - 4);
+			return readInt(getPageSize() - 4);
 		}
 
 		final void setGreaterOrEqual(int integer) {
-			writeInt(Engine.PAGE_SIZE - 4, integer);
+			writeInt(getPageSize() - 4, integer);
 		}
 
 		// =====================================================================
@@ -438,7 +503,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		 * Used in {@link #split(Record)} and when the tree grows (the root
 		 * splits, {@link BPlusDisk#insertInternal(Node, Record)}).
 		 */
-		InternalNode(Transaction tr) throws InterruptedException {
+		InternalNode(Transaction tr) throws IOException, InterruptedException {
 			super(tr, false, IntegerSerializer.INSTANCE);
 		}
 
@@ -525,7 +590,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		}
 
 		<L extends Node<?>> Record<K, InternalNode> split(Transaction tr,
-				Record<K, L> insert) throws InterruptedException {
+				Record<K, L> insert) throws IOException, InterruptedException {
 			if (numOfKeys != getMaxKeys())
 				throw new RuntimeException("Splitting internal node - keys: "
 					+ numOfKeys);
@@ -557,7 +622,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 
 		<L extends Node<?>> Record<K, InternalNode> insertInternal(
 				Transaction tr, L justSplit, Record<K, L> insert)
-				throws InterruptedException {
+				throws IOException, InterruptedException {
 			final Node<?> newNode = insert.getValue();
 			K _keyOfAnchor = _keyWithValue(justSplit);
 			if (_keyOfAnchor != null) {
@@ -601,6 +666,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 			final Node<?> deleted = merge.getValue();
 			K keyDeleted = _keyWithValue(deleted); // will be finally deleted
 			final K keyMergedNode = _keyWithValue(merged);
+			free(deleted); // only its id is used below
 			if (keyDeleted == null) { // we must replace the greaterOrEqual with
 				// merged - BUT FIND merged first
 				// we deleted the right sibling of the leaf OR THE LEAF ITSELF
@@ -639,6 +705,8 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 					int _get = _get(keyDeleted);
 					_remove(keyDeleted); // to mark it --numOfKeys
 					setRoot(newNodeFromDiskOrBuffer(tr, DBLock.E, _get));
+					sb.setHeight(sb.getHeight() - 1);
+					free(this);
 					return null;
 				}
 				_remove(keyDeleted);
@@ -731,7 +799,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		 * time (see {@link BPlusDisk#BPlusDisk(IndexDiskFile, short, short)}).
 		 * In the latter case the transaction must be null.
 		 */
-		LeafNode(Transaction tr) throws InterruptedException {
+		LeafNode(Transaction tr) throws IOException, InterruptedException {
 			super(tr, true, serVal);
 		}
 
@@ -739,6 +807,10 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 			super(id, serVal);
 		}
 
+		LeafNode(Page page) {
+			super(page, serVal);
+		}
+
 		// =========================================================================
 		// Overrides
 		// =========================================================================
@@ -772,8 +844,23 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		// =====================================================================
 		// Class Methods
 		// =====================================================================
+		/**
+		 * Adds the records with keys in [key1, key2] to {@code out} - returns
+		 * false if a key greater than key2 was found, so the next leaves need
+		 * not be visited.
+		 */
+		boolean _range(K key1, K key2, List<Record<K, T>> out) {
+			for (short i = 0; i < numOfKeys; ++i) {
+				final K key = readKey(i);
+				if (key.compareTo(key2) > 0) return false;
+				if (key.compareTo(key1) >= 0)
+					out.add(new Record<>(key, readValue(i)));
+			}
+			return true;
+		}
+
 		Record<K, LeafNode> insertInLeaf(Transaction tr, Record<K, T> rec)
-				throws InterruptedException {
+				throws IOException, InterruptedException {
 			if (overflow()) return split(tr, rec);
 			_put(rec.getKey(), rec.getValue());
 			return null;
@@ -873,7 +960,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 		}
 
 		Record<K, LeafNode> split(Transaction tr, Record<K, T> rec)
-				throws InterruptedException {
+				throws IOException, InterruptedException {
 			if (numOfKeys != getMaxKeys())
 				throw new RuntimeException("Splitting leaf - keys: "
 					+ numOfKeys);
@@ -909,6 +996,7 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 			newRoot._put(insert.getKey(), justSplit.getPageId());
 			newRoot.setGreaterOrEqual(insert.getValue().getPageId());
 			setRoot(newRoot);
+			sb.setHeight(sb.getHeight() + 1);
 			return;
 		}
 		@SuppressWarnings("unchecked")
@@ -924,6 +1012,42 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 
 	private synchronized <L extends Node<?>> void setRoot(L newRoot) {
 		root = newRoot;
+		sb.setRoot(newRoot.getPageId()); // NOOP unless changed
+	}
+
+	/**
+	 * The page of a new node, locked exclusively by {@code tr} - the first
+	 * free node if any, else a page past the last node. The transaction is
+	 * null when we create the first root.
+	 */
+	private Page newPage(Transaction tr) throws IOException,
+			InterruptedException {
+		final int free = sb.getFreeList();
+		if (tr == null || free == 0) {
+			final int id = sb.nextNode();
+			// should always return true - notice the lock is for WRITING !
+			// locked first - the lock may fail (deadlocks, deadlines)
+			if (tr != null) tr.lock(file.address(id), DBLock.E);
+			try {
+				// pinned for the transaction - unless we create the first root
+				return buf.allocFrameForNewPage(id, file, tr != null);
+			} catch (IOException | InterruptedException e) {
+				if (tr != null) tr.unlock(file.address(id)); // not pinned
+				throw e;
+			}
+		}
+		final Page page = alloc(tr, DBLock.E, free);
+		sb.setFreeList(page.readInt(OFFSET_NEXT_FREE));
+		for (int i = 0; i < page.getPageSize(); ++i)
+			page.writeByte(i, (byte) 0); // as a new page
+		return page;
+	}
+
+	/** Adds a node no longer in the tree to the free list */
+	private void free(Node<?> node) {
+		node.writeShort(Node.NUM_KEYS_OFFSET, (short) 0);
+		node.writeInt(OFFSET_NEXT_FREE, sb.getFreeList());
+		sb.setFreeList(node.getPageId());
 	}
 
 	/**
@@ -983,10 +1107,13 @@ public final class BPlusDisk<K extends Comparable<K>, T> {
 	private Page alloc(Transaction tr, DBLock lock, int pageID)
 			throws IOException, InterruptedException {
 		Page p;
-		if (tr.lock(pageID, lock)) {
-			p = buf.allocFrame(pageID, file);
-			// FIXME - race in pin ??? - add boolean pin param in allocFrame
-			buf.pinPage(pageID);
+		if (tr.lock(file.address(pageID), lock)) {
+			try {
+				p = buf.allocFrame(pageID, file, true);
+			} catch (IOException | InterruptedException e) {
+				tr.unlock(file.address(pageID)); // not pinned
+				throw e;
+			}
 		} else {
 			p = buf.allocFrame(pageID, file);
 		}